@@ -34,15 +34,24 @@ public class CarrierDatabaseHelper extends SQLiteOpenHelper {
     public static final String CARRIER_KEY_TABLE = "carrier_key";
     private static final int DATABASE_VERSION = 2;
 
+    // Context to access resources with
+    private final Context mContext;
+
     /**
      * CarrierDatabaseHelper carrier database helper class.
      * @param context of the user.
      */
     public CarrierDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
         setWriteAheadLoggingEnabled(false);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        DatabaseTuningProfile.apply(mContext, db);
+    }
+
     public static final String KEY_TYPE = "key_type";
     public static final String MCC = "mcc";
     public static final String MNC = "mnc";
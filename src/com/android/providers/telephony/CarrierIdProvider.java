@@ -334,6 +334,11 @@ public class CarrierIdProvider extends ContentProvider {
             setWriteAheadLoggingEnabled(false);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            DatabaseTuningProfile.apply(getContext(), db);
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             Log.d(TAG, "onCreate");
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.UserHandle;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Change notifications of a provider. They are sent right away on the calling thread, except
+ * between {@link #beginBatch} and {@link #endBatch}: the notifications requested by the thread
+ * running the batch are then coalesced and sent at the end of the batch. A uri is notified
+ * once, and so is the {@link ProviderUtil#notifyIfNotDefaultSmsApp} broadcast of a calling
+ * package.
+ */
+public class ChangeNotifier {
+    // Counters of all the notifiers of the process, printed by dump().
+    private static final AtomicLong sRequested = new AtomicLong();
+    private static final AtomicLong sDispatched = new AtomicLong();
+    private static final AtomicLong sBroadcastsRequested = new AtomicLong();
+    private static final AtomicLong sBroadcastsSent = new AtomicLong();
+
+    private final Context mContext;
+    // The open batch of each thread, if any. Binder calls of different callers run on
+    // different threads, and each one sends its own notifications.
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /**
+     * The notifications held by the batch of a thread.
+     */
+    private static final class Batch {
+        int depth;
+        // The uris to notify.
+        final LinkedHashSet<Uri> uris = new LinkedHashSet<Uri>();
+        // The uri of the broadcast of each calling package, null when several uris changed.
+        final HashMap<String, Uri> broadcasts = new HashMap<String, Uri>();
+    }
+
+    ChangeNotifier(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Notify the observers of {@code uri} for all users.
+     */
+    void notifyChange(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        sRequested.incrementAndGet();
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.uris.add(uri);
+        } else {
+            dispatchChange(uri);
+        }
+    }
+
+    /**
+     * Tell the default sms app about a change of {@code uri} made by {@code callingPackage},
+     * with {@link ProviderUtil#notifyIfNotDefaultSmsApp}.
+     */
+    void notifyIfNotDefaultSmsApp(Uri uri, String callingPackage) {
+        sBroadcastsRequested.incrementAndGet();
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            dispatchBroadcast(uri, callingPackage);
+            return;
+        }
+        if (batch.broadcasts.containsKey(callingPackage)
+                && !Objects.equals(batch.broadcasts.get(callingPackage), uri)) {
+            // Several uris changed, send a broadcast without data.
+            uri = null;
+        }
+        batch.broadcasts.put(callingPackage, uri);
+    }
+
+    /**
+     * Hold the notifications of the calling thread until the matching {@link #endBatch}.
+     * Batches can be nested.
+     */
+    void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    void endBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        }
+        if (--batch.depth > 0) {
+            return;
+        }
+        mBatch.remove();
+        for (Uri uri : batch.uris) {
+            dispatchChange(uri);
+        }
+        for (Map.Entry<String, Uri> broadcast : batch.broadcasts.entrySet()) {
+            dispatchBroadcast(broadcast.getValue(), broadcast.getKey());
+        }
+    }
+
+    static void dump(PrintWriter writer) {
+        writer.println("Change notifications requested: " + sRequested.get()
+                + ", dispatched: " + sDispatched.get());
+        writer.println("External change broadcasts requested: " + sBroadcastsRequested.get()
+                + ", sent: " + sBroadcastsSent.get());
+    }
+
+    private void dispatchChange(Uri uri) {
+        ContentResolver cr = mContext.getContentResolver();
+        cr.notifyChange(uri, null, true, UserHandle.USER_ALL);
+        sDispatched.incrementAndGet();
+    }
+
+    private void dispatchBroadcast(Uri uri, String callingPackage) {
+        sendExternalChangeBroadcast(uri, callingPackage);
+        sBroadcastsSent.incrementAndGet();
+    }
+
+    @VisibleForTesting
+    void sendExternalChangeBroadcast(Uri uri, String callingPackage) {
+        ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, mContext);
+    }
+}
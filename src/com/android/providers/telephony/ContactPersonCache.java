@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.provider.Contacts;
+import android.provider.ContactsContract;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Cache of the contact person ids of sms senders, by address, for the inbox inserts of
+ * {@link SmsProvider}. The cache is cleared whenever contacts change.
+ *
+ * An address that is not cached yet is looked up in the background: the message is inserted
+ * without a person and its person column filled once the contacts provider answered, so that
+ * receiving a message does not wait for it.
+ */
+public class ContactPersonCache {
+    private static final String TAG = "ContactPersonCache";
+
+    // Number of addresses kept.
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 256;
+    // Returned by getPersonId() for an address that is not cached.
+    static final long UNKNOWN = -1;
+    // Cached for an address without a contact. Contact ids are positive.
+    private static final long NO_PERSON = 0;
+
+    private static final String[] CONTACT_QUERY_PROJECTION =
+            new String[] { Contacts.Phones.PERSON_ID };
+    private static final int PERSON_ID_COLUMN = 0;
+
+    private static ExecutorService sFillExecutor;
+
+    private final Context mContext;
+    private final ChangeNotifier mChangeNotifier;
+    private final LruCache<String, Long> mPersons = new LruCache<String, Long>(MAX_ENTRIES);
+    // Ids of the sms rows waiting for the person of their address, guarded by this.
+    private final HashMap<String, ArrayList<Long>> mPendingRows =
+            new HashMap<String, ArrayList<Long>>();
+    // Incremented by clear(), so that lookups started before a change are not cached after it.
+    // Guarded by this.
+    private int mGeneration;
+    private boolean mObserving = false;
+
+    ContactPersonCache(Context context, ChangeNotifier changeNotifier) {
+        mContext = context;
+        mChangeNotifier = changeNotifier;
+    }
+
+    /**
+     * Return the cached contact person id of {@code address}, 0 if it has no contact, or
+     * {@link #UNKNOWN} if it is not cached.
+     */
+    long getPersonId(String address) {
+        observeContacts();
+        Long person = mPersons.get(address);
+        return person != null ? person : UNKNOWN;
+    }
+
+    /**
+     * Look up the contact person of {@code address} in the background, and then set it on the
+     * sms row {@code rowId} of the database of {@code helper} unless the row has one already.
+     * Must be called once the transaction inserting the row is committed: the id of a rolled
+     * back row can be given to another message. The row is only updated if it still has
+     * {@code address}.
+     */
+    void fillPersonLater(final SQLiteOpenHelper helper, long rowId, final String address) {
+        synchronized (this) {
+            ArrayList<Long> rows = mPendingRows.get(address);
+            if (rows != null) {
+                // A lookup of this address is already queued, it fills this row too.
+                rows.add(rowId);
+                return;
+            }
+            rows = new ArrayList<Long>();
+            rows.add(rowId);
+            mPendingRows.put(address, rows);
+        }
+        getFillExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                fillPerson(helper, address);
+            }
+        });
+    }
+
+    void clear() {
+        synchronized (this) {
+            mGeneration++;
+        }
+        mPersons.evictAll();
+    }
+
+    private void fillPerson(SQLiteOpenHelper helper, String address) {
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        Long person = queryPersonId(address);
+        ArrayList<Long> rows;
+        synchronized (this) {
+            if (person != null && generation == mGeneration) {
+                mPersons.put(address, person);
+            }
+            rows = mPendingRows.remove(address);
+        }
+        if (person == null || person == NO_PERSON || rows == null) {
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (Long rowId : rows) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(rowId);
+        }
+        int updated;
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            SQLiteStatement update = db.compileStatement("UPDATE " + SmsProvider.TABLE_SMS +
+                    " SET " + Sms.PERSON + " = ? WHERE _id IN (" + ids + ") AND " +
+                    Sms.ADDRESS + " = ? AND " + Sms.PERSON + " IS NULL");
+            try {
+                update.bindLong(1, person);
+                update.bindString(2, address);
+                updated = update.executeUpdateDelete();
+            } finally {
+                update.close();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "fillPerson: ex. ", e);
+            return;
+        }
+        if (updated > 0) {
+            mChangeNotifier.notifyChange(Sms.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Query the contact person id of {@code address}, 0 if it has no contact, or null if the
+     * contacts provider could not be queried.
+     */
+    private Long queryPersonId(String address) {
+        Cursor cursor = null;
+        Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL, Uri.encode(address));
+        try {
+            cursor = mContext.getContentResolver().query(
+                    uri,
+                    CONTACT_QUERY_PROJECTION,
+                    null, null, null);
+
+            if (cursor.moveToFirst()) {
+                return cursor.getLong(PERSON_ID_COLUMN);
+            }
+            return NO_PERSON;
+        } catch (Exception ex) {
+            Log.e(TAG, "query contact uri " + uri + " caught ", ex);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Start watching for contact changes on first use. Nothing is cached before.
+     */
+    private synchronized void observeContacts() {
+        if (mObserving) {
+            return;
+        }
+        mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                true, new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        clear();
+                    }
+                });
+        mObserving = true;
+    }
+
+    private static synchronized ExecutorService getFillExecutor() {
+        if (sFillExecutor == null) {
+            sFillExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sFillExecutor;
+    }
+}
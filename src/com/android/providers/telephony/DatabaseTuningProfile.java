@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * SQLite tuning shared by the database helpers of this package, applied from their
+ * onConfigure(). The profile is selected with the database_tuning_profile resource, which
+ * devices can overlay.
+ *
+ * These pragmas are per connection, and onConfigure() only runs them on the primary
+ * connection: the one used for every write and for the reads made inside a transaction. With
+ * write-ahead logging the other reads run on a pool of read-only connections that keep the
+ * SQLite defaults. The profiles therefore only hold settings that pay off on the primary
+ * connection: the page cache and the temporary storage of write transactions and of the
+ * triggers they fire, and the durability of commits, which only the primary connection makes.
+ * Memory mapped I/O, which would mostly speed up the pooled reads, is not part of them.
+ *
+ * Fewer fsyncs are only crash safe with write-ahead logging, so the synchronous level of a
+ * profile is only applied to the databases in WAL mode. With a rollback journal a power loss
+ * during a commit could corrupt the database.
+ */
+public class DatabaseTuningProfile {
+    private static final String TAG = "DatabaseTuningProfile";
+
+    // Keep the SQLite and platform defaults.
+    static final String PROFILE_DEFAULT = "default";
+    // Small page cache and temporary tables in files, for low RAM devices.
+    static final String PROFILE_LOW_RAM = "low_ram";
+    // Larger page cache, temporary tables in memory and, in WAL mode, fewer fsyncs.
+    static final String PROFILE_PERFORMANCE = "performance";
+
+    @VisibleForTesting
+    static final DatabaseTuningProfile DEFAULT =
+            new DatabaseTuningProfile(0, -1, null);
+    @VisibleForTesting
+    static final DatabaseTuningProfile LOW_RAM =
+            new DatabaseTuningProfile(256, 1, null);
+    @VisibleForTesting
+    static final DatabaseTuningProfile PERFORMANCE =
+            new DatabaseTuningProfile(2048, 2, "NORMAL");
+
+    // Page cache size in KiB, 0 to keep the default.
+    private final int mCacheSizeKb;
+    // PRAGMA temp_store: 1 for files, 2 for memory, -1 to keep the default.
+    private final int mTempStore;
+    // PRAGMA synchronous in WAL mode, null to keep the default.
+    private final String mSynchronous;
+
+    private DatabaseTuningProfile(int cacheSizeKb, int tempStore, String synchronous) {
+        mCacheSizeKb = cacheSizeKb;
+        mTempStore = tempStore;
+        mSynchronous = synchronous;
+    }
+
+    /**
+     * Return the profile selected by the resources of {@code context}, or the default profile
+     * if the name is unknown.
+     */
+    static DatabaseTuningProfile get(Context context) {
+        String name;
+        try {
+            name = context.getResources().getString(R.string.database_tuning_profile);
+        } catch (Resources.NotFoundException e) {
+            name = PROFILE_DEFAULT;
+        }
+        if (PROFILE_LOW_RAM.equals(name)) {
+            return LOW_RAM;
+        } else if (PROFILE_PERFORMANCE.equals(name)) {
+            return PERFORMANCE;
+        } else if (!PROFILE_DEFAULT.equals(name)) {
+            Log.w(TAG, "Unknown database tuning profile " + name + ", using " + PROFILE_DEFAULT);
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Apply the profile selected by the resources of {@code context} to {@code db}.
+     */
+    static void apply(Context context, SQLiteDatabase db) {
+        get(context).apply(db);
+    }
+
+    /**
+     * Set the pragmas of this profile on {@code db}. A failure is logged and leaves the
+     * remaining settings to their defaults, the database stays usable.
+     */
+    void apply(SQLiteDatabase db) {
+        try {
+            if (mCacheSizeKb > 0) {
+                // A negative cache size is a number of KiB rather than of pages.
+                db.execSQL("PRAGMA cache_size = -" + mCacheSizeKb);
+            }
+            if (mTempStore >= 0) {
+                db.execSQL("PRAGMA temp_store = " + mTempStore);
+            }
+            if (mSynchronous != null && isWriteAheadLogging(db)) {
+                db.execSQL("PRAGMA synchronous = " + mSynchronous);
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Failed to tune " + db.getPath(), e);
+        }
+    }
+
+    private static boolean isWriteAheadLogging(SQLiteDatabase db) {
+        return "wal".equalsIgnoreCase(
+                DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+    }
+}
@@ -105,6 +105,11 @@ public class HbpcdLookupDatabaseHelper extends SQLiteOpenHelper {
         setWriteAheadLoggingEnabled(false);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        DatabaseTuningProfile.apply(mContext, db);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         //set up the database schema
@@ -19,13 +19,17 @@ package com.android.providers.telephony;
 import android.annotation.NonNull;
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -33,7 +37,6 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.ParcelFileDescriptor;
-import android.os.UserHandle;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -43,7 +46,6 @@ import android.provider.Telephony.Mms.Inbox;
 import android.provider.Telephony.Mms.Part;
 import android.provider.Telephony.Mms.Rate;
 import android.provider.Telephony.MmsSms;
-import android.provider.Telephony.Threads;
 import android.support.v4.content.FileProvider;
 import android.system.ErrnoException;
 import android.system.Os;
@@ -64,6 +66,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 
 /**
@@ -76,7 +80,8 @@ public class MmsProvider extends ContentProvider {
     static final String TABLE_PART = "part";
     static final String TABLE_RATE = "rate";
     static final String TABLE_DRM  = "drm";
-    static final String TABLE_WORDS = "words";
+    // Full-text index of the text/plain parts, see MmsSmsDatabaseHelper.createWordsTables().
+    static final String TABLE_PART_WORDS = "part_words";
     static final String VIEW_PDU_RESTRICTED = "pdu_restricted";
 
     // The name of parts directory. The full dir is "app_parts".
@@ -93,9 +98,15 @@ public class MmsProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
-        mOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
-        TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExist(getContext());
+        mStartupTrace.beginCreate();
+        try {
+            setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
+            mOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
+            TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExistInBackground(
+                    getContext());
+        } finally {
+            mStartupTrace.endCreate();
+        }
         return true;
     }
 
@@ -161,6 +172,16 @@ public class MmsProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder) {
+        long traceStart = mStartupTrace.beginFirstQuery();
+        try {
+            return queryInner(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            mStartupTrace.endFirstQuery(traceStart);
+        }
+    }
+
+    private Cursor queryInner(Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
         // First check if a restricted view of the "pdu" table should be used based on the
         // caller's identity. Only system, phone or the default sms app can have full access
         // of mms data. For other apps, we present a restricted view which only contains sent
@@ -463,7 +484,14 @@ public class MmsProvider extends ContentProvider {
         String dir = uri.getQueryParameter("restore_dir");
         String authority = uri.getQueryParameter("authorities");
         if (TextUtils.isEmpty(dir)) {
-            return super.bulkInsert(uri, values);
+            // Notify the changes of all the inserts together.
+            ChangeNotifier notifier = getChangeNotifier();
+            notifier.beginBatch();
+            try {
+                return super.bulkInsert(uri, values);
+            } finally {
+                notifier.endBatch();
+            }
         }
 
         Uri insertUri = null;
@@ -500,6 +528,18 @@ public class MmsProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Notify the changes of all the operations together.
+        ChangeNotifier notifier = getChangeNotifier();
+        notifier.beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            notifier.endBatch();
+        }
+    }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
@@ -595,7 +635,8 @@ public class MmsProvider extends ContentProvider {
             String address = values.getAsString(CanonicalAddressesColumns.ADDRESS);
 
             if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                finalValues.put(Mms.THREAD_ID, Threads.getOrCreateThreadId(getContext(), address));
+                finalValues.put(Mms.THREAD_ID, MmsSmsDatabaseHelper.getOrCreateThreadId(
+                        getContext(), mOpenHelper, db, address));
             }
 
             if (ProviderUtil.shouldSetCreator(finalValues, callerUid)) {
@@ -733,32 +774,33 @@ public class MmsProvider extends ContentProvider {
                 }
             }
 
-            if ((rowId = db.insert(table, null, finalValues)) <= 0) {
-                Log.e(TAG, "MmsProvider.insert: failed!");
+            db.beginTransaction();
+            try {
+                if ((rowId = db.insert(table, null, finalValues)) <= 0) {
+                    Log.e(TAG, "MmsProvider.insert: failed!");
+                    return null;
+                }
+
+                // Don't use a trigger for updating the words table because of a bug
+                // in FTS3.  The bug is such that the call to get the last inserted
+                // row is incorrect.
+                if (plainText) {
+                    // Update the words table with a corresponding row.  The words table
+                    // allows us to search for words quickly, without scanning the whole
+                    // table; it only references the part row and reads the text back from it.
+                    MmsSmsDatabaseHelper.insertWords(db, 2, rowId,
+                            finalValues.getAsString(Part.TEXT));
+                }
+                db.setTransactionSuccessful();
+            } catch (SQLException e) {
+                Log.e(TAG, "MmsProvider.insert: failed to index the part ", e);
                 return null;
+            } finally {
+                db.endTransaction();
             }
 
             res = Uri.parse(res + "/part/" + rowId);
 
-            // Don't use a trigger for updating the words table because of a bug
-            // in FTS3.  The bug is such that the call to get the last inserted
-            // row is incorrect.
-            if (plainText) {
-                // Update the words table with a corresponding row.  The words table
-                // allows us to search for words quickly, without scanning the whole
-                // table;
-                ContentValues cv = new ContentValues();
-
-                // we're using the row id of the part table row but we're also using ids
-                // from the sms table so this divides the space into two large chunks.
-                // The row ids from the part table start at 2 << 32.
-                cv.put(Telephony.MmsSms.WordsTable.ID, (2L << 32) + rowId);
-                cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("text"));
-                cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowId);
-                cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 2);
-                db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-            }
-
         } else if (table.equals(TABLE_RATE)) {
             long now = values.getAsLong(Rate.SENT_TIME);
             long oneHourAgo = now - 1000 * 60 * 60;
@@ -893,8 +935,6 @@ public class MmsProvider extends ContentProvider {
                                          selectionArgs, uri);
         } else if (TABLE_PART.equals(table)) {
             deletedRows = deleteParts(db, finalSelection, selectionArgs);
-            cleanUpWords(db);
-            updateHasAttachment(db);
         } else if (TABLE_DRM.equals(table)) {
             deletedRows = deleteTempDrmData(db, finalSelection, selectionArgs);
         } else {
@@ -909,54 +949,80 @@ public class MmsProvider extends ContentProvider {
 
     static int deleteMessages(Context context, SQLiteDatabase db,
             String selection, String[] selectionArgs, Uri uri) {
-        Cursor cursor = db.query(TABLE_PDU, new String[] { Mms._ID, Mms.THREAD_ID },
-                selection, selectionArgs, null, null, null);
+        int count;
+        // The threads are updated in the same transaction as the delete, so that observers
+        // notified by the caller never see the threads of deleted messages.
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE_PDU, new String[] { Mms._ID, Mms.THREAD_ID },
+                    selection, selectionArgs, null, null, null);
+            if (cursor == null) {
+                return 0;
+            }
+
+            HashSet<Long> threadIds = new HashSet<Long>();
+            try {
+                if (cursor.getCount() == 0) {
+                    return 0;
+                }
+
+                while (cursor.moveToNext()) {
+                    deleteParts(db, Part.MSG_ID + " = ?",
+                            new String[] { String.valueOf(cursor.getLong(0)) });
+                    threadIds.add(cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            count = db.delete(TABLE_PDU, selection, selectionArgs);
+            MmsSmsDatabaseHelper.updateThreads(db, threadIds);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (count > 0) {
+            broadcastDeletedContents(context, uri);
+        }
+        return count;
+    }
+
+    /**
+     * Delete the messages matching the selection and their parts, and add their thread ids to
+     * {@code threadIds}. Unlike {@link #deleteMessages} the threads are neither updated nor
+     * broadcast, so that callers deleting many messages do it once for all of them.
+     */
+    static int deleteMessagesOnly(SQLiteDatabase db, String selection, String[] selectionArgs,
+            Collection<Long> threadIds) {
+        Cursor cursor = db.query(true, TABLE_PDU, new String[] { Mms.THREAD_ID },
+                selection, selectionArgs, null, null, null, null);
         if (cursor == null) {
             return 0;
         }
-
-        HashSet<Long> threadIds = new HashSet<Long>();
         try {
             if (cursor.getCount() == 0) {
                 return 0;
             }
-
             while (cursor.moveToNext()) {
-                deleteParts(db, Part.MSG_ID + " = ?",
-                        new String[] { String.valueOf(cursor.getLong(0)) });
-                threadIds.add(cursor.getLong(1));
+                threadIds.add(cursor.getLong(0));
             }
-            cleanUpWords(db);
-            updateHasAttachment(db);
         } finally {
             cursor.close();
         }
 
-        int count = db.delete(TABLE_PDU, selection, selectionArgs);
-        for (long thread : threadIds) {
-            MmsSmsDatabaseHelper.updateThread(db, thread);
-        }
-        if (count > 0) {
-            Intent intent = new Intent(Mms.Intents.CONTENT_CHANGED_ACTION);
-            intent.putExtra(Mms.Intents.DELETED_CONTENTS, uri);
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "Broadcasting intent: " + intent);
-            }
-            context.sendBroadcast(intent);
-        }
-        return count;
-    }
-
-    private static void cleanUpWords(SQLiteDatabase db) {
-        db.execSQL("DELETE FROM words WHERE source_id not in (select _id from part) AND "
-                + "table_to_use = 2");
+        deleteParts(db, Part.MSG_ID + " IN (SELECT " + Mms._ID + " FROM " + TABLE_PDU
+                + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) + ")",
+                selectionArgs);
+        return db.delete(TABLE_PDU, selection, selectionArgs);
     }
 
-    private static void updateHasAttachment(SQLiteDatabase db) {
-        db.execSQL("UPDATE threads SET has_attachment = CASE "
-                + "(SELECT COUNT(*) FROM part JOIN pdu WHERE part.mid = pdu._id AND "
-                + "pdu.thread_id = threads._id AND part.ct != 'text/plain' "
-                + "AND part.ct != 'application/smil') WHEN 0 THEN 0 ELSE 1 END");
+    static void broadcastDeletedContents(Context context, Uri uri) {
+        Intent intent = new Intent(Mms.Intents.CONTENT_CHANGED_ACTION);
+        intent.putExtra(Mms.Intents.DELETED_CONTENTS, uri);
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Broadcasting intent: " + intent);
+        }
+        context.sendBroadcast(intent);
     }
 
     private static int deleteParts(SQLiteDatabase db, String selection,
@@ -1218,15 +1284,18 @@ public class MmsProvider extends ContentProvider {
     }
 
     private void notifyChange(final Uri uri, final Uri caseSpecificUri) {
-        final Context context = getContext();
-        if (caseSpecificUri != null) {
-            context.getContentResolver().notifyChange(
-                caseSpecificUri, null, true, UserHandle.USER_ALL);
+        ChangeNotifier notifier = getChangeNotifier();
+        notifier.notifyChange(caseSpecificUri);
+        notifier.notifyChange(MmsSms.CONTENT_URI);
+        notifier.notifyIfNotDefaultSmsApp(caseSpecificUri == null ? uri : caseSpecificUri,
+                getCallingPackage());
+    }
+
+    private synchronized ChangeNotifier getChangeNotifier() {
+        if (mChangeNotifier == null) {
+            mChangeNotifier = new ChangeNotifier(getContext());
         }
-        context.getContentResolver().notifyChange(
-                MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        ProviderUtil.notifyIfNotDefaultSmsApp(caseSpecificUri == null ? uri : caseSpecificUri,
-                getCallingPackage(), context);
+        return mChangeNotifier;
     }
 
     private final static String TAG = "MmsProvider";
@@ -1287,6 +1356,9 @@ public class MmsProvider extends ContentProvider {
     }
 
     private SQLiteOpenHelper mOpenHelper;
+    private final ProviderStartupTrace mStartupTrace = new ProviderStartupTrace(TAG);
+    // Created on first use, guarded by this.
+    private ChangeNotifier mChangeNotifier;
 
     private static String concatSelections(String selection1, String selection2) {
         if (TextUtils.isEmpty(selection1)) {
@@ -18,19 +18,26 @@ package com.android.providers.telephony;
 
 import static com.android.providers.telephony.SmsProvider.NO_ERROR_CODE;
 
-import android.content.BroadcastReceiver;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.DatabaseErrorHandler;
 import android.database.DefaultDatabaseErrorHandler;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
@@ -45,7 +52,9 @@ import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Intents;
 import android.provider.Telephony.Threads;
 import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.Patterns;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneFactory;
@@ -58,8 +67,15 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -82,39 +98,63 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "MmsSmsDatabaseHelper";
 
-    private static final String SMS_UPDATE_THREAD_READ_BODY =
-                        "  UPDATE threads SET read = " +
-                        "    CASE (SELECT COUNT(*)" +
-                        "          FROM sms" +
-                        "          WHERE " + Sms.READ + " = 0" +
-                        "            AND " + Sms.THREAD_ID + " = threads._id)" +
-                        "      WHEN 0 THEN 1" +
-                        "      ELSE 0" +
-                        "    END" +
-                        "  WHERE threads._id = new." + Sms.THREAD_ID + "; ";
-
-    private static final String UPDATE_THREAD_COUNT_ON_NEW =
-                        "  UPDATE threads SET message_count = " +
-                        "     (SELECT COUNT(sms._id) FROM sms LEFT JOIN threads " +
-                        "      ON threads._id = " + Sms.THREAD_ID +
-                        "      WHERE " + Sms.THREAD_ID + " = new.thread_id" +
-                        "        AND sms." + Sms.TYPE + " != 3) + " +
-                        "     (SELECT COUNT(pdu._id) FROM pdu LEFT JOIN threads " +
-                        "      ON threads._id = " + Mms.THREAD_ID +
-                        "      WHERE " + Mms.THREAD_ID + " = new.thread_id" +
-                        "        AND (m_type=132 OR m_type=130 OR m_type=128)" +
-                        "        AND " + Mms.MESSAGE_BOX + " != 3) " +
-                        "  WHERE threads._id = new.thread_id; ";
-
-    private static final String SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE =
+    // The message_count, unread_count and error columns of a thread are maintained by the
+    // triggers below with deltas computed from the changed row only, so inserting or marking
+    // read N messages doesn't recount the whole thread N times. An update of a counted column
+    // or of the thread id takes the old row out of the counters of its thread and adds the new
+    // row to those of its own, so moving a message to another thread or changing its type
+    // keeps both threads right. Deletes are not handled by triggers; updateThreads()
+    // recomputes the counters of the threads that lost messages and verifyThreadCounters()
+    // can detect and repair any drift.
+    //
+    // "x IS 0"-style tests are wrapped in ifnull() so that NULL columns count as zero, which
+    // is what the COUNT(*) based recomputation does as well.
+
+    /**
+     * Add ("+") or remove ("-") the sms 'row' ("new" or "old") to the counters of its thread.
+     */
+    private static String smsThreadCounters(String row, String sign) {
+        final String unread = "ifnull(" + row + "." + Sms.READ + " = 0, 0)";
+        return "  UPDATE threads SET" +
+               "    message_count = message_count " + sign +
+                       " ifnull(" + row + "." + Sms.TYPE + " != 3, 0)," +
+               "    unread_count = unread_count " + sign + " " + unread + "," +
+               "    read = (unread_count " + sign + " " + unread + ") <= 0," +
+               "    error = error " + sign + " ifnull(" + row + "." + Sms.TYPE + " = " +
+                       Sms.MESSAGE_TYPE_FAILED + ", 0)" +
+               "  WHERE threads._id = " + row + "." + Sms.THREAD_ID + "; ";
+    }
+
+    private static final String SMS_UPDATE_THREAD_ON_INSERT =
+                        "BEGIN" +
+                        "  UPDATE threads SET" +
+                        "    date = (strftime('%s','now') * 1000), " +
+                        "    snippet = new." + Sms.BODY + ", " +
+                        "    snippet_cs = 0," +
+                        "    message_count = message_count + ifnull(new." + Sms.TYPE + " != 3, 0)," +
+                        "    unread_count = unread_count + ifnull(new." + Sms.READ + " = 0, 0)," +
+                        "    read = (unread_count + ifnull(new." + Sms.READ + " = 0, 0)) <= 0," +
+                        "    error = error + ifnull(new." + Sms.TYPE + " = " +
+                                Sms.MESSAGE_TYPE_FAILED + ", 0)" +
+                        "  WHERE threads._id = new." + Sms.THREAD_ID + "; " +
+                        "END;";
+
+    private static final String SMS_UPDATE_THREAD_COUNTERS_ON_UPDATE =
+                        "  WHEN old." + Sms.THREAD_ID + " IS NOT new." + Sms.THREAD_ID +
+                        "    OR old." + Sms.TYPE + " IS NOT new." + Sms.TYPE +
+                        "    OR old." + Sms.READ + " IS NOT new." + Sms.READ + " " +
+                        "BEGIN" +
+                        smsThreadCounters("old", "-") +
+                        smsThreadCounters("new", "+") +
+                        "END;";
+
+    private static final String SMS_UPDATE_THREAD_DATE_SNIPPET_ON_UPDATE =
                         "BEGIN" +
                         "  UPDATE threads SET" +
                         "    date = (strftime('%s','now') * 1000), " +
                         "    snippet = new." + Sms.BODY + ", " +
                         "    snippet_cs = 0" +
                         "  WHERE threads._id = new." + Sms.THREAD_ID + "; " +
-                        UPDATE_THREAD_COUNT_ON_NEW +
-                        SMS_UPDATE_THREAD_READ_BODY +
                         "END;";
 
     private static final String PDU_UPDATE_THREAD_CONSTRAINTS =
@@ -132,7 +172,28 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
     //     m_type=128   = MESSAGE_TYPE_SEND_REQ
     //     m_type=130   = MESSAGE_TYPE_NOTIFICATION_IND
     //     m_type=132   = MESSAGE_TYPE_RETRIEVE_CONF
-    private static final String PDU_UPDATE_THREAD_READ_BODY =
+    // The pdu insert triggers only fire for those message types (PDU_UPDATE_THREAD_CONSTRAINTS),
+    // the update trigger checks the message type of the old and of the new row.
+
+    /**
+     * Add ("+") or remove ("-") the pdu 'row' ("new" or "old") to the counters of its thread,
+     * if it is displayed to the user.
+     */
+    private static String pduThreadCounters(String row, String sign) {
+        final String unread = "ifnull(" + row + "." + Mms.READ + " = 0, 0)";
+        return "  UPDATE threads SET" +
+               "    message_count = message_count " + sign +
+                       " ifnull(" + row + "." + Mms.MESSAGE_BOX + " != 3, 0)," +
+               "    unread_count = unread_count " + sign + " " + unread + "," +
+               "    read = (unread_count " + sign + " " + unread + ") <= 0" +
+               "  WHERE threads._id = " + row + "." + Mms.THREAD_ID +
+               "    AND (" + row + ".m_type=132 OR " + row + ".m_type=130 OR " +
+                       row + ".m_type=128); ";
+    }
+
+    // The body of pdu_update_thread_read_on_update as of version 53, when threads had no
+    // unread_count column.
+    private static final String PDU_UPDATE_THREAD_READ_BODY_V53 =
                         "  UPDATE threads SET read = " +
                         "    CASE (SELECT COUNT(*)" +
                         "          FROM " + MmsProvider.TABLE_PDU +
@@ -144,15 +205,36 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         "    END" +
                         "  WHERE threads._id = new." + Mms.THREAD_ID + "; ";
 
-    private static final String PDU_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE =
+    private static final String PDU_UPDATE_THREAD_ON_INSERT =
+                        "BEGIN" +
+                        "  UPDATE threads SET" +
+                        "    date = (strftime('%s','now') * 1000), " +
+                        "    snippet = new." + Mms.SUBJECT + ", " +
+                        "    snippet_cs = new." + Mms.SUBJECT_CHARSET + "," +
+                        "    message_count = message_count + ifnull(new." + Mms.MESSAGE_BOX +
+                                " != 3, 0)," +
+                        "    unread_count = unread_count + ifnull(new." + Mms.READ + " = 0, 0)," +
+                        "    read = (unread_count + ifnull(new." + Mms.READ + " = 0, 0)) <= 0" +
+                        "  WHERE threads._id = new." + Mms.THREAD_ID + "; " +
+                        "END;";
+
+    private static final String PDU_UPDATE_THREAD_COUNTERS_ON_UPDATE =
+                        "  WHEN old." + Mms.THREAD_ID + " IS NOT new." + Mms.THREAD_ID +
+                        "    OR old." + Mms.MESSAGE_BOX + " IS NOT new." + Mms.MESSAGE_BOX +
+                        "    OR old." + Mms.READ + " IS NOT new." + Mms.READ +
+                        "    OR old." + Mms.MESSAGE_TYPE + " IS NOT new." + Mms.MESSAGE_TYPE + " " +
+                        "BEGIN" +
+                        pduThreadCounters("old", "-") +
+                        pduThreadCounters("new", "+") +
+                        "END;";
+
+    private static final String PDU_UPDATE_THREAD_DATE_SNIPPET_ON_UPDATE =
                         "BEGIN" +
                         "  UPDATE threads SET" +
                         "    date = (strftime('%s','now') * 1000), " +
                         "    snippet = new." + Mms.SUBJECT + ", " +
                         "    snippet_cs = new." + Mms.SUBJECT_CHARSET +
                         "  WHERE threads._id = new." + Mms.THREAD_ID + "; " +
-                        UPDATE_THREAD_COUNT_ON_NEW +
-                        PDU_UPDATE_THREAD_READ_BODY +
                         "END;";
 
     // When a part is inserted, if it is not text/plain or application/smil
@@ -192,24 +274,289 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         "     AND part.mid = pdu._id);" +
                         " END";
 
+    // The triggers below keep, for every thread, the number of attachment parts of its mms
+    // messages in attachment_count and has_attachment set when it is not zero. Only the threads
+    // of the changed rows are updated. They replace the triggers above, which are still used by
+    // the upgrade steps that predate attachment_count.
+    private static final String PART_ATTACHMENTS_ON_INSERT_TRIGGER =
+                        "CREATE TRIGGER update_threads_on_insert_part " +
+                        " AFTER INSERT ON part " +
+                        " WHEN " + isAttachmentPart("new") +
+                        " BEGIN " +
+                        addThreadAttachments("1", "_id = " + getPartThreadId("new")) +
+                        " END";
+
+    // Parts are deleted before their message, by MmsProvider and by the part_cleanup trigger,
+    // so the thread can still be found from the pdu table. Not named like the former
+    // update_threads_on_delete_part trigger, which dropMmsTriggers() removes on every open.
+    private static final String PART_ATTACHMENTS_ON_DELETE_TRIGGER =
+                        "CREATE TRIGGER thread_attachments_on_delete_part " +
+                        " AFTER DELETE ON part " +
+                        " WHEN " + isAttachmentPart("old") +
+                        " BEGIN " +
+                        addThreadAttachments("-1", "_id = " + getPartThreadId("old")) +
+                        " END";
+
+    private static final String PART_ATTACHMENTS_ON_UPDATE_TRIGGER =
+                        "CREATE TRIGGER update_threads_on_update_part " +
+                        " AFTER UPDATE OF " + Part.MSG_ID + ", " + Part.CONTENT_TYPE + " ON part " +
+                        " BEGIN " +
+                        addThreadAttachments("-1", "_id = " + getPartThreadId("old") +
+                                " AND " + isAttachmentPart("old")) +
+                        addThreadAttachments("1", "_id = " + getPartThreadId("new") +
+                                " AND " + isAttachmentPart("new")) +
+                        " END";
+
+    private static final String PDU_ATTACHMENTS =
+                        "(SELECT COUNT(*) FROM part WHERE part.mid = new._id" +
+                        " AND " + isAttachmentPart("part") + ")";
+
+    private static final String PDU_ATTACHMENTS_ON_UPDATE_TRIGGER =
+                        "CREATE TRIGGER update_threads_on_update_pdu " +
+                        " AFTER UPDATE OF thread_id ON pdu " +
+                        " WHEN old.thread_id IS NOT new.thread_id " +
+                        " BEGIN " +
+                        addThreadAttachments("-" + PDU_ATTACHMENTS, "_id = old.thread_id") +
+                        addThreadAttachments(PDU_ATTACHMENTS, "_id = new.thread_id") +
+                        " END";
+
+    // Seed attachment_count and has_attachment of every thread from the part table.
+    private static final String UPDATE_THREADS_ATTACHMENT_COUNT =
+                    " UPDATE threads SET " + THREAD_ATTACHMENT_COUNT_COLUMN + " = (" +
+                        " SELECT COUNT(*) FROM pdu JOIN part ON part.mid = pdu._id" +
+                        " WHERE pdu.thread_id = threads._id" +
+                        " AND " + isAttachmentPart("part") +
+                    " )";
+
+    private static final String UPDATE_THREADS_HAS_ATTACHMENT =
+                    " UPDATE threads SET " + Threads.HAS_ATTACHMENT + " = " +
+                        THREAD_ATTACHMENT_COUNT_COLUMN + " > 0";
+
+    // A part is an attachment unless it is the text or the smil of the message.
+    private static String isAttachmentPart(String row) {
+        return "(" + row + ".ct != 'text/plain' AND " + row + ".ct != 'application/smil')";
+    }
+
+    private static String getPartThreadId(String row) {
+        return "(SELECT thread_id FROM pdu WHERE pdu._id = " + row + ".mid)";
+    }
+
+    // Add delta attachments to the threads selected by where.
+    private static String addThreadAttachments(String delta, String where) {
+        return "  UPDATE threads SET " +
+               THREAD_ATTACHMENT_COUNT_COLUMN + " = MAX(" + THREAD_ATTACHMENT_COUNT_COLUMN +
+                       " + " + delta + ", 0), " +
+               Threads.HAS_ATTACHMENT + " = " + THREAD_ATTACHMENT_COUNT_COLUMN +
+                       " + " + delta + " > 0" +
+               "  WHERE " + where + "; ";
+    }
+
+    // Recompute the aggregate columns of a thread. Each of these is completed by the caller
+    // with a WHERE clause on the threads table selecting the threads to update.
+
+    // The message count of a thread is the sum of all messages in both the sms and pdu tables.
+    private static final String THREAD_MESSAGE_COUNT =
+                    "(" +
+                        " SELECT COUNT(sms._id) FROM sms" +
+                        " WHERE " + Sms.THREAD_ID + " = threads._id" +
+                        " AND sms." + Sms.TYPE + " != 3" +
+                    " ) + (" +
+                        " SELECT COUNT(pdu._id) FROM pdu" +
+                        " WHERE " + Mms.THREAD_ID + " = threads._id" +
+                        " AND (m_type=132 OR m_type=130 OR m_type=128)" +
+                        " AND " + Mms.MESSAGE_BOX + " != 3" +
+                    " )";
+
+    private static final String THREAD_UNREAD_COUNT =
+                    "(" +
+                        " SELECT COUNT(sms._id) FROM sms" +
+                        " WHERE " + Sms.THREAD_ID + " = threads._id" +
+                        " AND sms." + Sms.READ + " = 0" +
+                    " ) + (" +
+                        " SELECT COUNT(pdu._id) FROM pdu" +
+                        " WHERE " + Mms.THREAD_ID + " = threads._id" +
+                        " AND (m_type=132 OR m_type=130 OR m_type=128)" +
+                        " AND " + Mms.READ + " = 0" +
+                    " )";
+
+    // The error count of a thread is the number of text messages that failed to send plus
+    // the number of MMS in the outbox that failed permanently, matching the triggers which
+    // increment and decrement it.
+    private static final String THREAD_ERROR_COUNT =
+                    "(" +
+                        " SELECT COUNT(sms._id) FROM sms" +
+                        " WHERE " + Sms.THREAD_ID + " = threads._id" +
+                        " AND sms." + Sms.TYPE + " = " +
+                                Telephony.TextBasedSmsColumns.MESSAGE_TYPE_FAILED +
+                    " ) + (" +
+                        " SELECT COUNT(pdu._id) FROM pdu" +
+                        " JOIN " + MmsSmsProvider.TABLE_PENDING_MSG +
+                        " ON pdu._id = " + PendingMessages.MSG_ID +
+                        " WHERE " + Mms.THREAD_ID + " = threads._id" +
+                        " AND " + Mms.MESSAGE_BOX + " = " + Mms.MESSAGE_BOX_OUTBOX +
+                        " AND " + PendingMessages.ERROR_TYPE + " >= 10" +
+                    " )";
+
+    private static final String UPDATE_THREADS_MESSAGE_COUNT =
+                    " UPDATE threads SET message_count = " + THREAD_MESSAGE_COUNT;
+
+    // Both columns are assigned from the old row values, so read is derived from the same
+    // subquery rather than from the freshly computed unread_count.
+    private static final String UPDATE_THREADS_UNREAD_COUNT =
+                    " UPDATE threads" +
+                    " SET unread_count = " + THREAD_UNREAD_COUNT + "," +
+                        " read = (" + THREAD_UNREAD_COUNT + ") = 0";
+
+    // Update the date and the snippet (and its character set) in
+    // the threads table to be that of the most recent message in
+    // the thread.
+    private static final String UPDATE_THREADS_DATE_SNIPPET =
+                    " WITH matches AS (" +
+                        " SELECT date * 1000 AS date, sub AS snippet, sub_cs AS snippet_cs, thread_id" +
+                        " FROM pdu" +
+                        " WHERE thread_id = threads._id" +
+                        " UNION" +
+                        " SELECT date, body AS snippet, 0 AS snippet_cs, thread_id" +
+                        " FROM sms" +
+                        " WHERE thread_id = threads._id" +
+                        " ORDER BY date DESC" +
+                        " LIMIT 1" +
+                    " )" +
+                    " UPDATE threads" +
+                    " SET date   = (SELECT date FROM matches)," +
+                        " snippet    = (SELECT snippet FROM matches)," +
+                        " snippet_cs = (SELECT snippet_cs FROM matches)";
+
+    // Update the error column of the thread with the number of
+    // messages in it that have failed to send.
+    private static final String UPDATE_THREADS_ERROR =
+                    " UPDATE threads SET error = " + THREAD_ERROR_COUNT;
+
+    // Threads whose maintained counters disagree with the messages they contain.
+    private static final String SELECT_THREADS_WITH_STALE_COUNTERS =
+                    "SELECT _id FROM threads" +
+                    " WHERE message_count != " + THREAD_MESSAGE_COUNT +
+                    " OR unread_count != " + THREAD_UNREAD_COUNT +
+                    " OR error != " + THREAD_ERROR_COUNT;
+
+    // The messages that can be shown as the latest message of a conversation, i.e. the
+    // candidates of the thread_latest table. Drafts are never shown in the conversation list,
+    // and only MMS that are displayed to the user count.
+    private static final String THREAD_LATEST_CANDIDATES =
+                    " SELECT thread_id, _id AS msg_id, 1 AS is_mms, date * 1000 AS normalized_date" +
+                    " FROM pdu" +
+                    " WHERE " + Mms.MESSAGE_BOX + " != " + Mms.MESSAGE_BOX_DRAFTS +
+                    " AND (m_type=132 OR m_type=130 OR m_type=128)" +
+                    " UNION ALL" +
+                    " SELECT thread_id, _id AS msg_id, 0 AS is_mms, date AS normalized_date" +
+                    " FROM sms" +
+                    " WHERE " + Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT;
+
+    // Values of the transport column of the message_counters table.
+    static final int MESSAGE_COUNTERS_SMS = 0;
+    static final int MESSAGE_COUNTERS_MMS = 1;
+
+    // The expected content of the message_counters table. Only MMS that are displayed to the
+    // user are counted. NULL boxes and subscriptions are folded into 0 and -1 so that they
+    // can be part of the primary key.
+    private static final String MESSAGE_COUNTERS_CONTENT =
+                    " SELECT " + MESSAGE_COUNTERS_SMS + " AS transport," +
+                        " ifnull(" + Sms.TYPE + ", 0) AS box," +
+                        " ifnull(" + Sms.SUBSCRIPTION_ID + ", -1) AS sub_id," +
+                        " COUNT(*) AS total," +
+                        " SUM(ifnull(" + Sms.READ + " = 0, 0)) AS unread" +
+                    " FROM sms" +
+                    " GROUP BY ifnull(" + Sms.TYPE + ", 0), ifnull(" + Sms.SUBSCRIPTION_ID + ", -1)" +
+                    " UNION ALL" +
+                    " SELECT " + MESSAGE_COUNTERS_MMS + " AS transport," +
+                        " ifnull(" + Mms.MESSAGE_BOX + ", 0) AS box," +
+                        " ifnull(" + Mms.SUBSCRIPTION_ID + ", -1) AS sub_id," +
+                        " COUNT(*) AS total," +
+                        " SUM(ifnull(" + Mms.READ + " = 0, 0)) AS unread" +
+                    " FROM pdu" +
+                    " WHERE (m_type=132 OR m_type=130 OR m_type=128)" +
+                    " GROUP BY ifnull(" + Mms.MESSAGE_BOX + ", 0)," +
+                        " ifnull(" + Mms.SUBSCRIPTION_ID + ", -1)";
+
     private static MmsSmsDatabaseHelper sDeInstance = null;
     private static MmsSmsDatabaseHelper sCeInstance = null;
     private static MmsSmsDatabaseErrorHandler sDbErrorHandler = null;
 
     private static final String[] BIND_ARGS_NONE = new String[0];
 
-    private static boolean sTriedAutoIncrement = false;
-    private static boolean sFakeLowStorageTest = false;     // for testing only
+    // Max number of thread ids inlined in a single "_id IN (...)" clause.
+    static final int MAX_THREAD_IDS_PER_STATEMENT = 500;
+
+    // Progress of the background words index rebuild: one row per source table still being
+    // indexed (table_to_use 1 for sms, 2 for part), with the last source row id indexed and the
+    // largest id to index. Rows with larger ids are indexed by the providers as they are inserted.
+    static final String TABLE_WORDS_REBUILD = "words_rebuild";
+    // Number of source rows indexed per transaction by rebuildWordsIndex().
+    @VisibleForTesting
+    static final int WORDS_REBUILD_BATCH_SIZE = 500;
+    private static ExecutorService sWordsRebuildExecutor;
+
+    // Tables whose _id did not have the AUTOINCREMENT keyword in older versions, and the
+    // progress of their background migration: one row per table being copied, with the last
+    // _id copied and the largest _id to copy. Rows with larger ids are copied by triggers.
+    private static final String[] AUTOINCREMENT_TABLES = new String[] {
+            MmsSmsProvider.TABLE_THREADS, MmsSmsProvider.TABLE_CANONICAL_ADDRESSES,
+            MmsProvider.TABLE_PART, MmsProvider.TABLE_PDU };
+    static final String TABLE_AUTOINCREMENT_MIGRATION = "autoincrement_migration";
+    // Number of rows copied per transaction by migrateToAutoIncrement().
+    @VisibleForTesting
+    static final int AUTOINCREMENT_MIGRATION_BATCH_SIZE = 500;
+    private static ExecutorService sAutoIncrementExecutor;
+    private static ExecutorService sRawPurgeExecutor;
 
     private static final String NO_SUCH_COLUMN_EXCEPTION_MESSAGE = "no such column";
     private static final String NO_SUCH_TABLE_EXCEPTION_MESSAGE = "no such table";
 
     static final String DATABASE_NAME = "mmssms.db";
-    static final int DATABASE_VERSION = 67;
+    // Number of unread messages in a thread, maintained alongside Threads.READ.
+    static final String THREAD_UNREAD_COUNT_COLUMN = "unread_count";
+    // Number of attachment parts in a thread, maintained alongside Threads.HAS_ATTACHMENT.
+    static final String THREAD_ATTACHMENT_COUNT_COLUMN = "attachment_count";
+    // Message state conditions, the WHERE clauses of the partial indices created by
+    // createMessageStateIndices().
+    static final String SMS_LOCKED_CONDITION = Sms.LOCKED + " = 1";
+    static final String PDU_LOCKED_CONDITION = Mms.LOCKED + " = 1";
+    static final String PDU_OUTBOX_CONDITION = Mms.MESSAGE_BOX + " = " + Mms.MESSAGE_BOX_OUTBOX;
+    // Served by typeThreadIdIndex.
+    static final String SMS_UNDELIVERED_CONDITION = Sms.TYPE + " IN ("
+            + Sms.MESSAGE_TYPE_OUTBOX + ", " + Sms.MESSAGE_TYPE_FAILED + ", "
+            + Sms.MESSAGE_TYPE_QUEUED + ")";
+    // The WHERE clause of the partial index of the raw rows to purge, created by
+    // createRawIndices().
+    static final String RAW_DELETED_CONDITION = "deleted = 1";
+    static final int DATABASE_VERSION = 79;
+
+    /**
+     * Number of trailing characters of a normalized address used as its lookup key. Two numbers
+     * that PHONE_NUMBERS_EQUAL considers equal agree on at least this many trailing digits as
+     * long as the minimum match is not configured below it.
+     */
+    static final int ADDRESS_KEY_LENGTH = 7;
+
+    // Formatting characters ignored when computing the lookup key of an address.
+    private static final String[] ADDRESS_KEY_SEPARATORS = { " ", "-", "(", ")", ".", "/", "+" };
+
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
 
     private final Context mContext;
-    private LowStorageMonitor mLowStorageMonitor;
+    // Notifies the threads created outside of a transaction. Created on first use, guarded by
+    // this.
+    private ChangeNotifier mChangeNotifier;
+    private boolean mTriedAutoIncrement = false;
+    // Phone number comparison of the canonical address lookups, read from the resources on
+    // first use. Guarded by this.
+    private boolean mPhoneNumberComparisonLoaded = false;
+    private boolean mUseStrictPhoneNumberComparation;
+    private int mMinMatch;
+    // The open database, handed to readers without taking the helper monitor. With write-ahead
+    // logging its queries outside of a transaction run on a pool of read-only connections, so
+    // they do not wait for writers.
+    private volatile SQLiteDatabase mDatabase;
 
     // SharedPref key used to check if initial create has been done (if onCreate has already been
     // called once)
@@ -242,11 +589,16 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
     @VisibleForTesting
     MmsSmsDatabaseHelper(Context context, MmsSmsDatabaseErrorHandler dbErrorHandler) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION, dbErrorHandler);
+        this(context, DATABASE_NAME, dbErrorHandler);
+    }
+
+    @VisibleForTesting
+    MmsSmsDatabaseHelper(Context context, String name, DatabaseErrorHandler dbErrorHandler) {
+        super(context, name, null, DATABASE_VERSION, dbErrorHandler);
         mContext = context;
         // Memory optimization - close idle connections after 30s of inactivity
         setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
-        setWriteAheadLoggingEnabled(false);
+        setWriteAheadLoggingEnabled(true);
         try {
             PhoneFactory.addLocalLog(TAG, 100);
         } catch (IllegalArgumentException e) {
@@ -254,6 +606,11 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        DatabaseTuningProfile.apply(mContext, db);
+    }
+
     private static synchronized MmsSmsDatabaseErrorHandler getDbErrorHandler(Context context) {
         if (sDbErrorHandler == null) {
             sDbErrorHandler = new MmsSmsDatabaseErrorHandler(context);
@@ -345,7 +702,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             updateThreads(db, null, null);
             return;
         }
-        updateThreads(db, "(thread_id = ?)", new String[]{ String.valueOf(thread_id) });
+        updateThreads(db, Collections.singleton(thread_id));
     }
 
     /**
@@ -359,6 +716,15 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         if (whereArgs == null) {
             whereArgs = BIND_ARGS_NONE;
         }
+        final String threadCondition =
+                "EXISTS (" +
+                    " SELECT _id" +
+                    " FROM sms" +
+                    " WHERE thread_id = threads._id" +
+                    " AND (" + where + ")" +
+                    " LIMIT 1" +
+                " )";
+        final String threadSelection = " WHERE " + threadCondition;
         db.beginTransaction();
         try {
             // Delete rows in the threads table if
@@ -376,76 +742,17 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 removeUnferencedCanonicalAddresses(db);
             }
 
-            // Update the message count in the threads table as the sum
-            // of all messages in both the sms and pdu tables.
-            db.execSQL(
-                    " UPDATE threads" +
-                    " SET message_count = (" +
-                        " SELECT COUNT(sms._id) FROM sms" +
-                        " WHERE " + Sms.THREAD_ID + " = threads._id" +
-                        " AND sms." + Sms.TYPE + " != 3" +
-                    " ) + (" +
-                        " SELECT COUNT(pdu._id) FROM pdu" +
-                        " WHERE " + Mms.THREAD_ID + " = threads._id" +
-                        " AND (m_type=132 OR m_type=130 OR m_type=128)" +
-                        " AND " + Mms.MESSAGE_BOX + " != 3" +
-                    " )" +
-                    " WHERE EXISTS (" +
-                        " SELECT _id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " AND (" + where + ")" +
-                        " LIMIT 1" +
-                    " );",
-                    whereArgs);
-
-            // Update the date and the snippet (and its character set) in
-            // the threads table to be that of the most recent message in
-            // the thread.
-            db.execSQL(
-                    " WITH matches AS (" +
-                        " SELECT date * 1000 AS date, sub AS snippet, sub_cs AS snippet_cs, thread_id" +
-                        " FROM pdu" +
-                        " WHERE thread_id = threads._id" +
-                        " UNION" +
-                        " SELECT date, body AS snippet, 0 AS snippet_cs, thread_id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " ORDER BY date DESC" +
-                        " LIMIT 1" +
-                    " )" +
-                    " UPDATE threads" +
-                    " SET date   = (SELECT date FROM matches)," +
-                        " snippet    = (SELECT snippet FROM matches)," +
-                        " snippet_cs = (SELECT snippet_cs FROM matches)" +
-                    " WHERE EXISTS (" +
-                        " SELECT _id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " AND (" + where + ")" +
-                        " LIMIT 1" +
-                    " );",
-                    whereArgs);
-
-            // Update the error column of the thread to indicate if there
-            // are any messages in it that have failed to send.
-            // First check to see if there are any messages with errors in this thread.
-            db.execSQL(
-                    " UPDATE threads" +
-                    " SET error = EXISTS (" +
-                        " SELECT type" +
-                        " FROM sms" +
-                        " WHERE type=" + Telephony.TextBasedSmsColumns.MESSAGE_TYPE_FAILED +
-                        " AND thread_id = threads._id" +
-                    " )" +
-                    " WHERE EXISTS (" +
-                        " SELECT _id" +
-                        " FROM sms" +
-                        " WHERE thread_id = threads._id" +
-                        " AND (" + where + ")" +
-                        " LIMIT 1" +
-                    " );",
-                    whereArgs);
+            db.execSQL(UPDATE_THREADS_MESSAGE_COUNT + threadSelection, whereArgs);
+            db.execSQL(UPDATE_THREADS_UNREAD_COUNT + threadSelection, whereArgs);
+            db.execSQL(UPDATE_THREADS_DATE_SNIPPET + threadSelection, whereArgs);
+            db.execSQL(UPDATE_THREADS_ERROR + threadSelection, whereArgs);
+            if ("1".equals(where)) {
+                // Rebuild it entirely, which also drops the rows of deleted threads.
+                updateThreadLatest(db, "1", BIND_ARGS_NONE);
+            } else {
+                updateThreadLatest(db, "thread_id IN (SELECT _id FROM threads" +
+                        threadSelection + ")", whereArgs);
+            }
 
             db.setTransactionSuccessful();
         } catch (Throwable ex) {
@@ -455,46 +762,220 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    private static void updateThreadDate(SQLiteDatabase db, long thread_id) {
-        if (thread_id <= 0) {
+    /**
+     * Update only the given threads. Those of them that no longer have any messages in either
+     * the sms or pdu tables are deleted, the message count, date, snippet and error columns of
+     * the remaining ones are recomputed. Unlike {@link #updateThreads(SQLiteDatabase, String,
+     * String[])} this never looks at threads that were not touched by the caller.
+     *
+     * Runs in the transaction of the caller, if any, and throws if the update fails so that the
+     * caller does not report a change that was rolled back.
+     */
+    public static void updateThreads(SQLiteDatabase db, Collection<Long> threadIds) {
+        if (threadIds == null || threadIds.isEmpty()) {
             return;
         }
-
+        final ArrayList<Long> ids = new ArrayList<Long>(threadIds);
+        db.beginTransaction();
         try {
-            db.execSQL(
-                    "  UPDATE threads" +
-                            "  SET" +
-                            "  date =" +
-                            "    (SELECT date FROM" +
-                            "        (SELECT date * 1000 AS date, thread_id FROM pdu" +
-                            "         UNION SELECT date, thread_id FROM sms)" +
-                            "     WHERE thread_id = " + thread_id + " ORDER BY date DESC LIMIT 1)" +
-                            "  WHERE threads._id = " + thread_id + ";");
-        } catch (Throwable ex) {
-            Log.e(TAG, ex.getMessage(), ex);
+            int deletedThreads = 0;
+            for (int start = 0; start < ids.size(); start += MAX_THREAD_IDS_PER_STATEMENT) {
+                final String idList = TextUtils.join(",", ids.subList(start,
+                        Math.min(ids.size(), start + MAX_THREAD_IDS_PER_STATEMENT)));
+                // Delete the threads without messages left, through the thread_id indices of
+                // sms and pdu.
+                deletedThreads += db.delete(MmsSmsProvider.TABLE_THREADS,
+                        "_id IN (" + idList + ")" +
+                        " AND NOT EXISTS (SELECT 1 FROM sms WHERE thread_id = threads._id)" +
+                        " AND NOT EXISTS (SELECT 1 FROM pdu WHERE thread_id = threads._id)",
+                        null);
+
+                final String threadSelection = " WHERE threads._id IN (" + idList + ")";
+                db.execSQL(UPDATE_THREADS_MESSAGE_COUNT + threadSelection);
+                db.execSQL(UPDATE_THREADS_UNREAD_COUNT + threadSelection);
+                db.execSQL(UPDATE_THREADS_DATE_SNIPPET + threadSelection);
+                db.execSQL(UPDATE_THREADS_ERROR + threadSelection);
+                updateThreadLatest(db, "thread_id IN (" + idList + ")", BIND_ARGS_NONE);
+            }
+            if (deletedThreads > 0) {
+                // If this deleted a row, let's remove orphaned canonical_addresses
+                removeUnferencedCanonicalAddresses(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
     }
 
-    public static void updateThreadsDate(SQLiteDatabase db, String where, String[] whereArgs) {
-        db.beginTransaction();
-        try {
-            if (where == null) {
-                where = "";
-            } else {
-                where = "WHERE (" + where + ")";
+    /**
+     * Return the distinct thread ids of the rows in 'table' (sms or pdu) matching the 'where'
+     * condition. Must be called before those rows are deleted.
+     */
+    public static HashSet<Long> getThreadIdsForMessages(SQLiteDatabase db, String table,
+            String where, String[] whereArgs) {
+        HashSet<Long> threadIds = new HashSet<Long>();
+        Cursor c = db.query(true, table, new String[] { "thread_id" },
+                DatabaseUtils.concatenateWhere("thread_id IS NOT NULL", where), whereArgs,
+                null, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    threadIds.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
             }
-            String query = "SELECT _id FROM threads " + where;
-            Cursor c = db.rawQuery(query, whereArgs);
-            if (c != null) {
-                try {
-                    Log.d(TAG, "updateThread count : " + c.getCount());
-                    while (c.moveToNext()) {
-                        updateThreadDate(db, c.getInt(0));
-                    }
-                } finally {
-                    c.close();
+        }
+        return threadIds;
+    }
+
+    /**
+     * Return the statement removing the thread_latest rows of the threads matching
+     * 'threadIdFilter', a condition on thread_id.
+     */
+    private static String deleteThreadLatestSql(String threadIdFilter) {
+        return "DELETE FROM " + MmsSmsProvider.TABLE_THREAD_LATEST +
+                " WHERE " + threadIdFilter;
+    }
+
+    /**
+     * Return the statement recording the newest message of each thread matching
+     * 'threadIdFilter' in thread_latest. SQLite returns the bare columns of the row holding
+     * the MAX(), and the filter is pushed down to the (thread_id, date) indexes. Messages
+     * without a date are never the newest, as in the grouped query of
+     * MmsSmsProvider.getConversations().
+     */
+    private static String insertThreadLatestSql(String threadIdFilter) {
+        return "INSERT OR REPLACE INTO " + MmsSmsProvider.TABLE_THREAD_LATEST +
+                " (thread_id, msg_id, is_mms, normalized_date)" +
+                " SELECT thread_id, msg_id, is_mms, MAX(normalized_date)" +
+                " FROM (" + THREAD_LATEST_CANDIDATES + ")" +
+                " WHERE thread_id IS NOT NULL AND normalized_date IS NOT NULL" +
+                " AND (" + threadIdFilter + ")" +
+                " GROUP BY thread_id";
+    }
+
+    /**
+     * Recompute the thread_latest rows of the threads matching 'threadIdFilter'.
+     */
+    private static void updateThreadLatest(SQLiteDatabase db, String threadIdFilter,
+            String[] whereArgs) {
+        db.execSQL(deleteThreadLatestSql(threadIdFilter), whereArgs);
+        db.execSQL(insertThreadLatestSql(threadIdFilter), whereArgs);
+    }
+
+    /**
+     * Return the statements adding 'delta' to the message_counters row of a message, if
+     * 'condition' holds. 'row' is "new" or "old" in a trigger on the sms or pdu table.
+     */
+    private static String messageCountersDeltaSql(int transport, String row, int delta,
+            String condition) {
+        final String box = "ifnull(" + row + "." + (transport == MESSAGE_COUNTERS_SMS
+                ? Sms.TYPE : Mms.MESSAGE_BOX) + ", 0)";
+        final String subId = "ifnull(" + row + "." + Sms.SUBSCRIPTION_ID + ", -1)";
+        final String unread = "ifnull(" + row + "." + Sms.READ + " = 0, 0)";
+        final String key = "transport = " + transport + " AND box = " + box +
+                " AND sub_id = " + subId;
+        return "INSERT OR IGNORE INTO " + MmsSmsProvider.TABLE_MESSAGE_COUNTERS +
+                " (transport, box, sub_id, total, unread)" +
+                " SELECT " + transport + ", " + box + ", " + subId + ", 0, 0" +
+                " WHERE " + condition + "; " +
+                "UPDATE " + MmsSmsProvider.TABLE_MESSAGE_COUNTERS +
+                " SET total = total + (" + delta + ")," +
+                " unread = unread + (" + delta + ") * " + unread +
+                " WHERE " + key + " AND " + condition + "; ";
+    }
+
+    /**
+     * Check the message_counters table against the sms and pdu tables. If 'repair' is set and
+     * they disagree, the table is rebuilt. Returns whether the table was consistent.
+     */
+    public static boolean verifyMessageCounters(SQLiteDatabase db, boolean repair) {
+        // Compound selects associate to the left, so the UNION ALL is wrapped.
+        final String expected = "SELECT * FROM (" + MESSAGE_COUNTERS_CONTENT + ")";
+        final String counters = "SELECT transport, box, sub_id, total, unread FROM " +
+                MmsSmsProvider.TABLE_MESSAGE_COUNTERS + " WHERE total != 0 OR unread != 0";
+        long differences = DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM (" + expected + " EXCEPT " + counters + ")", null);
+        differences += DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM (" + counters + " EXCEPT " + expected + ")", null);
+        if (differences == 0) {
+            return true;
+        }
+        localLog("verifyMessageCounters: " + differences + " stale counters, repair=" + repair);
+        if (repair) {
+            db.beginTransaction();
+            try {
+                rebuildMessageCounters(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return false;
+    }
+
+    private static void rebuildMessageCounters(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + MmsSmsProvider.TABLE_MESSAGE_COUNTERS);
+        db.execSQL("INSERT INTO " + MmsSmsProvider.TABLE_MESSAGE_COUNTERS +
+                " (transport, box, sub_id, total, unread)" + MESSAGE_COUNTERS_CONTENT);
+    }
+
+    /**
+     * Check the incrementally maintained counters of every thread (message_count,
+     * unread_count and error) against the messages it contains. If 'repair' is set the
+     * threads that drifted are recomputed. Returns the number of threads with stale counters.
+     */
+    public static int verifyThreadCounters(SQLiteDatabase db, boolean repair) {
+        HashSet<Long> staleThreads = new HashSet<Long>();
+        Cursor c = db.rawQuery(SELECT_THREADS_WITH_STALE_COUNTERS, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    staleThreads.add(c.getLong(0));
                 }
+            } finally {
+                c.close();
+            }
+        }
+        if (!staleThreads.isEmpty()) {
+            localLog("verifyThreadCounters: " + staleThreads.size()
+                    + " threads with stale counters, repair=" + repair);
+            if (repair) {
+                updateThreads(db, staleThreads);
             }
+        }
+        return staleThreads.size();
+    }
+
+    /**
+     * Set the date of every thread matching the 'where' condition to that of its most recent
+     * message. Note that the condition is applied to the threads table. The latest date of each
+     * side is a MAX() over the (thread_id, date) indexes of the sms and pdu tables, so a single
+     * statement updates all matched threads without scanning the messages.
+     */
+    public static void updateThreadsDate(SQLiteDatabase db, String where, String[] whereArgs) {
+        if (where == null) {
+            where = "1";
+        }
+        if (whereArgs == null) {
+            whereArgs = BIND_ARGS_NONE;
+        }
+        db.beginTransaction();
+        try {
+            db.execSQL(
+                    " UPDATE threads" +
+                    " SET date = (" +
+                        " SELECT MAX(latest) FROM (" +
+                            " SELECT MAX(date) * 1000 AS latest FROM pdu" +
+                            " WHERE thread_id = threads._id" +
+                            " UNION ALL" +
+                            " SELECT MAX(date) FROM sms" +
+                            " WHERE thread_id = threads._id" +
+                        " )" +
+                    " )" +
+                    " WHERE _id > 0 AND (" + where + ");",
+                    whereArgs);
             db.setTransactionSuccessful();
         } catch (Throwable ex) {
             Log.e(TAG, ex.getMessage(), ex);
@@ -515,11 +996,17 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
             c.close();
         }
 
-        // Delete the specified message.
-        int rows = db.delete("sms", "_id=" + message_id, null);
-        if (thread_id > 0) {
-            // Update its thread.
-            updateThread(db, thread_id);
+        // Delete the specified message, and update its thread in the same transaction.
+        int rows;
+        db.beginTransaction();
+        try {
+            rows = db.delete("sms", "_id=" + message_id, null);
+            if (thread_id > 0) {
+                updateThread(db, thread_id);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
         return rows;
     }
@@ -547,6 +1034,14 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
             mContext.sendBroadcast(intent);
         }
+        createTables(db);
+    }
+
+    /**
+     * Create all the tables, triggers and indices of the current version.
+     */
+    @VisibleForTesting
+    void createTables(SQLiteDatabase db) {
         createMmsTables(db);
         createSmsTables(db);
         createCommonTables(db);
@@ -554,6 +1049,8 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         createMmsTriggers(db);
         createWordsTables(db);
         createIndices(db);
+        createThreadLatestTable(db);
+        createMessageCountersTable(db);
     }
 
     private static void localLog(String logMsg) {
@@ -591,6 +1088,15 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
         // Improve the performance of deleting Mms.
         dropMmsTriggers(db);
+
+        if (isWordsIndexRebuilding(db)) {
+            startWordsIndexRebuild(db);
+        }
+
+        // The raw table is only used in DE storage. Helpers created by tests don't schedule.
+        if (this == sDeInstance) {
+            RawMessagePurgeService.schedule(mContext);
+        }
     }
 
     private void dropMmsTriggers(SQLiteDatabase db) {
@@ -613,104 +1119,252 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    // When upgrading the database we need to populate the words
-    // table with the rows out of sms and part.
-    private void populateWordsTable(SQLiteDatabase db) {
-        final String TABLE_WORDS = "words";
-        {
-            Cursor smsRows = db.query(
-                    "sms",
-                    new String[] { Sms._ID, Sms.BODY },
-                    null,
-                    null,
-                    null,
-                    null,
-                    null);
-            try {
-                if (smsRows != null) {
-                    smsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (smsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = smsRows.getLong(0);        // 0 for Sms._ID
-                        String body = smsRows.getString(1);  // 1 for Sms.BODY
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
-                }
-            } finally {
-                if (smsRows != null) {
-                    smsRows.close();
+    private static void createWordsRebuildTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_WORDS_REBUILD + " (" +
+                "table_to_use INTEGER PRIMARY KEY," +
+                "last_id INTEGER NOT NULL," +
+                "max_id INTEGER NOT NULL);");
+    }
+
+    /**
+     * Queue the indexing of the current sms and part rows into the words table. The rows are
+     * indexed in the background by {@link #rebuildWordsIndex} once the database is open.
+     */
+    private static void scheduleWordsIndexRebuild(SQLiteDatabase db) {
+        createWordsRebuildTable(db);
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_WORDS_REBUILD +
+                " SELECT 1, 0, max_id FROM (SELECT MAX(_id) AS max_id FROM sms)" +
+                " WHERE max_id IS NOT NULL");
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_WORDS_REBUILD +
+                " SELECT 2, 0, max_id FROM (SELECT MAX(_id) AS max_id FROM part)" +
+                " WHERE max_id IS NOT NULL");
+    }
+
+    /**
+     * Return true while the words table does not index all sms and part rows yet.
+     */
+    public static boolean isWordsIndexRebuilding(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, TABLE_WORDS_REBUILD) > 0;
+    }
+
+    private static void startWordsIndexRebuild(final SQLiteDatabase db) {
+        getWordsRebuildExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebuildWordsIndex(db);
+                } catch (SQLiteException e) {
+                    // The watermark is left in place, the rebuild resumes on the next open.
+                    Log.e(TAG, "rebuildWordsIndex: ex. ", e);
                 }
             }
+        });
+    }
+
+    private static synchronized ExecutorService getWordsRebuildExecutor() {
+        if (sWordsRebuildExecutor == null) {
+            sWordsRebuildExecutor = Executors.newSingleThreadExecutor();
         }
+        return sWordsRebuildExecutor;
+    }
 
-        {
-            Cursor mmsRows = db.query(
-                    "part",
-                    new String[] { Part._ID, Part.TEXT },
-                    "ct = 'text/plain'",
-                    null,
-                    null,
-                    null,
-                    null);
+    /**
+     * Index the rows queued by {@link #scheduleWordsIndexRebuild} into the words table, at most
+     * {@link #WORDS_REBUILD_BATCH_SIZE} source rows per transaction. The watermark is advanced in
+     * the same transaction as each batch, so an interrupted rebuild neither loses nor duplicates
+     * rows and resumes where it stopped.
+     */
+    @VisibleForTesting
+    static void rebuildWordsIndex(SQLiteDatabase db) {
+        long start = SystemClock.elapsedRealtime();
+        int batches = 0;
+        while (true) {
+            long tableToUse;
+            long lastId;
+            long maxId;
+            Cursor c = db.rawQuery("SELECT table_to_use, last_id, max_id FROM " +
+                    TABLE_WORDS_REBUILD + " ORDER BY table_to_use LIMIT 1", null);
             try {
-                if (mmsRows != null) {
-                    mmsRows.moveToPosition(-1);
-                    ContentValues cv = new ContentValues();
-                    while (mmsRows.moveToNext()) {
-                        cv.clear();
-
-                        long id = mmsRows.getLong(0);         // 0 for Part._ID
-                        String body = mmsRows.getString(1);   // 1 for Part.TEXT
-
-                        cv.put(Telephony.MmsSms.WordsTable.ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, body);
-                        cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, id);
-                        cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-                        db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
-                    }
+                if (!c.moveToFirst()) {
+                    break;
                 }
+                tableToUse = c.getLong(0);
+                lastId = c.getLong(1);
+                maxId = c.getLong(2);
             } finally {
-                if (mmsRows != null) {
-                    mmsRows.close();
+                c.close();
+            }
+            String source = tableToUse == 1 ? SmsProvider.TABLE_SMS : MmsProvider.TABLE_PART;
+            db.beginTransaction();
+            try {
+                String[] range = new String[] { String.valueOf(lastId), String.valueOf(maxId) };
+                long batchEnd = DatabaseUtils.longForQuery(db,
+                        "SELECT IFNULL(MAX(_id), -1) FROM (SELECT _id FROM " + source +
+                        " WHERE _id > ? AND _id <= ? ORDER BY _id LIMIT " +
+                        WORDS_REBUILD_BATCH_SIZE + ")", range);
+                if (batchEnd < 0) {
+                    db.delete(TABLE_WORDS_REBUILD, "table_to_use = " + tableToUse, null);
+                } else {
+                    Object[] batch = new Object[] { lastId, batchEnd };
+                    // A row may already be indexed if an older version of the providers
+                    // indexed it on insert after reusing the _id of a deleted row.
+                    if (tableToUse == 1) {
+                        db.execSQL("INSERT OR REPLACE INTO " + SmsProvider.TABLE_SMS_WORDS +
+                                " (docid, body) SELECT _id, body FROM sms" +
+                                " WHERE _id > ? AND _id <= ?", batch);
+                    } else {
+                        db.execSQL("INSERT OR REPLACE INTO " + MmsProvider.TABLE_PART_WORDS +
+                                " (docid, text) SELECT _id, text FROM part" +
+                                " WHERE ct = 'text/plain' AND _id > ? AND _id <= ?", batch);
+                    }
+                    db.execSQL("UPDATE " + TABLE_WORDS_REBUILD + " SET last_id = ?" +
+                            " WHERE table_to_use = ?", new Object[] { batchEnd, tableToUse });
                 }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
+            batches++;
+        }
+        if (batches > 0) {
+            Log.d(TAG, "rebuildWordsIndex: " + batches + " batches in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
         }
     }
 
-    private void createWordsTables(SQLiteDatabase db) {
+    /**
+     * Index 'text' as the text of the row 'rowId' of the sms (tableToUse 1) or part (2) table,
+     * unless the row is still waiting for {@link #rebuildWordsIndex}, which indexes it then.
+     * An external content index can't tell whether a row was indexed, and deleting or updating
+     * a row that was not corrupts it, so this must be called in the transaction inserting the
+     * row and the row must not be inserted if it fails.
+     *
+     * @throws android.database.SQLException if the row could not be indexed
+     */
+    static void insertWords(SQLiteDatabase db, int tableToUse, long rowId, String text) {
+        SQLiteStatement insert = db.compileStatement(getInsertWordsSql(tableToUse));
         try {
-            db.execSQL("CREATE VIRTUAL TABLE words USING FTS3 (_id INTEGER PRIMARY KEY, index_text TEXT, source_id INTEGER, table_to_use INTEGER);");
-
-            // monitor the sms table
-            // NOTE don't handle inserts using a trigger because it has an unwanted
-            // side effect:  the value returned for the last row ends up being the
-            // id of one of the trigger insert not the original row insert.
-            // Handle inserts manually in the provider.
-            db.execSQL("CREATE TRIGGER sms_words_update AFTER UPDATE ON sms BEGIN UPDATE words " +
-                    " SET index_text = NEW.body WHERE (source_id=NEW._id AND table_to_use=1); " +
-                    " END;");
-            db.execSQL("CREATE TRIGGER sms_words_delete AFTER DELETE ON sms BEGIN DELETE FROM " +
-                    "  words WHERE source_id = OLD._id AND table_to_use = 1; END;");
-
-            populateWordsTable(db);
+            bindInsertWords(insert, tableToUse, rowId, text);
+            insert.execute();
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * The statement of {@link #insertWords}, to be bound by {@link #bindInsertWords}.
+     */
+    static String getInsertWordsSql(int tableToUse) {
+        final String table = tableToUse == 1
+                ? SmsProvider.TABLE_SMS_WORDS : MmsProvider.TABLE_PART_WORDS;
+        final String column = tableToUse == 1 ? Sms.BODY : Part.TEXT;
+        return "INSERT INTO " + table + " (docid, " + column + ") SELECT ?, ?" +
+                " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_WORDS_REBUILD +
+                " WHERE table_to_use = ? AND ? > last_id AND ? <= max_id)";
+    }
+
+    static void bindInsertWords(SQLiteStatement insert, int tableToUse, long rowId,
+            String text) {
+        insert.bindLong(1, rowId);
+        if (text == null) {
+            insert.bindNull(2);
+        } else {
+            insert.bindString(2, text);
+        }
+        insert.bindLong(3, tableToUse);
+        insert.bindLong(4, rowId);
+        insert.bindLong(5, rowId);
+    }
+
+    @VisibleForTesting
+    static void createWordsTables(SQLiteDatabase db) {
+        try {
+            // External content tables: the index references the sms and text/plain part rows by
+            // docid (their _id) and reads the text back from them instead of keeping a copy.
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SmsProvider.TABLE_SMS_WORDS +
+                    " USING FTS4 (content=\"" + SmsProvider.TABLE_SMS + "\", " + Sms.BODY + ");");
+            db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + MmsProvider.TABLE_PART_WORDS +
+                    " USING FTS4 (content=\"" + MmsProvider.TABLE_PART + "\", " + Part.TEXT +
+                    ");");
+            createWordsRebuildTable(db);
+            createWordsTriggers(db);
+
+            scheduleWordsIndexRebuild(db);
         } catch (Exception ex) {
             Log.e(TAG, "got exception creating words table: " + ex.toString());
         }
     }
 
+    /**
+     * Keep sms_words and part_words in sync with updates and deletes of their content rows.
+     * An external content index must be told about the old text before it changes, hence the
+     * BEFORE triggers. Rows still waiting for {@link #rebuildWordsIndex} are left alone.
+     */
+    private static void createWordsTriggers(SQLiteDatabase db) {
+        // Triggers of the former FTS3 words table.
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS mms_words_delete");
+
+        // NOTE don't handle inserts using a trigger because it has an unwanted
+        // side effect:  the value returned for the last row ends up being the
+        // id of one of the trigger insert not the original row insert.
+        // Handle inserts manually in the provider.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_update_before");
+        db.execSQL("CREATE TRIGGER sms_words_update_before BEFORE UPDATE OF " + Sms.BODY +
+                " ON " + SmsProvider.TABLE_SMS + " WHEN " + wordsIndexedCondition(1, "old") +
+                " BEGIN DELETE FROM " + SmsProvider.TABLE_SMS_WORDS +
+                " WHERE docid = old._id; END;");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_update");
+        db.execSQL("CREATE TRIGGER sms_words_update AFTER UPDATE OF " + Sms.BODY +
+                " ON " + SmsProvider.TABLE_SMS + " WHEN " + wordsIndexedCondition(1, "new") +
+                " BEGIN INSERT INTO " + SmsProvider.TABLE_SMS_WORDS + " (docid, " + Sms.BODY +
+                ") VALUES (new._id, new." + Sms.BODY + "); END;");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_delete");
+        db.execSQL("CREATE TRIGGER sms_words_delete BEFORE DELETE ON " + SmsProvider.TABLE_SMS +
+                " WHEN " + wordsIndexedCondition(1, "old") +
+                " BEGIN DELETE FROM " + SmsProvider.TABLE_SMS_WORDS +
+                " WHERE docid = old._id; END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS part_words_update_before");
+        db.execSQL("CREATE TRIGGER part_words_update_before BEFORE UPDATE OF " + Part.TEXT +
+                ", " + Part.CONTENT_TYPE + " ON " + MmsProvider.TABLE_PART +
+                " WHEN old." + Part.CONTENT_TYPE + " = 'text/plain' AND " +
+                wordsIndexedCondition(2, "old") +
+                " BEGIN DELETE FROM " + MmsProvider.TABLE_PART_WORDS +
+                " WHERE docid = old._id; END;");
+        db.execSQL("DROP TRIGGER IF EXISTS part_words_update");
+        db.execSQL("CREATE TRIGGER part_words_update AFTER UPDATE OF " + Part.TEXT +
+                ", " + Part.CONTENT_TYPE + " ON " + MmsProvider.TABLE_PART +
+                " WHEN new." + Part.CONTENT_TYPE + " = 'text/plain' AND " +
+                wordsIndexedCondition(2, "new") +
+                " BEGIN INSERT INTO " + MmsProvider.TABLE_PART_WORDS + " (docid, " + Part.TEXT +
+                ") VALUES (new._id, new." + Part.TEXT + "); END;");
+        db.execSQL("DROP TRIGGER IF EXISTS part_words_delete");
+        db.execSQL("CREATE TRIGGER part_words_delete BEFORE DELETE ON " +
+                MmsProvider.TABLE_PART +
+                " WHEN old." + Part.CONTENT_TYPE + " = 'text/plain' AND " +
+                wordsIndexedCondition(2, "old") +
+                " BEGIN DELETE FROM " + MmsProvider.TABLE_PART_WORDS +
+                " WHERE docid = old._id; END;");
+    }
+
+    // True when the row is not waiting for the background rebuild of the words index.
+    private static String wordsIndexedCondition(int tableToUse, String row) {
+        return "NOT EXISTS (SELECT 1 FROM " + TABLE_WORDS_REBUILD +
+                " WHERE table_to_use = " + tableToUse + " AND " + row + "._id > last_id" +
+                " AND " + row + "._id <= max_id)";
+    }
+
     private void createIndices(SQLiteDatabase db) {
         createThreadIdIndex(db);
         createThreadIdDateIndex(db);
+        createPduThreadIdDateIndex(db);
         createPartMidIndex(db);
         createAddrMsgIdIndex(db);
         createPduPartIndex(db);
+        createAddressKeyIndices(db);
+        createMessageStateIndices(db);
+        createRawIndices(db);
     }
 
     private void createPduPartIndex(SQLiteDatabase db) {
@@ -740,6 +1394,15 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    private void createPduThreadIdDateIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS pduThreadIdDateIndex ON " +
+            MmsProvider.TABLE_PDU + " (thread_id, date);");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
     private void createPartMidIndex(SQLiteDatabase db) {
         try {
             db.execSQL("CREATE INDEX IF NOT EXISTS partMidIndex ON part (mid)");
@@ -756,48 +1419,392 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Index sms and addr rows by the trailing characters of their normalized address, so that
+     * lookups by phone number only confirm a few candidates with PHONE_NUMBERS_EQUAL.
+     */
+    private void createAddressKeyIndices(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS smsAddressKeyIndex ON sms ("
+                    + addressKeyExpression(Sms.ADDRESS) + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS addrAddressKeyIndex ON addr ("
+                    + addressKeyExpression(Addr.ADDRESS) + ")");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    /**
+     * Index the few locked, undelivered and pending messages, so that the queries run on app
+     * start and on every send retry do not scan the message tables. The partial indices are only
+     * used by queries repeating their WHERE clause.
+     */
+    private void createMessageStateIndices(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS smsLockedIndex ON sms (thread_id)"
+                    + " WHERE " + SMS_LOCKED_CONDITION);
+            db.execSQL("CREATE INDEX IF NOT EXISTS pduLockedIndex ON " + MmsProvider.TABLE_PDU
+                    + " (thread_id) WHERE " + PDU_LOCKED_CONDITION);
+            // Undelivered sms are found through typeThreadIdIndex.
+            db.execSQL("CREATE INDEX IF NOT EXISTS pduOutboxIndex ON " + MmsProvider.TABLE_PDU
+                    + " (thread_id, date) WHERE " + PDU_OUTBOX_CONDITION);
+            db.execSQL("CREATE INDEX IF NOT EXISTS pendingMsgsMsgIdIndex ON "
+                    + MmsSmsProvider.TABLE_PENDING_MSG + " (" + PendingMessages.MSG_ID + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS pendingMsgsDueTimeIndex ON "
+                    + MmsSmsProvider.TABLE_PENDING_MSG + " (" + PendingMessages.PROTO_TYPE + ", "
+                    + PendingMessages.DUE_TIME + ")");
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    /**
+     * Index the raw table for the lookups of the parts of a multipart message by the inbound sms
+     * handler, and for the purge of the rows marked deleted.
+     */
+    private void createRawIndices(SQLiteDatabase db) {
+        try {
+            db.execSQL("CREATE INDEX IF NOT EXISTS rawReassemblyIndex ON " + SmsProvider.TABLE_RAW
+                    + " (address, reference_number, count)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS rawDeletedDateIndex ON "
+                    + SmsProvider.TABLE_RAW + " (date) WHERE " + RAW_DELETED_CONDITION);
+        } catch (Exception ex) {
+            Log.e(TAG, "got exception creating indices: " + ex.toString());
+        }
+    }
+
+    /**
+     * Return the SQL expression computing the lookup key of the address held in {@code column}.
+     * Queries must use this exact expression for SQLite to pick the address key indices.
+     */
+    static String addressKeyExpression(String column) {
+        String expression = column;
+        for (String separator : ADDRESS_KEY_SEPARATORS) {
+            expression = "replace(" + expression + ", '" + separator + "', '')";
+        }
+        return "substr(" + expression + ", -" + ADDRESS_KEY_LENGTH + ")";
+    }
+
+    /**
+     * Return the lookup key of {@code address}, as computed by {@link #addressKeyExpression}.
+     */
+    static String getAddressKey(String address) {
+        String key = address;
+        for (String separator : ADDRESS_KEY_SEPARATORS) {
+            key = key.replace(separator, "");
+        }
+        return key.length() > ADDRESS_KEY_LENGTH
+                ? key.substring(key.length() - ADDRESS_KEY_LENGTH) : key;
+    }
+
+    /**
+     * Return the id of the thread of {@code address}, creating it if needed. Goes through
+     * {@link #getOrCreateThreadId(SQLiteDatabase, List)} on {@code db}, inside the transaction
+     * of the caller if any, when {@code helper} is the shared helper, and through
+     * MmsSmsProvider otherwise.
+     *
+     * @throws IllegalArgumentException if the thread cannot be found or created, as
+     *         {@link Threads#getOrCreateThreadId(Context, String)} does
+     */
+    static long getOrCreateThreadId(Context context, SQLiteOpenHelper helper, SQLiteDatabase db,
+            String address) {
+        if (!(helper instanceof MmsSmsDatabaseHelper)) {
+            return Threads.getOrCreateThreadId(context, address);
+        }
+        long threadId = ((MmsSmsDatabaseHelper) helper).getOrCreateThreadId(db,
+                Collections.singletonList(address));
+        if (threadId < 0) {
+            throw new IllegalArgumentException("Unable to find or allocate a thread ID.");
+        }
+        return threadId;
+    }
+
+    /**
+     * Return the id of the thread with these recipients, creating the thread and the canonical
+     * addresses of the recipients if needed, or -1 if there are no recipients. This is what
+     * MmsSmsProvider answers to Threads.getOrCreateThreadId(), without going through a
+     * content resolver and a cursor. Runs in one transaction on {@code db}, nested in the
+     * caller's if any, so that concurrent callers do not create the same thread twice.
+     *
+     * A new thread is notified on {@link MmsSms#CONTENT_URI} once committed; when the caller
+     * holds a transaction, it is up to the caller to notify after its own commit.
+     */
+    long getOrCreateThreadId(SQLiteDatabase db, List<String> recipients) {
+        long threadId = -1;
+        boolean created = false;
+        db.beginTransaction();
+        try {
+            Set<Long> addressIds = getAddressIds(db, recipients);
+            if (addressIds.size() == 0) {
+                Log.e(TAG, "getThreadId: NO receipients specified -- NOT creating thread",
+                        new Exception());
+            } else {
+                String recipientIds = getSpaceSeparatedNumbers(getSortedSet(addressIds));
+
+                // Find the thread with the given recipients
+                threadId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(_id), -1) FROM " +
+                        MmsSmsProvider.TABLE_THREADS + " WHERE recipient_ids=?",
+                        new String[] { recipientIds });
+                if (threadId < 0) {
+                    // No thread with those recipients exists, so create the thread.
+                    Log.d(TAG, "getThreadId: create new thread_id for recipients " +
+                            /*recipients*/ "xxxxxxxx");
+                    threadId = insertThread(db, recipientIds, recipients.size());
+                    created = true;
+                }
+            }
+            // Also when there is no thread to return: failing would roll back the transaction
+            // of the caller.
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (created && !db.inTransaction()) {
+            getChangeNotifier().notifyChange(MmsSms.CONTENT_URI);
+        }
+        return threadId;
+    }
+
+    private synchronized ChangeNotifier getChangeNotifier() {
+        if (mChangeNotifier == null) {
+            mChangeNotifier = new ChangeNotifier(mContext);
+        }
+        return mChangeNotifier;
+    }
+
+    /**
+     * Return the canonical address IDs for these addresses.
+     */
+    private Set<Long> getAddressIds(SQLiteDatabase db, List<String> addresses) {
+        Set<Long> result = new HashSet<Long>(addresses.size());
+
+        for (String address : addresses) {
+            // Same as Mms.isEmailAddress(), which would extract the addr-spec a second time.
+            boolean isEmail = false;
+            if (!TextUtils.isEmpty(address)) {
+                String addrSpec = Mms.extractAddrSpec(address);
+                if (Patterns.EMAIL_ADDRESS.matcher(addrSpec).matches()) {
+                    address = addrSpec;
+                    isEmail = true;
+                }
+            }
+            if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
+                long id = getSingleAddressId(db, address, isEmail);
+                if (id != -1L) {
+                    result.add(id);
+                } else {
+                    Log.e(TAG, "getAddressIds: address ID not found for " + address);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the canonical address ID for this address.
+     */
+    private long getSingleAddressId(SQLiteDatabase db, String address, boolean isEmail) {
+        boolean isPhoneNumber = Mms.isPhoneNumber(address);
+
+        // We lowercase all email addresses, but not addresses that aren't numbers, because
+        // that would incorrectly turn an address such as "My Vodafone" into "my vodafone"
+        // and the thread title would be incorrect when displayed in the UI.
+        String refinedAddress = isEmail ? address.toLowerCase() : address;
+
+        String selection = "address=?";
+        String[] selectionArgs;
+
+        if (!isPhoneNumber) {
+            selectionArgs = new String[] { refinedAddress };
+        } else {
+            loadPhoneNumberComparison();
+            selection += " OR PHONE_NUMBERS_EQUAL(address, ?, " +
+                        (mUseStrictPhoneNumberComparation ? "1)" : "0, " + mMinMatch + ")");
+            selectionArgs = new String[] { refinedAddress, refinedAddress };
+        }
+
+        long retVal = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(_id), -1) FROM" +
+                " canonical_addresses WHERE " + selection, selectionArgs);
+        if (retVal == -1L) {
+            ContentValues contentValues = new ContentValues(1);
+            contentValues.put(Telephony.CanonicalAddressesColumns.ADDRESS, refinedAddress);
+
+            retVal = db.insert("canonical_addresses",
+                    Telephony.CanonicalAddressesColumns.ADDRESS, contentValues);
+
+            Log.d(TAG, "getSingleAddressId: insert new canonical_address for " +
+                    /*address*/ "xxxxxx" + ", _id=" + retVal);
+        }
+        return retVal;
+    }
+
+    private synchronized void loadPhoneNumberComparison() {
+        if (mPhoneNumberComparisonLoaded) {
+            return;
+        }
+        mUseStrictPhoneNumberComparation = mContext.getResources().getBoolean(
+                com.android.internal.R.bool.config_use_strict_phone_number_comparation);
+        mMinMatch = mContext.getResources().getInteger(
+                com.android.internal.R.integer.config_phonenumber_compare_min_match);
+        mPhoneNumberComparisonLoaded = true;
+    }
+
+    /**
+     * Return a sorted array of the given Set of Longs.
+     */
+    private static long[] getSortedSet(Set<Long> numbers) {
+        int size = numbers.size();
+        long[] result = new long[size];
+        int i = 0;
+
+        for (Long number : numbers) {
+            result[i++] = number;
+        }
+
+        if (size > 1) {
+            Arrays.sort(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return a String of the numbers in the given array, in order,
+     * separated by spaces.
+     */
+    private static String getSpaceSeparatedNumbers(long[] numbers) {
+        int size = numbers.length;
+        StringBuilder buffer = new StringBuilder();
+
+        for (int i = 0; i < size; i++) {
+            if (i != 0) {
+                buffer.append(' ');
+            }
+            buffer.append(numbers[i]);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Insert a record for a new thread.
+     */
+    private long insertThread(SQLiteDatabase db, String recipientIds, int numberOfRecipients) {
+        ContentValues values = new ContentValues(4);
+
+        long date = System.currentTimeMillis();
+        values.put(Telephony.ThreadsColumns.DATE, date - date % 1000);
+        values.put(Telephony.ThreadsColumns.RECIPIENT_IDS, recipientIds);
+        if (numberOfRecipients > 1) {
+            values.put(Threads.TYPE, Threads.BROADCAST_THREAD);
+        }
+        values.put(Telephony.ThreadsColumns.MESSAGE_COUNT, 0);
+
+        long result = db.insert(MmsSmsProvider.TABLE_THREADS, null, values);
+        Log.d(TAG, "insertThread: created new thread_id " + result +
+                " for recipientIds " + /*recipientIds*/ "xxxxxxx");
+        return result;
+    }
+
+    /**
+     * Returns the statement creating the pdu table as {@code tableName}.
+     */
+    private static String getPduTableSql(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                Mms._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                Mms.THREAD_ID + " INTEGER," +
+                Mms.DATE + " INTEGER," +
+                Mms.DATE_SENT + " INTEGER DEFAULT 0," +
+                Mms.MESSAGE_BOX + " INTEGER," +
+                Mms.READ + " INTEGER DEFAULT 0," +
+                Mms.MESSAGE_ID + " TEXT," +
+                Mms.SUBJECT + " TEXT," +
+                Mms.SUBJECT_CHARSET + " INTEGER," +
+                Mms.CONTENT_TYPE + " TEXT," +
+                Mms.CONTENT_LOCATION + " TEXT," +
+                Mms.EXPIRY + " INTEGER," +
+                Mms.MESSAGE_CLASS + " TEXT," +
+                Mms.MESSAGE_TYPE + " INTEGER," +
+                Mms.MMS_VERSION + " INTEGER," +
+                Mms.MESSAGE_SIZE + " INTEGER," +
+                Mms.PRIORITY + " INTEGER," +
+                Mms.READ_REPORT + " INTEGER," +
+                Mms.REPORT_ALLOWED + " INTEGER," +
+                Mms.RESPONSE_STATUS + " INTEGER," +
+                Mms.STATUS + " INTEGER," +
+                Mms.TRANSACTION_ID + " TEXT," +
+                Mms.RETRIEVE_STATUS + " INTEGER," +
+                Mms.RETRIEVE_TEXT + " TEXT," +
+                Mms.RETRIEVE_TEXT_CHARSET + " INTEGER," +
+                Mms.READ_STATUS + " INTEGER," +
+                Mms.CONTENT_CLASS + " INTEGER," +
+                Mms.RESPONSE_TEXT + " TEXT," +
+                Mms.DELIVERY_TIME + " INTEGER," +
+                Mms.DELIVERY_REPORT + " INTEGER," +
+                Mms.LOCKED + " INTEGER DEFAULT 0," +
+                Mms.SUBSCRIPTION_ID + " INTEGER DEFAULT "
+                        + SubscriptionManager.INVALID_SUBSCRIPTION_ID + ", " +
+                Mms.SEEN + " INTEGER DEFAULT 0," +
+                Mms.CREATOR + " TEXT," +
+                Mms.TEXT_ONLY + " INTEGER DEFAULT 0);";
+    }
+
+    /**
+     * Returns the statement creating the part table as {@code tableName}.
+     */
+    private static String getPartTableSql(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                Part._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                Part.MSG_ID + " INTEGER," +
+                Part.SEQ + " INTEGER DEFAULT 0," +
+                Part.CONTENT_TYPE + " TEXT," +
+                Part.NAME + " TEXT," +
+                Part.CHARSET + " INTEGER," +
+                Part.CONTENT_DISPOSITION + " TEXT," +
+                Part.FILENAME + " TEXT," +
+                Part.CONTENT_ID + " TEXT," +
+                Part.CONTENT_LOCATION + " TEXT," +
+                Part.CT_START + " INTEGER," +
+                Part.CT_TYPE + " TEXT," +
+                Part._DATA + " TEXT," +
+                Part.TEXT + " TEXT);";
+    }
+
+    /**
+     * Returns the statement creating the canonical_addresses table as {@code tableName}.
+     */
+    private static String getCanonicalAddressesTableSql(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "address TEXT);";
+    }
+
+    /**
+     * Returns the statement creating the threads table as {@code tableName}.
+     */
+    private static String getThreadsTableSql(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                Threads._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                Threads.DATE + " INTEGER DEFAULT 0," +
+                Threads.MESSAGE_COUNT + " INTEGER DEFAULT 0," +
+                Threads.RECIPIENT_IDS + " TEXT," +
+                Threads.SNIPPET + " TEXT," +
+                Threads.SNIPPET_CHARSET + " INTEGER DEFAULT 0," +
+                Threads.READ + " INTEGER DEFAULT 1," +
+                Threads.ARCHIVED + " INTEGER DEFAULT 0," +
+                Threads.TYPE + " INTEGER DEFAULT 0," +
+                Threads.ERROR + " INTEGER DEFAULT 0," +
+                Threads.HAS_ATTACHMENT + " INTEGER DEFAULT 0," +
+                Threads.ATTACHMENT_INFO + " TEXT," +
+                Threads.NOTIFICATION + " INTEGER DEFAULT 0," +
+                THREAD_UNREAD_COUNT_COLUMN + " INTEGER DEFAULT 0," +
+                THREAD_ATTACHMENT_COUNT_COLUMN + " INTEGER DEFAULT 0);";
+    }
+
     @VisibleForTesting
     void createMmsTables(SQLiteDatabase db) {
         // N.B.: Whenever the columns here are changed, the columns in
         // {@ref MmsSmsProvider} must be changed to match.
-        db.execSQL("CREATE TABLE " + MmsProvider.TABLE_PDU + " (" +
-                   Mms._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                   Mms.THREAD_ID + " INTEGER," +
-                   Mms.DATE + " INTEGER," +
-                   Mms.DATE_SENT + " INTEGER DEFAULT 0," +
-                   Mms.MESSAGE_BOX + " INTEGER," +
-                   Mms.READ + " INTEGER DEFAULT 0," +
-                   Mms.MESSAGE_ID + " TEXT," +
-                   Mms.SUBJECT + " TEXT," +
-                   Mms.SUBJECT_CHARSET + " INTEGER," +
-                   Mms.CONTENT_TYPE + " TEXT," +
-                   Mms.CONTENT_LOCATION + " TEXT," +
-                   Mms.EXPIRY + " INTEGER," +
-                   Mms.MESSAGE_CLASS + " TEXT," +
-                   Mms.MESSAGE_TYPE + " INTEGER," +
-                   Mms.MMS_VERSION + " INTEGER," +
-                   Mms.MESSAGE_SIZE + " INTEGER," +
-                   Mms.PRIORITY + " INTEGER," +
-                   Mms.READ_REPORT + " INTEGER," +
-                   Mms.REPORT_ALLOWED + " INTEGER," +
-                   Mms.RESPONSE_STATUS + " INTEGER," +
-                   Mms.STATUS + " INTEGER," +
-                   Mms.TRANSACTION_ID + " TEXT," +
-                   Mms.RETRIEVE_STATUS + " INTEGER," +
-                   Mms.RETRIEVE_TEXT + " TEXT," +
-                   Mms.RETRIEVE_TEXT_CHARSET + " INTEGER," +
-                   Mms.READ_STATUS + " INTEGER," +
-                   Mms.CONTENT_CLASS + " INTEGER," +
-                   Mms.RESPONSE_TEXT + " TEXT," +
-                   Mms.DELIVERY_TIME + " INTEGER," +
-                   Mms.DELIVERY_REPORT + " INTEGER," +
-                   Mms.LOCKED + " INTEGER DEFAULT 0," +
-                   Mms.SUBSCRIPTION_ID + " INTEGER DEFAULT "
-                           + SubscriptionManager.INVALID_SUBSCRIPTION_ID + ", " +
-                   Mms.SEEN + " INTEGER DEFAULT 0," +
-                   Mms.CREATOR + " TEXT," +
-                   Mms.TEXT_ONLY + " INTEGER DEFAULT 0" +
-                   ");");
+        db.execSQL(getPduTableSql(MmsProvider.TABLE_PDU));
 
         db.execSQL("CREATE TABLE " + MmsProvider.TABLE_ADDR + " (" +
                    Addr._ID + " INTEGER PRIMARY KEY," +
@@ -807,21 +1814,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    Addr.TYPE + " INTEGER," +
                    Addr.CHARSET + " INTEGER);");
 
-        db.execSQL("CREATE TABLE " + MmsProvider.TABLE_PART + " (" +
-                   Part._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                   Part.MSG_ID + " INTEGER," +
-                   Part.SEQ + " INTEGER DEFAULT 0," +
-                   Part.CONTENT_TYPE + " TEXT," +
-                   Part.NAME + " TEXT," +
-                   Part.CHARSET + " INTEGER," +
-                   Part.CONTENT_DISPOSITION + " TEXT," +
-                   Part.FILENAME + " TEXT," +
-                   Part.CONTENT_ID + " TEXT," +
-                   Part.CONTENT_LOCATION + " TEXT," +
-                   Part.CT_START + " INTEGER," +
-                   Part.CT_TYPE + " TEXT," +
-                   Part._DATA + " TEXT," +
-                   Part.TEXT + " TEXT);");
+        db.execSQL(getPartTableSql(MmsProvider.TABLE_PART));
 
         db.execSQL("CREATE TABLE " + MmsProvider.TABLE_RATE + " (" +
                    Rate.SENT_TIME + " INTEGER);");
@@ -874,13 +1867,16 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 "END;");
 
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_on_insert_part");
-        db.execSQL(PART_UPDATE_THREADS_ON_INSERT_TRIGGER);
+        db.execSQL(PART_ATTACHMENTS_ON_INSERT_TRIGGER);
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_attachments_on_delete_part");
+        db.execSQL(PART_ATTACHMENTS_ON_DELETE_TRIGGER);
 
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_on_update_part");
-        db.execSQL(PART_UPDATE_THREADS_ON_UPDATE_TRIGGER);
+        db.execSQL(PART_ATTACHMENTS_ON_UPDATE_TRIGGER);
 
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_on_update_pdu");
-        db.execSQL(PDU_UPDATE_THREADS_ON_UPDATE_TRIGGER);
+        db.execSQL(PDU_ATTACHMENTS_ON_UPDATE_TRIGGER);
 
         // Delete pending status for a message when it is deleted.
         db.execSQL("DROP TRIGGER IF EXISTS delete_mms_pending_on_delete");
@@ -942,43 +1938,14 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "     " + PendingMessages.ERROR_CODE + "," +
                    "     " + PendingMessages.RETRY_INDEX + "," +
                    "     " + PendingMessages.DUE_TIME + ") " +
-                   "  VALUES " +
-                   "    (" + MmsSms.MMS_PROTO + "," +
-                   "      new." + BaseColumns._ID + "," +
-                   "      new." + Mms.MESSAGE_TYPE + ",0,0,0,0);" +
-                   "END;");
-
-        // monitor the mms table
-        db.execSQL("DROP TRIGGER IF EXISTS mms_words_update");
-        db.execSQL("CREATE TRIGGER mms_words_update AFTER UPDATE ON part BEGIN UPDATE words " +
-                " SET index_text = NEW.text WHERE (source_id=NEW._id AND table_to_use=2); " +
-                " END;");
-
-        // Updates threads table whenever a message in pdu is updated.
-        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_date_subject_on_update");
-        db.execSQL("CREATE TRIGGER pdu_update_thread_date_subject_on_update AFTER" +
-                   "  UPDATE OF " + Mms.DATE + ", " + Mms.SUBJECT + ", " + Mms.MESSAGE_BOX +
-                   "  ON " + MmsProvider.TABLE_PDU + " " +
-                   PDU_UPDATE_THREAD_CONSTRAINTS +
-                   PDU_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
-
-        // Updates threads table whenever a message is added to pdu.
-        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_on_insert");
-        db.execSQL("CREATE TRIGGER pdu_update_thread_on_insert AFTER INSERT ON " +
-                   MmsProvider.TABLE_PDU + " " +
-                   PDU_UPDATE_THREAD_CONSTRAINTS +
-                   PDU_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
-
-        // Updates threads table whenever a message in pdu is updated.
-        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_read_on_update");
-        db.execSQL("CREATE TRIGGER pdu_update_thread_read_on_update AFTER" +
-                   "  UPDATE OF " + Mms.READ +
-                   "  ON " + MmsProvider.TABLE_PDU + " " +
-                   PDU_UPDATE_THREAD_CONSTRAINTS +
-                   "BEGIN " +
-                   PDU_UPDATE_THREAD_READ_BODY +
+                   "  VALUES " +
+                   "    (" + MmsSms.MMS_PROTO + "," +
+                   "      new." + BaseColumns._ID + "," +
+                   "      new." + Mms.MESSAGE_TYPE + ",0,0,0,0);" +
                    "END;");
 
+        createPduThreadTriggers(db);
+
         // Update the error flag of threads when delete pending message.
         db.execSQL("DROP TRIGGER IF EXISTS update_threads_error_on_delete_mms");
         db.execSQL("CREATE TRIGGER update_threads_error_on_delete_mms " +
@@ -1006,6 +1973,50 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "END;");
     }
 
+    private void createPduThreadTriggers(SQLiteDatabase db) {
+        // Updates threads table whenever a message in pdu is updated.
+        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_date_subject_on_update");
+        db.execSQL("CREATE TRIGGER pdu_update_thread_date_subject_on_update AFTER" +
+                   "  UPDATE OF " + Mms.DATE + ", " + Mms.SUBJECT + ", " + Mms.MESSAGE_BOX +
+                   "  ON " + MmsProvider.TABLE_PDU + " " +
+                   PDU_UPDATE_THREAD_CONSTRAINTS +
+                   PDU_UPDATE_THREAD_DATE_SNIPPET_ON_UPDATE);
+
+        // Updates threads table whenever a message is added to pdu.
+        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_on_insert");
+        db.execSQL("CREATE TRIGGER pdu_update_thread_on_insert AFTER INSERT ON " +
+                   MmsProvider.TABLE_PDU + " " +
+                   PDU_UPDATE_THREAD_CONSTRAINTS +
+                   PDU_UPDATE_THREAD_ON_INSERT);
+
+        // Updates the counters of the old and new threads whenever a message in pdu is read,
+        // moved to another box or thread, or changes type.
+        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_read_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS pdu_update_thread_counters_on_update");
+        db.execSQL("CREATE TRIGGER pdu_update_thread_counters_on_update AFTER" +
+                   "  UPDATE OF " + Mms.THREAD_ID + ", " + Mms.MESSAGE_BOX + ", " + Mms.READ +
+                   ", " + Mms.MESSAGE_TYPE +
+                   "  ON " + MmsProvider.TABLE_PDU + " " +
+                   PDU_UPDATE_THREAD_COUNTERS_ON_UPDATE);
+
+        // Move the error flag of an MM in the Outbox, which was failed to be sent permanently,
+        // to its new thread.
+        db.execSQL("DROP TRIGGER IF EXISTS update_threads_error_on_thread_change_mms");
+        db.execSQL("CREATE TRIGGER update_threads_error_on_thread_change_mms " +
+                   "  AFTER UPDATE OF thread_id ON pdu " +
+                   "  WHEN OLD.thread_id IS NOT NEW.thread_id" +
+                   "  AND OLD.msg_box = 4 AND NEW.msg_box = 4" +
+                   "  AND (NEW._id IN (SELECT DISTINCT msg_id" +
+                   "                   FROM pending_msgs" +
+                   "                   WHERE err_type >= 10)) " +
+                   "BEGIN " +
+                   "  UPDATE threads SET error = error - 1" +
+                   "  WHERE _id = OLD.thread_id; " +
+                   "  UPDATE threads SET error = error + 1" +
+                   "  WHERE _id = NEW.thread_id; " +
+                   "END;");
+    }
+
     @VisibleForTesting
     public static String CREATE_SMS_TABLE_STRING =
             "CREATE TABLE sms (" +
@@ -1124,9 +2135,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
          * will be used. The _id is created with AUTOINCREMENT so it
          * will never be reused again if a recipient is deleted.
          */
-        db.execSQL("CREATE TABLE canonical_addresses (" +
-                   "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                   "address TEXT);");
+        db.execSQL(getCanonicalAddressesTableSql(MmsSmsProvider.TABLE_CANONICAL_ADDRESSES));
 
         /**
          * This table maps the subject and an ordered set of recipient
@@ -1136,20 +2145,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
          * thread if they have the same subject (or a null subject)
          * and the same set of recipients.
          */
-        db.execSQL("CREATE TABLE threads (" +
-                   Threads._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                   Threads.DATE + " INTEGER DEFAULT 0," +
-                   Threads.MESSAGE_COUNT + " INTEGER DEFAULT 0," +
-                   Threads.RECIPIENT_IDS + " TEXT," +
-                   Threads.SNIPPET + " TEXT," +
-                   Threads.SNIPPET_CHARSET + " INTEGER DEFAULT 0," +
-                   Threads.READ + " INTEGER DEFAULT 1," +
-                   Threads.ARCHIVED + " INTEGER DEFAULT 0," +
-                   Threads.TYPE + " INTEGER DEFAULT 0," +
-                   Threads.ERROR + " INTEGER DEFAULT 0," +
-                   Threads.HAS_ATTACHMENT + " INTEGER DEFAULT 0," +
-                   Threads.ATTACHMENT_INFO + " TEXT," +
-                   Threads.NOTIFICATION + " INTEGER DEFAULT 0);");
+        db.execSQL(getThreadsTableSql(MmsSmsProvider.TABLE_THREADS));
 
         /**
          * This table stores the queue of messages to be sent/downloaded.
@@ -1169,26 +2165,178 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
 
     }
 
-    // TODO Check the query plans for these triggers.
-    private void createCommonTriggers(SQLiteDatabase db) {
-        // Updates threads table whenever a message is added to sms.
-        db.execSQL("CREATE TRIGGER sms_update_thread_on_insert AFTER INSERT ON sms " +
-                   SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
+    /**
+     * Create and populate the thread_latest table, which holds the most recent message of
+     * every thread so that the conversation list doesn't need to group all the messages.
+     * The triggers keep it up to date: an insert only compares with the current latest
+     * message, updates and deletes recompute the thread when they may change it.
+     *
+     * Like the grouped query it replaces, which also returns a single row per thread, it
+     * holds one message per thread and ignores messages without a date. When several messages
+     * share the latest date, an insert points the thread at the inserted message and a
+     * recomputation at whichever of them SQLite finds first, which is what the grouped query
+     * returns as well.
+     */
+    private void createThreadLatestTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MmsSmsProvider.TABLE_THREAD_LATEST + " (" +
+                   "thread_id INTEGER PRIMARY KEY," +
+                   "msg_id INTEGER," +
+                   "is_mms INTEGER," +
+                   "normalized_date INTEGER);");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_latest_on_insert_sms");
+        db.execSQL("CREATE TRIGGER thread_latest_on_insert_sms AFTER INSERT ON sms " +
+                   "WHEN new.thread_id IS NOT NULL" +
+                   "  AND new." + Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT + " " +
+                   "BEGIN " +
+                   "  INSERT OR REPLACE INTO " + MmsSmsProvider.TABLE_THREAD_LATEST +
+                   "    (thread_id, msg_id, is_mms, normalized_date)" +
+                   "  SELECT new.thread_id, new._id, 0, new.date" +
+                   "  WHERE new.date >= ifnull((SELECT normalized_date FROM " +
+                           MmsSmsProvider.TABLE_THREAD_LATEST +
+                   "    WHERE thread_id = new.thread_id), new.date); " +
+                   "END;");
 
-        // Updates threads table whenever a message in sms is updated.
-        db.execSQL("CREATE TRIGGER sms_update_thread_date_subject_on_update AFTER" +
-                   "  UPDATE OF " + Sms.DATE + ", " + Sms.BODY + ", " + Sms.TYPE +
+        db.execSQL("DROP TRIGGER IF EXISTS thread_latest_on_insert_pdu");
+        db.execSQL("CREATE TRIGGER thread_latest_on_insert_pdu AFTER INSERT ON pdu " +
+                   "WHEN new.thread_id IS NOT NULL" +
+                   "  AND new." + Mms.MESSAGE_BOX + " != " + Mms.MESSAGE_BOX_DRAFTS +
+                   "  AND (new.m_type=132 OR new.m_type=130 OR new.m_type=128) " +
+                   "BEGIN " +
+                   "  INSERT OR REPLACE INTO " + MmsSmsProvider.TABLE_THREAD_LATEST +
+                   "    (thread_id, msg_id, is_mms, normalized_date)" +
+                   "  SELECT new.thread_id, new._id, 1, new.date * 1000" +
+                   "  WHERE new.date * 1000 >= ifnull((SELECT normalized_date FROM " +
+                           MmsSmsProvider.TABLE_THREAD_LATEST +
+                   "    WHERE thread_id = new.thread_id), new.date * 1000); " +
+                   "END;");
+
+        final String oldAndNewThreads = "thread_id IN (old.thread_id, new.thread_id)";
+        db.execSQL("DROP TRIGGER IF EXISTS thread_latest_on_update_sms");
+        db.execSQL("CREATE TRIGGER thread_latest_on_update_sms AFTER" +
+                   "  UPDATE OF " + Sms.DATE + ", " + Sms.TYPE + ", " + Sms.THREAD_ID +
                    "  ON sms " +
-                   SMS_UPDATE_THREAD_DATE_SNIPPET_COUNT_ON_UPDATE);
+                   "WHEN old.date IS NOT new.date" +
+                   "  OR old.type IS NOT new.type" +
+                   "  OR old.thread_id IS NOT new.thread_id " +
+                   "BEGIN " +
+                   deleteThreadLatestSql(oldAndNewThreads) + "; " +
+                   insertThreadLatestSql(oldAndNewThreads) + "; " +
+                   "END;");
 
-        // Updates threads table whenever a message in sms is updated.
-        db.execSQL("CREATE TRIGGER sms_update_thread_read_on_update AFTER" +
-                   "  UPDATE OF " + Sms.READ +
+        db.execSQL("DROP TRIGGER IF EXISTS thread_latest_on_update_pdu");
+        db.execSQL("CREATE TRIGGER thread_latest_on_update_pdu AFTER" +
+                   "  UPDATE OF " + Mms.DATE + ", " + Mms.MESSAGE_BOX + ", " +
+                   Mms.MESSAGE_TYPE + ", " + Mms.THREAD_ID +
+                   "  ON pdu " +
+                   "WHEN old.date IS NOT new.date" +
+                   "  OR old.msg_box IS NOT new.msg_box" +
+                   "  OR old.m_type IS NOT new.m_type" +
+                   "  OR old.thread_id IS NOT new.thread_id " +
+                   "BEGIN " +
+                   deleteThreadLatestSql(oldAndNewThreads) + "; " +
+                   insertThreadLatestSql(oldAndNewThreads) + "; " +
+                   "END;");
+
+        // Deleting a message only matters if it was the latest one of its thread.
+        final String oldThread = "thread_id = old.thread_id";
+        db.execSQL("DROP TRIGGER IF EXISTS thread_latest_on_delete_sms");
+        db.execSQL("CREATE TRIGGER thread_latest_on_delete_sms AFTER DELETE ON sms " +
+                   "WHEN old._id = (SELECT msg_id FROM " + MmsSmsProvider.TABLE_THREAD_LATEST +
+                   "  WHERE thread_id = old.thread_id AND is_mms = 0) " +
+                   "BEGIN " +
+                   deleteThreadLatestSql(oldThread) + "; " +
+                   insertThreadLatestSql(oldThread) + "; " +
+                   "END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_latest_on_delete_pdu");
+        db.execSQL("CREATE TRIGGER thread_latest_on_delete_pdu AFTER DELETE ON pdu " +
+                   "WHEN old._id = (SELECT msg_id FROM " + MmsSmsProvider.TABLE_THREAD_LATEST +
+                   "  WHERE thread_id = old.thread_id AND is_mms = 1) " +
+                   "BEGIN " +
+                   deleteThreadLatestSql(oldThread) + "; " +
+                   insertThreadLatestSql(oldThread) + "; " +
+                   "END;");
+
+        updateThreadLatest(db, "1", BIND_ARGS_NONE);
+    }
+
+    /**
+     * Create and populate the message_counters table, which holds the number of messages and
+     * unread messages per transport, box and subscription. The triggers adjust the row of
+     * the inserted, updated or deleted message, so reading all the counters is a scan of a
+     * handful of rows.
+     */
+    private void createMessageCountersTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + MmsSmsProvider.TABLE_MESSAGE_COUNTERS + " (" +
+                   "transport INTEGER," +
+                   "box INTEGER," +
+                   "sub_id INTEGER," +
+                   "total INTEGER DEFAULT 0," +
+                   "unread INTEGER DEFAULT 0," +
+                   "PRIMARY KEY (transport, box, sub_id));");
+
+        db.execSQL("DROP TRIGGER IF EXISTS message_counters_on_insert_sms");
+        db.execSQL("CREATE TRIGGER message_counters_on_insert_sms AFTER INSERT ON sms " +
+                   "BEGIN " +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_SMS, "new", 1, "1") +
+                   "END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS message_counters_on_delete_sms");
+        db.execSQL("CREATE TRIGGER message_counters_on_delete_sms AFTER DELETE ON sms " +
+                   "BEGIN " +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_SMS, "old", -1, "1") +
+                   "END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS message_counters_on_update_sms");
+        db.execSQL("CREATE TRIGGER message_counters_on_update_sms AFTER" +
+                   "  UPDATE OF " + Sms.TYPE + ", " + Sms.READ + ", " + Sms.SUBSCRIPTION_ID +
                    "  ON sms " +
+                   "WHEN old.type IS NOT new.type" +
+                   "  OR old.read IS NOT new.read" +
+                   "  OR old.sub_id IS NOT new.sub_id " +
+                   "BEGIN " +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_SMS, "old", -1, "1") +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_SMS, "new", 1, "1") +
+                   "END;");
+
+        final String oldDisplayed = "(old.m_type=132 OR old.m_type=130 OR old.m_type=128)";
+        final String newDisplayed = "(new.m_type=132 OR new.m_type=130 OR new.m_type=128)";
+        db.execSQL("DROP TRIGGER IF EXISTS message_counters_on_insert_pdu");
+        db.execSQL("CREATE TRIGGER message_counters_on_insert_pdu AFTER INSERT ON pdu " +
+                   "WHEN " + newDisplayed + " " +
+                   "BEGIN " +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_MMS, "new", 1, "1") +
+                   "END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS message_counters_on_delete_pdu");
+        db.execSQL("CREATE TRIGGER message_counters_on_delete_pdu AFTER DELETE ON pdu " +
+                   "WHEN " + oldDisplayed + " " +
+                   "BEGIN " +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_MMS, "old", -1, "1") +
+                   "END;");
+
+        db.execSQL("DROP TRIGGER IF EXISTS message_counters_on_update_pdu");
+        db.execSQL("CREATE TRIGGER message_counters_on_update_pdu AFTER" +
+                   "  UPDATE OF " + Mms.MESSAGE_BOX + ", " + Mms.READ + ", " +
+                   Mms.SUBSCRIPTION_ID + ", " + Mms.MESSAGE_TYPE +
+                   "  ON pdu " +
+                   "WHEN old.msg_box IS NOT new.msg_box" +
+                   "  OR old.read IS NOT new.read" +
+                   "  OR old.sub_id IS NOT new.sub_id" +
+                   "  OR old.m_type IS NOT new.m_type " +
                    "BEGIN " +
-                   SMS_UPDATE_THREAD_READ_BODY +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_MMS, "old", -1, oldDisplayed) +
+                   messageCountersDeltaSql(MESSAGE_COUNTERS_MMS, "new", 1, newDisplayed) +
                    "END;");
 
+        rebuildMessageCounters(db);
+    }
+
+    // TODO Check the query plans for these triggers.
+    private void createCommonTriggers(SQLiteDatabase db) {
+        createSmsThreadTriggers(db);
+
         // As of DATABASE_VERSION 55, we've removed these triggers that delete empty threads.
         // These triggers interfere with saving drafts on brand new threads. Instead of
         // triggers cleaning up empty threads, the empty threads should be cleaned up by
@@ -1240,20 +2388,32 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "    WHERE _id = NEW.msg_id); " +
                    "END;");
 
-        // Update the error flag of threads after a text message was
-        // failed to send/receive.
-        db.execSQL("CREATE TRIGGER update_threads_error_on_update_sms " +
-                   "  AFTER UPDATE OF type ON sms" +
-                   "  WHEN (OLD.type != 5 AND NEW.type = 5)" +
-                   "    OR (OLD.type = 5 AND NEW.type != 5) " +
-                   "BEGIN " +
-                   "  UPDATE threads SET error = " +
-                   "    CASE" +
-                   "      WHEN NEW.type = 5 THEN error + 1" +
-                   "      ELSE error - 1" +
-                   "    END " +
-                   "  WHERE _id = NEW.thread_id; " +
-                   "END;");
+        // The error flag of threads after a text message was failed to send/receive is
+        // updated by sms_update_thread_counters_on_update.
+    }
+
+    private void createSmsThreadTriggers(SQLiteDatabase db) {
+        // Updates threads table whenever a message is added to sms.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_on_insert");
+        db.execSQL("CREATE TRIGGER sms_update_thread_on_insert AFTER INSERT ON sms " +
+                   SMS_UPDATE_THREAD_ON_INSERT);
+
+        // Updates threads table whenever a message in sms is updated.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_date_subject_on_update");
+        db.execSQL("CREATE TRIGGER sms_update_thread_date_subject_on_update AFTER" +
+                   "  UPDATE OF " + Sms.DATE + ", " + Sms.BODY + ", " + Sms.TYPE +
+                   "  ON sms " +
+                   SMS_UPDATE_THREAD_DATE_SNIPPET_ON_UPDATE);
+
+        // Updates the counters of the old and new threads whenever a message in sms is read,
+        // changes type or is moved to another thread.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_read_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_threads_error_on_update_sms");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_update_thread_counters_on_update");
+        db.execSQL("CREATE TRIGGER sms_update_thread_counters_on_update AFTER" +
+                   "  UPDATE OF " + Sms.THREAD_ID + ", " + Sms.TYPE + ", " + Sms.READ +
+                   "  ON sms " +
+                   SMS_UPDATE_THREAD_COUNTERS_ON_UPDATE);
     }
 
     @Override
@@ -1261,6 +2421,9 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         Log.w(TAG, "Upgrading database from version " + oldVersion
                 + " to " + currentVersion + ".");
 
+        // The upgrade steps may add columns to the tables being migrated to AUTOINCREMENT.
+        resetAutoIncrementMigrations(db);
+
         switch (oldVersion) {
         case 40:
             if (currentVersion <= 40) {
@@ -1619,62 +2782,244 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                 db.endTransaction();
             }
             // fall through
-        case 63:
-            if (currentVersion <= 63) {
+        case 63:
+            if (currentVersion <= 63) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion64(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 64:
+            if (currentVersion <= 64) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion65(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 65:
+            if (currentVersion <= 65) {
+                return;
+            }
+
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion66(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 66:
+            if (currentVersion <= 66) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                createPartMidIndex(db);
+                createAddrMsgIdIndex(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 67:
+            if (currentVersion <= 67) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion68(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 68:
+            if (currentVersion <= 68) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                createPduThreadIdDateIndex(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 69:
+            if (currentVersion <= 69) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                createThreadLatestTable(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 70:
+            if (currentVersion <= 70) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                createMessageCountersTable(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 71:
+            if (currentVersion <= 71) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                createAddressKeyIndices(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 72:
+            if (currentVersion <= 72) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                // The words index itself is rebuilt by the upgrade to version 74.
+                createWordsRebuildTable(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 73:
+            if (currentVersion <= 73) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                upgradeDatabaseToVersion74(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 74:
+            if (currentVersion <= 74) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                createMessageStateIndices(db);
+                db.setTransactionSuccessful();
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.getMessage(), ex);
+                break; // force to destroy all old data;
+            } finally {
+                db.endTransaction();
+            }
+            // fall through
+        case 75:
+            if (currentVersion <= 75) {
                 return;
             }
-
             db.beginTransaction();
             try {
-                upgradeDatabaseToVersion64(db);
+                upgradeDatabaseToVersion76(db);
                 db.setTransactionSuccessful();
             } catch (Throwable ex) {
                 Log.e(TAG, ex.getMessage(), ex);
-                break;
+                break; // force to destroy all old data;
             } finally {
                 db.endTransaction();
             }
             // fall through
-        case 64:
-            if (currentVersion <= 64) {
+        case 76:
+            if (currentVersion <= 76) {
                 return;
             }
-
             db.beginTransaction();
             try {
-                upgradeDatabaseToVersion65(db);
+                createRawIndices(db);
                 db.setTransactionSuccessful();
             } catch (Throwable ex) {
                 Log.e(TAG, ex.getMessage(), ex);
-                break;
+                break; // force to destroy all old data;
             } finally {
                 db.endTransaction();
             }
             // fall through
-        case 65:
-            if (currentVersion <= 65) {
+        case 77:
+            if (currentVersion <= 77) {
                 return;
             }
-
             db.beginTransaction();
             try {
-                upgradeDatabaseToVersion66(db);
+                upgradeDatabaseToVersion78(db);
                 db.setTransactionSuccessful();
             } catch (Throwable ex) {
                 Log.e(TAG, ex.getMessage(), ex);
-                break;
+                break; // force to destroy all old data;
             } finally {
                 db.endTransaction();
             }
             // fall through
-        case 66:
-            if (currentVersion <= 66) {
+        case 78:
+            if (currentVersion <= 78) {
                 return;
             }
             db.beginTransaction();
             try {
-                createPartMidIndex(db);
-                createAddrMsgIdIndex(db);
+                // Drop the thread_latest rows of threads whose messages have no date.
+                updateThreadLatest(db, "1", BIND_ARGS_NONE);
                 db.setTransactionSuccessful();
             } catch (Throwable ex) {
                 Log.e(TAG, ex.getMessage(), ex);
@@ -1699,6 +3044,13 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         localLog("****DROPPING ALL SMS-MMS TABLES****");
         db.execSQL("DROP TABLE IF EXISTS canonical_addresses");
         db.execSQL("DROP TABLE IF EXISTS threads");
+        db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_THREAD_LATEST);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_MESSAGE_COUNTERS);
+        db.execSQL("DROP TABLE IF EXISTS words");
+        db.execSQL("DROP TABLE IF EXISTS " + SmsProvider.TABLE_SMS_WORDS);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_PART_WORDS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_WORDS_REBUILD);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_AUTOINCREMENT_MIGRATION);
         db.execSQL("DROP TABLE IF EXISTS " + MmsSmsProvider.TABLE_PENDING_MSG);
         db.execSQL("DROP TABLE IF EXISTS sms");
         db.execSQL("DROP TABLE IF EXISTS raw");
@@ -1856,7 +3208,7 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                    "  ON " + MmsProvider.TABLE_PDU + " " +
                    PDU_UPDATE_THREAD_CONSTRAINTS +
                    "BEGIN " +
-                   PDU_UPDATE_THREAD_READ_BODY +
+                   PDU_UPDATE_THREAD_READ_BODY_V53 +
                    "END;");
     }
 
@@ -1985,6 +3337,52 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                     + "display_originating_addr; " + e);
         }
     }
+    private void upgradeDatabaseToVersion68(SQLiteDatabase db) {
+        // Thread counters are now maintained incrementally by the triggers, seed the new
+        // unread_count column and bring the other counters in line with the messages.
+        db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_THREADS + " ADD COLUMN "
+                + THREAD_UNREAD_COUNT_COLUMN + " INTEGER DEFAULT 0");
+        db.execSQL(UPDATE_THREADS_MESSAGE_COUNT);
+        db.execSQL(UPDATE_THREADS_UNREAD_COUNT);
+        db.execSQL(UPDATE_THREADS_ERROR);
+
+        // Only the thread triggers, the other pdu triggers reference later columns.
+        createSmsThreadTriggers(db);
+        createPduThreadTriggers(db);
+    }
+
+    private void upgradeDatabaseToVersion74(SQLiteDatabase db) {
+        // Replace the FTS3 words table, which kept a copy of every indexed text, by the external
+        // content sms_words and part_words tables, indexed again in the background.
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_update");
+        db.execSQL("DROP TRIGGER IF EXISTS sms_words_delete");
+        db.execSQL("DROP TABLE IF EXISTS words");
+        db.execSQL("DROP TABLE IF EXISTS " + SmsProvider.TABLE_SMS_WORDS);
+        db.execSQL("DROP TABLE IF EXISTS " + MmsProvider.TABLE_PART_WORDS);
+        createWordsTables(db);
+    }
+
+    private void upgradeDatabaseToVersion76(SQLiteDatabase db) {
+        // has_attachment is now maintained from a per thread attachment count, so that only the
+        // threads of changed parts and messages are updated.
+        db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_THREADS + " ADD COLUMN "
+                + THREAD_ATTACHMENT_COUNT_COLUMN + " INTEGER DEFAULT 0");
+        db.execSQL(UPDATE_THREADS_ATTACHMENT_COUNT);
+        db.execSQL(UPDATE_THREADS_HAS_ATTACHMENT);
+
+        createMmsTriggers(db);
+    }
+
+    private void upgradeDatabaseToVersion78(SQLiteDatabase db) {
+        // The counter triggers now also handle messages moved to another thread or changing
+        // type, recount the threads the previous triggers may have left behind.
+        createSmsThreadTriggers(db);
+        createPduThreadTriggers(db);
+        db.execSQL(UPDATE_THREADS_MESSAGE_COUNT);
+        db.execSQL(UPDATE_THREADS_UNREAD_COUNT);
+        db.execSQL(UPDATE_THREADS_ERROR);
+    }
+
     private void checkAndUpdateSmsTable(SQLiteDatabase db) {
         try {
             db.query(SmsProvider.TABLE_SMS, new String[] {"priority"}, null, null, null, null,
@@ -2020,151 +3418,80 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
                         + Threads.NOTIFICATION + " INTEGER DEFAULT 0");
             }
         }
+
+        try {
+            db.query(MmsSmsProvider.TABLE_THREADS, new String[] {THREAD_UNREAD_COUNT_COLUMN},
+                    null, null, null, null, null);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "checkAndUpdateThreadsTable: ex. ", e);
+            if (e.getMessage().startsWith(NO_SUCH_COLUMN_EXCEPTION_MESSAGE)) {
+                db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_THREADS + " ADD COLUMN "
+                        + THREAD_UNREAD_COUNT_COLUMN + " INTEGER DEFAULT 0");
+                db.execSQL(UPDATE_THREADS_UNREAD_COUNT);
+            }
+        }
+
+        try {
+            db.query(MmsSmsProvider.TABLE_THREADS, new String[] {THREAD_ATTACHMENT_COUNT_COLUMN},
+                    null, null, null, null, null);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "checkAndUpdateThreadsTable: ex. ", e);
+            if (e.getMessage().startsWith(NO_SUCH_COLUMN_EXCEPTION_MESSAGE)) {
+                db.execSQL("ALTER TABLE " + MmsSmsProvider.TABLE_THREADS + " ADD COLUMN "
+                        + THREAD_ATTACHMENT_COUNT_COLUMN + " INTEGER DEFAULT 0");
+                db.execSQL(UPDATE_THREADS_ATTACHMENT_COUNT);
+                db.execSQL(UPDATE_THREADS_HAS_ATTACHMENT);
+            }
+        }
     }
 
     @Override
-    public synchronized  SQLiteDatabase getReadableDatabase() {
+    public SQLiteDatabase getReadableDatabase() {
+        SQLiteDatabase db = mDatabase;
+        if (db != null && db.isOpen()) {
+            return db;
+        }
+        return openDatabase();
+    }
+
+    private synchronized SQLiteDatabase openDatabase() {
         SQLiteDatabase db = super.getWritableDatabase();
 
-        // getReadableDatabase gets or creates a database. So we know for sure that a database has
+        // getWritableDatabase gets or creates a database. So we know for sure that a database has
         // already been created at this point.
         if (mContext.isCredentialProtectedStorage()) {
             setInitialCreateDone();
         }
 
+        mDatabase = db;
         return db;
     }
 
     @Override
     public synchronized SQLiteDatabase getWritableDatabase() {
-        SQLiteDatabase db = super.getWritableDatabase();
-
-        // getWritableDatabase gets or creates a database. So we know for sure that a database has
-        // already been created at this point.
-        if (mContext.isCredentialProtectedStorage()) {
-            setInitialCreateDone();
-        }
+        SQLiteDatabase db = openDatabase();
 
-        if (!sTriedAutoIncrement) {
-            sTriedAutoIncrement = true;
-            boolean hasAutoIncrementThreads = hasAutoIncrement(db, MmsSmsProvider.TABLE_THREADS);
-            boolean hasAutoIncrementAddresses = hasAutoIncrement(db, "canonical_addresses");
-            boolean hasAutoIncrementPart = hasAutoIncrement(db, "part");
-            boolean hasAutoIncrementPdu = hasAutoIncrement(db, "pdu");
-            String logMsg = "[getWritableDatabase]" +
-                    " hasAutoIncrementThreads: " + hasAutoIncrementThreads +
-                    " hasAutoIncrementAddresses: " + hasAutoIncrementAddresses +
-                    " hasAutoIncrementPart: " + hasAutoIncrementPart +
-                    " hasAutoIncrementPdu: " + hasAutoIncrementPdu;
+        if (!mTriedAutoIncrement) {
+            mTriedAutoIncrement = true;
+            boolean migrated = true;
+            for (String table : AUTOINCREMENT_TABLES) {
+                migrated &= hasAutoIncrement(db, table);
+            }
+            String logMsg = "[getWritableDatabase] hasAutoIncrement: " + migrated;
             Log.d(TAG, logMsg);
             localLog(logMsg);
-            boolean autoIncrementThreadsSuccess = true;
-            boolean autoIncrementAddressesSuccess = true;
-            boolean autoIncrementPartSuccess = true;
-            boolean autoIncrementPduSuccess = true;
-            if (!hasAutoIncrementThreads) {
-                db.beginTransaction();
-                try {
-                    if (false && sFakeLowStorageTest) {
-                        Log.d(TAG, "[getWritableDatabase] mFakeLowStorageTest is true " +
-                                " - fake exception");
-                        throw new Exception("FakeLowStorageTest");
-                    }
-                    upgradeThreadsTableToAutoIncrement(db);     // a no-op if already upgraded
-                    db.setTransactionSuccessful();
-                } catch (Throwable ex) {
-                    Log.e(TAG, "Failed to add autoIncrement to threads;: " + ex.getMessage(), ex);
-                    autoIncrementThreadsSuccess = false;
-                } finally {
-                    db.endTransaction();
-                }
-            }
-            if (!hasAutoIncrementAddresses) {
-                db.beginTransaction();
-                try {
-                    if (false && sFakeLowStorageTest) {
-                        Log.d(TAG, "[getWritableDatabase] mFakeLowStorageTest is true " +
-                        " - fake exception");
-                        throw new Exception("FakeLowStorageTest");
-                    }
-                    upgradeAddressTableToAutoIncrement(db);     // a no-op if already upgraded
-                    db.setTransactionSuccessful();
-                } catch (Throwable ex) {
-                    Log.e(TAG, "Failed to add autoIncrement to canonical_addresses: " +
-                            ex.getMessage(), ex);
-                    autoIncrementAddressesSuccess = false;
-                } finally {
-                    db.endTransaction();
-                }
-            }
-            if (!hasAutoIncrementPart) {
-                db.beginTransaction();
-                try {
-                    if (false && sFakeLowStorageTest) {
-                        Log.d(TAG, "[getWritableDatabase] mFakeLowStorageTest is true " +
-                        " - fake exception");
-                        throw new Exception("FakeLowStorageTest");
-                    }
-                    upgradePartTableToAutoIncrement(db);     // a no-op if already upgraded
-                    db.setTransactionSuccessful();
-                } catch (Throwable ex) {
-                    Log.e(TAG, "Failed to add autoIncrement to part: " +
-                            ex.getMessage(), ex);
-                    autoIncrementPartSuccess = false;
-                } finally {
-                    db.endTransaction();
-                }
-            }
-            if (!hasAutoIncrementPdu) {
-                db.beginTransaction();
-                try {
-                    if (false && sFakeLowStorageTest) {
-                        Log.d(TAG, "[getWritableDatabase] mFakeLowStorageTest is true " +
-                        " - fake exception");
-                        throw new Exception("FakeLowStorageTest");
-                    }
-                    upgradePduTableToAutoIncrement(db);     // a no-op if already upgraded
-                    db.setTransactionSuccessful();
-                } catch (Throwable ex) {
-                    Log.e(TAG, "Failed to add autoIncrement to pdu: " +
-                            ex.getMessage(), ex);
-                    autoIncrementPduSuccess = false;
-                } finally {
-                    db.endTransaction();
-                }
-            }
-            if (autoIncrementThreadsSuccess &&
-                    autoIncrementAddressesSuccess &&
-                    autoIncrementPartSuccess &&
-                    autoIncrementPduSuccess) {
-                if (mLowStorageMonitor != null) {
-                    // We've already updated the database. This receiver is no longer necessary.
-                    Log.d(TAG, "Unregistering mLowStorageMonitor - we've upgraded");
-                    mContext.unregisterReceiver(mLowStorageMonitor);
-                    mLowStorageMonitor = null;
-                }
-            } else {
-                if (sFakeLowStorageTest) {
-                    sFakeLowStorageTest = false;
-                }
-
-                // We failed, perhaps because of low storage. Turn on a receiver to watch for
-                // storage space.
-                if (mLowStorageMonitor == null) {
-                    Log.d(TAG, "[getWritableDatabase] turning on storage monitor");
-                    mLowStorageMonitor = new LowStorageMonitor();
-                    IntentFilter intentFilter = new IntentFilter();
-                    intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
-                    intentFilter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
-                    mContext.registerReceiver(mLowStorageMonitor, intentFilter);
-                }
+            if (!migrated) {
+                // Copying the tables can take long on big stores, leave it to a background job
+                // rather than the first write.
+                AutoIncrementMigrationService.schedule(mContext,
+                        mContext.isCredentialProtectedStorage());
             }
         }
         return db;
     }
 
     // Determine whether a particular table has AUTOINCREMENT in its schema.
-    private boolean hasAutoIncrement(SQLiteDatabase db, String tableName) {
+    private static boolean hasAutoIncrement(SQLiteDatabase db, String tableName) {
         boolean result = false;
         String query = "SELECT sql FROM sqlite_master WHERE type='table' AND name='" +
                         tableName + "'";
@@ -2184,172 +3511,417 @@ public class MmsSmsDatabaseHelper extends SQLiteOpenHelper {
         return result;
     }
 
-    // upgradeThreadsTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
-    // the threads table. This could fail if the user has a lot of conversations and not enough
-    // storage to make a copy of the threads table. That's ok. This upgrade is optional. It'll
-    // be called again next time the device is rebooted.
-    private void upgradeThreadsTableToAutoIncrement(SQLiteDatabase db) {
-        if (hasAutoIncrement(db, MmsSmsProvider.TABLE_THREADS)) {
-            Log.d(TAG, "[MmsSmsDb] upgradeThreadsTableToAutoIncrement: already upgraded");
-            return;
-        }
-        Log.d(TAG, "[MmsSmsDb] upgradeThreadsTableToAutoIncrement: upgrading");
+    private static void createAutoIncrementMigrationTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_AUTOINCREMENT_MIGRATION + " (" +
+                "table_name TEXT PRIMARY KEY," +
+                "last_id INTEGER NOT NULL," +
+                "max_id INTEGER NOT NULL);");
+    }
 
-        // Make the _id of the threads table autoincrement so we never re-use thread ids
-        // Have to create a new temp threads table. Copy all the info from the old table.
-        // Drop the old table and rename the new table to that of the old.
-        db.execSQL("CREATE TABLE threads_temp (" +
-                Threads._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                Threads.DATE + " INTEGER DEFAULT 0," +
-                Threads.MESSAGE_COUNT + " INTEGER DEFAULT 0," +
-                Threads.RECIPIENT_IDS + " TEXT," +
-                Threads.SNIPPET + " TEXT," +
-                Threads.SNIPPET_CHARSET + " INTEGER DEFAULT 0," +
-                Threads.READ + " INTEGER DEFAULT 1," +
-                Threads.TYPE + " INTEGER DEFAULT 0," +
-                Threads.ERROR + " INTEGER DEFAULT 0," +
-                Threads.HAS_ATTACHMENT + " INTEGER DEFAULT 0," +
-                Threads.ATTACHMENT_INFO + " TEXT," +
-                Threads.NOTIFICATION + " INTEGER DEFAULT 0);");
+    /**
+     * Add the AUTOINCREMENT keyword to the _id of the tables of {@link #AUTOINCREMENT_TABLES}
+     * that lack it, so that ids are never reused. Each table is copied into a new one with the
+     * keyword, at most {@link #AUTOINCREMENT_MIGRATION_BATCH_SIZE} rows per transaction, and
+     * swapped with it once complete. Until then triggers mirror the changes made to the table in
+     * the copy, and the progress is saved in the same transaction as each batch, so that the
+     * migration resumes where it stopped, e.g. after running out of storage.
+     *
+     * @return true if all the tables have been migrated, false if {@code stopped} was set first
+     */
+    @VisibleForTesting
+    static boolean migrateToAutoIncrement(SQLiteDatabase db, AtomicBoolean stopped) {
+        long start = SystemClock.elapsedRealtime();
+        int batches = 0;
+        for (String table : AUTOINCREMENT_TABLES) {
+            if (hasAutoIncrement(db, table)) {
+                continue;
+            }
+            startAutoIncrementMigration(db, table);
+            boolean done = false;
+            while (!done) {
+                if (stopped.get()) {
+                    Log.d(TAG, "migrateToAutoIncrement: stopped after " + batches + " batches");
+                    return false;
+                }
+                done = copyAutoIncrementBatch(db, table);
+                batches++;
+            }
+        }
+        if (batches > 0) {
+            Log.d(TAG, "migrateToAutoIncrement: " + batches + " batches in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return true;
+    }
 
-        db.execSQL("INSERT INTO threads_temp SELECT * from threads;");
-        db.execSQL("DROP TABLE threads;");
-        db.execSQL("ALTER TABLE threads_temp RENAME TO threads;");
+    /**
+     * Create the copy of {@code table} with AUTOINCREMENT and the triggers mirroring the changes
+     * of {@code table} in it, unless a previous run already did.
+     */
+    @VisibleForTesting
+    static void startAutoIncrementMigration(SQLiteDatabase db, String table) {
+        String tempTable = table + "_temp";
+        db.beginTransaction();
+        try {
+            createAutoIncrementMigrationTable(db);
+            if (DatabaseUtils.queryNumEntries(db, TABLE_AUTOINCREMENT_MIGRATION,
+                    "table_name = ?", new String[] { table }) == 0) {
+                Log.d(TAG, "[MmsSmsDb] migrateToAutoIncrement: upgrading " + table);
+                db.execSQL("DROP TABLE IF EXISTS " + tempTable);
+                db.execSQL(getAutoIncrementTableSql(table, tempTable));
+                String columns = getAutoIncrementCopyColumns(db, table, tempTable);
+                db.execSQL("CREATE TRIGGER " + table + "_autoincrement_insert" +
+                        " AFTER INSERT ON " + table + " BEGIN" +
+                        " INSERT OR REPLACE INTO " + tempTable + " (" + columns + ")" +
+                        " SELECT " + columns + " FROM " + table + " WHERE _id = new._id; END;");
+                db.execSQL("CREATE TRIGGER " + table + "_autoincrement_update" +
+                        " AFTER UPDATE ON " + table + " BEGIN" +
+                        " DELETE FROM " + tempTable + " WHERE _id = old._id;" +
+                        " INSERT OR REPLACE INTO " + tempTable + " (" + columns + ")" +
+                        " SELECT " + columns + " FROM " + table + " WHERE _id = new._id; END;");
+                db.execSQL("CREATE TRIGGER " + table + "_autoincrement_delete" +
+                        " AFTER DELETE ON " + table + " BEGIN" +
+                        " DELETE FROM " + tempTable + " WHERE _id = old._id; END;");
+                db.execSQL("INSERT INTO " + TABLE_AUTOINCREMENT_MIGRATION +
+                        " (table_name, last_id, max_id) SELECT ?, 0, IFNULL(MAX(_id), 0) FROM " +
+                        table, new Object[] { table });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    // upgradeAddressTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
-    // the canonical_addresses table. This could fail if the user has a lot of people they've
-    // messaged with and not enough storage to make a copy of the canonical_addresses table.
-    // That's ok. This upgrade is optional. It'll be called again next time the device is rebooted.
-    private void upgradeAddressTableToAutoIncrement(SQLiteDatabase db) {
-        if (hasAutoIncrement(db, "canonical_addresses")) {
-            Log.d(TAG, "[MmsSmsDb] upgradeAddressTableToAutoIncrement: already upgraded");
+    /**
+     * Drop the copies, mirror triggers and progress of the migrations in progress, if any. The
+     * copies and triggers have the columns of the tables when the migration started: an upgrade
+     * altering the tables must drop them first, and the migration is then started again from
+     * the upgraded tables by the next run of {@link AutoIncrementMigrationService}.
+     */
+    @VisibleForTesting
+    static void resetAutoIncrementMigrations(SQLiteDatabase db) {
+        if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[] { TABLE_AUTOINCREMENT_MIGRATION }) == 0) {
             return;
         }
-        Log.d(TAG, "[MmsSmsDb] upgradeAddressTableToAutoIncrement: upgrading");
-
-        // Make the _id of the canonical_addresses table autoincrement so we never re-use ids
-        // Have to create a new temp canonical_addresses table. Copy all the info from the old
-        // table. Drop the old table and rename the new table to that of the old.
-        db.execSQL("CREATE TABLE canonical_addresses_temp (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                "address TEXT);");
+        db.beginTransaction();
+        try {
+            for (String table : AUTOINCREMENT_TABLES) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_autoincrement_insert");
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_autoincrement_update");
+                db.execSQL("DROP TRIGGER IF EXISTS " + table + "_autoincrement_delete");
+                if (!hasAutoIncrement(db, table)) {
+                    db.execSQL("DROP TABLE IF EXISTS " + table + "_temp");
+                }
+            }
+            db.execSQL("DROP TABLE " + TABLE_AUTOINCREMENT_MIGRATION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "[MmsSmsDb] migrateToAutoIncrement: reset before an upgrade");
+    }
 
-        db.execSQL("INSERT INTO canonical_addresses_temp SELECT * from canonical_addresses;");
-        db.execSQL("DROP TABLE canonical_addresses;");
-        db.execSQL("ALTER TABLE canonical_addresses_temp RENAME TO canonical_addresses;");
+    /**
+     * Copy the next batch of rows of {@code table} into its copy, or swap the table with its
+     * copy once all the rows have been copied.
+     *
+     * @return true if the table has been swapped
+     */
+    @VisibleForTesting
+    static boolean copyAutoIncrementBatch(SQLiteDatabase db, String table) {
+        String tempTable = table + "_temp";
+        db.beginTransaction();
+        try {
+            boolean done;
+            Cursor c = db.rawQuery("SELECT last_id, max_id FROM " +
+                    TABLE_AUTOINCREMENT_MIGRATION + " WHERE table_name = ?",
+                    new String[] { table });
+            long lastId;
+            long maxId;
+            try {
+                if (!c.moveToFirst()) {
+                    return true;
+                }
+                lastId = c.getLong(0);
+                maxId = c.getLong(1);
+            } finally {
+                c.close();
+            }
+            long batchEnd = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(_id), -1) FROM (SELECT _id FROM " + table +
+                    " WHERE _id > ? AND _id <= ? ORDER BY _id LIMIT " +
+                    AUTOINCREMENT_MIGRATION_BATCH_SIZE + ")",
+                    new String[] { String.valueOf(lastId), String.valueOf(maxId) });
+            if (batchEnd < 0) {
+                swapAutoIncrementTable(db, table, tempTable);
+                done = true;
+            } else {
+                // Rows already mirrored by the triggers are replaced by the same values.
+                String columns = getAutoIncrementCopyColumns(db, table, tempTable);
+                db.execSQL("INSERT OR REPLACE INTO " + tempTable + " (" + columns + ")" +
+                        " SELECT " + columns + " FROM " + table + " WHERE _id > ? AND _id <= ?",
+                        new Object[] { lastId, batchEnd });
+                db.execSQL("UPDATE " + TABLE_AUTOINCREMENT_MIGRATION + " SET last_id = ?" +
+                        " WHERE table_name = ?", new Object[] { batchEnd, table });
+                done = false;
+            }
+            db.setTransactionSuccessful();
+            return done;
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    // upgradePartTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
-    // the part table. This could fail if the user has a lot of sound/video/picture attachments
-    // and not enough storage to make a copy of the part table.
-    // That's ok. This upgrade is optional. It'll be called again next time the device is rebooted.
-    private void upgradePartTableToAutoIncrement(SQLiteDatabase db) {
-        if (hasAutoIncrement(db, "part")) {
-            Log.d(TAG, "[MmsSmsDb] upgradePartTableToAutoIncrement: already upgraded");
-            return;
+    /**
+     * Returns the statement creating the current schema of {@code table}, which has AUTOINCREMENT,
+     * as {@code tempTable}.
+     */
+    private static String getAutoIncrementTableSql(String table, String tempTable) {
+        if (MmsSmsProvider.TABLE_THREADS.equals(table)) {
+            return getThreadsTableSql(tempTable);
+        } else if (MmsSmsProvider.TABLE_CANONICAL_ADDRESSES.equals(table)) {
+            return getCanonicalAddressesTableSql(tempTable);
+        } else if (MmsProvider.TABLE_PART.equals(table)) {
+            return getPartTableSql(tempTable);
+        } else if (MmsProvider.TABLE_PDU.equals(table)) {
+            return getPduTableSql(tempTable);
         }
-        Log.d(TAG, "[MmsSmsDb] upgradePartTableToAutoIncrement: upgrading");
+        throw new IllegalArgumentException("No AUTOINCREMENT schema for " + table);
+    }
 
-        // Make the _id of the part table autoincrement so we never re-use ids
-        // Have to create a new temp part table. Copy all the info from the old
-        // table. Drop the old table and rename the new table to that of the old.
-        db.execSQL("CREATE TABLE part_temp (" +
-                Part._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                Part.MSG_ID + " INTEGER," +
-                Part.SEQ + " INTEGER DEFAULT 0," +
-                Part.CONTENT_TYPE + " TEXT," +
-                Part.NAME + " TEXT," +
-                Part.CHARSET + " INTEGER," +
-                Part.CONTENT_DISPOSITION + " TEXT," +
-                Part.FILENAME + " TEXT," +
-                Part.CONTENT_ID + " TEXT," +
-                Part.CONTENT_LOCATION + " TEXT," +
-                Part.CT_START + " INTEGER," +
-                Part.CT_TYPE + " TEXT," +
-                Part._DATA + " TEXT," +
-                Part.TEXT + " TEXT);");
+    /**
+     * Returns the columns of {@code tempTable} that {@code table} has, comma separated. The
+     * columns added by upgrades come last in {@code table}, so rows are copied by name.
+     */
+    private static String getAutoIncrementCopyColumns(SQLiteDatabase db, String table,
+            String tempTable) {
+        HashSet<String> tableColumns = new HashSet<String>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (c.moveToNext()) {
+                tableColumns.add(c.getString(c.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            c.close();
+        }
+        StringBuilder columns = new StringBuilder();
+        c = db.rawQuery("PRAGMA table_info(" + tempTable + ")", null);
+        try {
+            while (c.moveToNext()) {
+                String column = c.getString(c.getColumnIndexOrThrow("name"));
+                if (tableColumns.contains(column)) {
+                    if (columns.length() > 0) {
+                        columns.append(", ");
+                    }
+                    columns.append(column);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return columns.toString();
+    }
 
-        db.execSQL("INSERT INTO part_temp SELECT * from part;");
-        db.execSQL("DROP TABLE part;");
-        db.execSQL("ALTER TABLE part_temp RENAME TO part;");
+    /**
+     * Replace {@code table} with its complete copy {@code tempTable}. Must be called in a
+     * transaction.
+     */
+    private static void swapAutoIncrementTable(SQLiteDatabase db, String table,
+            String tempTable) {
+        // The indices and triggers of the table are dropped with it. The rename then checks every
+        // trigger and view of the schema, and fails on those referring to the dropped table, e.g.
+        // the pdu triggers deleting parts. Rather than relying on PRAGMA legacy_alter_table,
+        // which older SQLite versions ignore, drop all the triggers and views until the copy has
+        // been renamed, and recreate them as they were. The words FTS tables only name their
+        // content table and read the copy once renamed, with the same ids.
+        ArrayList<String> types = new ArrayList<String>();
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> statements = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT type, name, sql FROM sqlite_master WHERE sql IS NOT NULL" +
+                " AND (type IN ('trigger', 'view') OR (type = 'index' AND tbl_name = ?))" +
+                " AND name NOT IN (?, ?, ?) ORDER BY type = 'trigger'", new String[] { table,
+                        table + "_autoincrement_insert", table + "_autoincrement_update",
+                        table + "_autoincrement_delete" });
+        try {
+            while (c.moveToNext()) {
+                types.add(c.getString(0));
+                names.add(c.getString(1));
+                statements.add(c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+        for (int i = 0; i < types.size(); i++) {
+            if (!"index".equals(types.get(i))) {
+                db.execSQL("DROP " + types.get(i) + " IF EXISTS " + names.get(i));
+            }
+        }
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + tempTable + " RENAME TO " + table);
+        // Indices and views first, then the triggers, which may refer to views.
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+        db.delete(TABLE_AUTOINCREMENT_MIGRATION, "table_name = ?", new String[] { table });
+        Log.d(TAG, "[MmsSmsDb] migrateToAutoIncrement: upgraded " + table);
+    }
 
-        // part-related triggers get tossed when the part table is dropped -- rebuild them.
-        createMmsTriggers(db);
+    private static synchronized ExecutorService getAutoIncrementExecutor() {
+        if (sAutoIncrementExecutor == null) {
+            sAutoIncrementExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sAutoIncrementExecutor;
     }
 
-    // upgradePduTableToAutoIncrement() is called to add the AUTOINCREMENT keyword to
-    // the pdu table. This could fail if the user has a lot of mms messages
-    // and not enough storage to make a copy of the pdu table.
-    // That's ok. This upgrade is optional. It'll be called again next time the device is rebooted.
-    private void upgradePduTableToAutoIncrement(SQLiteDatabase db) {
-        if (hasAutoIncrement(db, "pdu")) {
-            Log.d(TAG, "[MmsSmsDb] upgradePduTableToAutoIncrement: already upgraded");
-            return;
+    /**
+     * Runs {@link #migrateToAutoIncrement} in the background. The job requires storage not to
+     * be low, as the tables are copied: it is stopped when storage runs low and resumes once
+     * there is room again.
+     */
+    public static class AutoIncrementMigrationService extends JobService {
+        // Job ids are shared by all the packages of android.uid.phone.
+        private static final int JOB_ID_DE = 0x4d4d5301;
+        private static final int JOB_ID_CE = 0x4d4d5302;
+        private static final String EXTRA_CREDENTIAL_PROTECTED = "credential_protected";
+
+        private final AtomicBoolean mStopped = new AtomicBoolean(false);
+
+        static void schedule(Context context, boolean credentialProtected) {
+            JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+            int jobId = credentialProtected ? JOB_ID_CE : JOB_ID_DE;
+            if (jobScheduler.getPendingJob(jobId) != null) {
+                // Scheduling again would stop a running migration.
+                return;
+            }
+            PersistableBundle extras = new PersistableBundle();
+            extras.putBoolean(EXTRA_CREDENTIAL_PROTECTED, credentialProtected);
+            jobScheduler.schedule(new JobInfo.Builder(jobId,
+                    new ComponentName(context, AutoIncrementMigrationService.class))
+                    .setRequiresStorageNotLow(true)
+                    .setExtras(extras)
+                    .build());
         }
-        Log.d(TAG, "[MmsSmsDb] upgradePduTableToAutoIncrement: upgrading");
 
-        // Make the _id of the part table autoincrement so we never re-use ids
-        // Have to create a new temp part table. Copy all the info from the old
-        // table. Drop the old table and rename the new table to that of the old.
-        db.execSQL("CREATE TABLE pdu_temp (" +
-                Mms._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                Mms.THREAD_ID + " INTEGER," +
-                Mms.DATE + " INTEGER," +
-                Mms.DATE_SENT + " INTEGER DEFAULT 0," +
-                Mms.MESSAGE_BOX + " INTEGER," +
-                Mms.READ + " INTEGER DEFAULT 0," +
-                Mms.MESSAGE_ID + " TEXT," +
-                Mms.SUBJECT + " TEXT," +
-                Mms.SUBJECT_CHARSET + " INTEGER," +
-                Mms.CONTENT_TYPE + " TEXT," +
-                Mms.CONTENT_LOCATION + " TEXT," +
-                Mms.EXPIRY + " INTEGER," +
-                Mms.MESSAGE_CLASS + " TEXT," +
-                Mms.MESSAGE_TYPE + " INTEGER," +
-                Mms.MMS_VERSION + " INTEGER," +
-                Mms.MESSAGE_SIZE + " INTEGER," +
-                Mms.PRIORITY + " INTEGER," +
-                Mms.READ_REPORT + " INTEGER," +
-                Mms.REPORT_ALLOWED + " INTEGER," +
-                Mms.RESPONSE_STATUS + " INTEGER," +
-                Mms.STATUS + " INTEGER," +
-                Mms.TRANSACTION_ID + " TEXT," +
-                Mms.RETRIEVE_STATUS + " INTEGER," +
-                Mms.RETRIEVE_TEXT + " TEXT," +
-                Mms.RETRIEVE_TEXT_CHARSET + " INTEGER," +
-                Mms.READ_STATUS + " INTEGER," +
-                Mms.CONTENT_CLASS + " INTEGER," +
-                Mms.RESPONSE_TEXT + " TEXT," +
-                Mms.DELIVERY_TIME + " INTEGER," +
-                Mms.DELIVERY_REPORT + " INTEGER," +
-                Mms.LOCKED + " INTEGER DEFAULT 0," +
-                Mms.SUBSCRIPTION_ID + " INTEGER DEFAULT "
-                        + SubscriptionManager.INVALID_SUBSCRIPTION_ID + ", " +
-                Mms.SEEN + " INTEGER DEFAULT 0," +
-                Mms.TEXT_ONLY + " INTEGER DEFAULT 0" +
-                ");");
+        @Override
+        public boolean onStartJob(final JobParameters params) {
+            mStopped.set(false);
+            final boolean credentialProtected =
+                    params.getExtras().getBoolean(EXTRA_CREDENTIAL_PROTECTED);
+            getAutoIncrementExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean reschedule;
+                    try {
+                        MmsSmsDatabaseHelper helper = credentialProtected
+                                ? getInstanceForCe(AutoIncrementMigrationService.this)
+                                : getInstanceForDe(AutoIncrementMigrationService.this);
+                        reschedule = !migrateToAutoIncrement(helper.openDatabase(), mStopped);
+                    } catch (SQLiteException e) {
+                        // Typically SQLiteFullException. The progress is kept, retry later.
+                        Log.e(TAG, "migrateToAutoIncrement: ex. ", e);
+                        reschedule = true;
+                    }
+                    jobFinished(params, reschedule);
+                }
+            });
+            return true;
+        }
 
-        db.execSQL("INSERT INTO pdu_temp SELECT * from pdu;");
-        db.execSQL("DROP TABLE pdu;");
-        db.execSQL("ALTER TABLE pdu_temp RENAME TO pdu;");
+        @Override
+        public boolean onStopJob(JobParameters params) {
+            mStopped.set(true);
+            return true;
+        }
+    }
 
-        // pdu-related triggers get tossed when the part table is dropped -- rebuild them.
-        createMmsTriggers(db);
+    /**
+     * Delete the raw rows marked deleted more than {@link SmsProvider#RAW_MESSAGE_EXPIRE_AGE_MS}
+     * ago. Run before every query of the raw table, and by {@link RawMessagePurgeService}.
+     *
+     * @return the number of rows deleted
+     */
+    static int purgeDeletedRawMessages(SQLiteDatabase db) {
+        long oldTimestamp = System.currentTimeMillis() - SmsProvider.RAW_MESSAGE_EXPIRE_AGE_MS;
+        int num = db.delete(SmsProvider.TABLE_RAW,
+                RAW_DELETED_CONDITION + " AND date < " + oldTimestamp, null);
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.d(TAG, "purgeDeletedRawMessages: num rows older than " + oldTimestamp +
+                    " purged: " + num);
+        }
+        return num;
+    }
+
+    private static synchronized ExecutorService getRawPurgeExecutor() {
+        if (sRawPurgeExecutor == null) {
+            sRawPurgeExecutor = Executors.newSingleThreadExecutor();
+        }
+        return sRawPurgeExecutor;
     }
 
-    private class LowStorageMonitor extends BroadcastReceiver {
+    /**
+     * Runs {@link #purgeDeletedRawMessages} on the DE database periodically, so that the
+     * deleted rows do not stay around while nothing queries the raw table. Scheduled when the
+     * process opens the database, unless the job is already pending with the same period.
+     */
+    public static class RawMessagePurgeService extends JobService {
+        // Job ids are shared by all the packages of android.uid.phone.
+        private static final int JOB_ID = 0x4d4d5303;
+        // A row is purged at most this long after it expired.
+        @VisibleForTesting
+        static final long PERIOD_MS = SmsProvider.RAW_MESSAGE_EXPIRE_AGE_MS / 2;
+
+        static void schedule(Context context) {
+            JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+            if (isScheduled(jobScheduler.getPendingJob(JOB_ID))) {
+                // Scheduling again would restart the period.
+                return;
+            }
+            Log.d(TAG, "RawMessagePurgeService: scheduling every " + PERIOD_MS + " ms");
+            jobScheduler.schedule(getJobInfo(context));
+        }
 
-        public LowStorageMonitor() {
+        /**
+         * Whether {@code pendingJob}, the pending job of JOB_ID if any, is this job with its
+         * current period. A job left by an older version with another period is replaced.
+         */
+        @VisibleForTesting
+        static boolean isScheduled(JobInfo pendingJob) {
+            return pendingJob != null && pendingJob.isPeriodic()
+                    && pendingJob.getIntervalMillis() == PERIOD_MS
+                    && RawMessagePurgeService.class.getName().equals(
+                            pendingJob.getService().getClassName());
         }
 
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
+        @VisibleForTesting
+        static JobInfo getJobInfo(Context context) {
+            return new JobInfo.Builder(JOB_ID,
+                    new ComponentName(context, RawMessagePurgeService.class))
+                    .setPeriodic(PERIOD_MS)
+                    .build();
+        }
 
-            Log.d(TAG, "[LowStorageMonitor] onReceive intent " + action);
+        @Override
+        public boolean onStartJob(final JobParameters params) {
+            getRawPurgeExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        purgeDeletedRawMessages(
+                                getInstanceForDe(RawMessagePurgeService.this).openDatabase());
+                    } catch (SQLiteException e) {
+                        Log.e(TAG, "purgeDeletedRawMessages: ex. ", e);
+                    }
+                    jobFinished(params, false);
+                }
+            });
+            return true;
+        }
 
-            if (Intent.ACTION_DEVICE_STORAGE_OK.equals(action)) {
-                sTriedAutoIncrement = false;    // try to upgrade on the next getWriteableDatabase
-            }
+        @Override
+        public boolean onStopJob(JobParameters params) {
+            // The next period purges what is left.
+            return false;
         }
     }
 
@@ -21,15 +21,17 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
-import android.os.UserHandle;
 import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.CanonicalAddressesColumns;
@@ -47,7 +49,12 @@ import com.google.android.mms.pdu.PduHeaders;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -109,6 +116,11 @@ public class MmsSmsProvider extends ContentProvider {
 
     public static final int SEARCH_MODE_CONTENT = 0;
     public static final int SEARCH_MODE_NAME = 1;
+    // Set to false to match message contents of search-message with LIKE instead of the words
+    // full-text index.
+    private static final String SEARCH_FULL_TEXT_PARAMETER = "fts";
+    // Cursor extra set on search results while the words index is being rebuilt.
+    private static final String WORDS_INDEX_PARTIAL_KEY = "words_index_partial";
     private static final long RESULT_FOR_ID_NOT_FOUND = -1L;
     /**
      * the name of the table that is used to store the queue of
@@ -127,6 +139,17 @@ public class MmsSmsProvider extends ContentProvider {
      */
     static final String TABLE_THREADS = "threads";
 
+    /**
+     * the name of the table that points at the most recent message of each conversation thread.
+     */
+    static final String TABLE_THREAD_LATEST = "thread_latest";
+
+    /**
+     * the name of the table that is used to store the message counts per transport, box and
+     * subscription.
+     */
+    static final String TABLE_MESSAGE_COUNTERS = "message_counters";
+
     // These constants are used to construct union queries across the
     // MMS and SMS base tables.
 
@@ -188,9 +211,12 @@ public class MmsSmsProvider extends ContentProvider {
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
-    private static final String[] SEARCH_STRING = new String[1];
-    private static final String SEARCH_QUERY = "SELECT snippet(words, '', ' ', '', 1, 1) as " +
-            "snippet FROM words WHERE index_text MATCH ? ORDER BY snippet LIMIT 50;";
+    private static final String SEARCH_QUERY = "SELECT snippet(" + SmsProvider.TABLE_SMS_WORDS +
+            ", '', ' ', '', -1, 1) as snippet FROM " + SmsProvider.TABLE_SMS_WORDS +
+            " WHERE " + SmsProvider.TABLE_SMS_WORDS + " MATCH ? UNION ALL SELECT snippet(" +
+            MmsProvider.TABLE_PART_WORDS + ", '', ' ', '', -1, 1) as snippet FROM " +
+            MmsProvider.TABLE_PART_WORDS + " WHERE " + MmsProvider.TABLE_PART_WORDS +
+            " MATCH ? ORDER BY snippet LIMIT 50;";
 
     private static final String SMS_CONVERSATION_CONSTRAINT = "(" +
             Sms.TYPE + " != " + Sms.MESSAGE_TYPE_DRAFT + ")";
@@ -201,23 +227,58 @@ public class MmsSmsProvider extends ContentProvider {
             Mms.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF + " OR " +
             Mms.MESSAGE_TYPE + " = " + PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND + "))";
 
-    private static String getTextSearchQuery(String smsTable, String pduTable) {
+    // Text search queries by sms and pdu table names, see getTextSearchQuery().
+    private static final HashMap<String, String> sTextSearchQueries =
+            new HashMap<String, String>();
+
+    private static String getTextSearchQuery(String smsTable, String pduTable, boolean ranked) {
+        String key = smsTable + "," + pduTable + (ranked ? ",ranked" : "");
+        synchronized (sTextSearchQueries) {
+            String query = sTextSearchQueries.get(key);
+            if (query == null) {
+                query = buildTextSearchQuery(smsTable, pduTable, ranked);
+                sTextSearchQueries.put(key, query);
+            }
+            return query;
+        }
+    }
+
+    /**
+     * Return the recency-weighted relevance of a text search match: the number of matched tokens
+     * of the document divided by one plus the age of the message in SEARCH_RANK_AGE_UNIT_MS
+     * units. The current time is bound as the first argument of the expression.
+     */
+    private static String getSearchRankExpression(String wordsTable, String dateMs) {
+        String offsets = "offsets(" + wordsTable + ")";
+        return "((length(" + offsets + ") - length(replace(" + offsets + ", ' ', '')) + 1) / 4)"
+                + " / (1.0 + MAX(0, ? - " + dateMs + ") / " + SEARCH_RANK_AGE_UNIT_MS + ".0)";
+    }
+
+    /**
+     * Build the URI_SEARCH query. When ranked, every match is returned with an additional rank
+     * column, best first, and the arguments are the current time and the pattern, twice.
+     * Otherwise the arguments are the pattern, twice.
+     */
+    private static String buildTextSearchQuery(String smsTable, String pduTable,
+            boolean ranked) {
         // Search on the words table but return the rows from the corresponding sms table
         final String smsQuery = "SELECT "
                 + smsTable + "._id AS _id,"
                 + "thread_id,"
                 + "address,"
-                + "body,"
+                + smsTable + ".body AS body,"
                 + "date,"
                 + "date_sent,"
-                + "index_text,"
-                + "words._id "
-                + "FROM " + smsTable + ",words "
-                + "WHERE (index_text MATCH ? "
-                + "AND " + smsTable + "._id=words.source_id "
-                + "AND words.table_to_use=1)";
-
-        // Search on the words table but return the rows from the corresponding parts table
+                + smsTable + ".body AS index_text,"
+                + smsTable + "._id "
+                + (ranked ? ", " + getSearchRankExpression(SmsProvider.TABLE_SMS_WORDS, "date")
+                        + " AS rank " : "")
+                + "FROM " + smsTable + "," + SmsProvider.TABLE_SMS_WORDS + " "
+                + "WHERE (" + SmsProvider.TABLE_SMS_WORDS + " MATCH ? "
+                + "AND " + smsTable + "._id=" + SmsProvider.TABLE_SMS_WORDS + ".docid)";
+
+        // Search on the words table but return the rows from the corresponding parts table.
+        // Part rows used to be indexed with ids starting at 2 << 32, keep returning those.
         final String mmsQuery = "SELECT "
                 + pduTable + "._id,"
                 + "thread_id,"
@@ -225,22 +286,29 @@ public class MmsSmsProvider extends ContentProvider {
                 + "part.text AS body,"
                 + pduTable + ".date,"
                 + pduTable + ".date_sent,"
-                + "index_text,"
-                + "words._id "
-                + "FROM " + pduTable + ",part,addr,words "
+                + "part.text AS index_text,"
+                + (2L << 32) + " + part._id "
+                + (ranked ? ", " + getSearchRankExpression(MmsProvider.TABLE_PART_WORDS,
+                        pduTable + ".date * 1000") + " AS rank " : "")
+                + "FROM " + pduTable + ",part,addr," + MmsProvider.TABLE_PART_WORDS + " "
                 + "WHERE ((part.mid=" + pduTable + "._id) "
                 + "AND (addr.msg_id=" + pduTable + "._id) "
                 + "AND (addr.type=" + PduHeaders.TO + ") "
                 + "AND (part.ct='text/plain') "
-                + "AND (index_text MATCH ?) "
-                + "AND (part._id = words.source_id) "
-                + "AND (words.table_to_use=2))";
+                + "AND (" + MmsProvider.TABLE_PART_WORDS + " MATCH ?) "
+                // One row per part, whatever the number of recipients.
+                + (ranked ? "AND (addr._id=(SELECT MIN(_id) FROM addr WHERE msg_id="
+                        + pduTable + "._id AND type=" + PduHeaders.TO + ")) " : "")
+                + "AND (part._id = " + MmsProvider.TABLE_PART_WORDS + ".docid))";
 
         // This code queries the sms and mms tables and returns a unified result set
         // of text matches.  We query the sms table which is pretty simple.  We also
         // query the pdu, part and addr table to get the mms result.  Note we're
         // using a UNION so we have to have the same number of result columns from
         // both queries.
+        if (ranked) {
+            return smsQuery + " UNION ALL " + mmsQuery + " ORDER BY rank DESC";
+        }
         return smsQuery + " UNION " + mmsQuery + " "
                 + "GROUP BY thread_id "
                 + "ORDER BY thread_id ASC, date DESC";
@@ -321,30 +389,115 @@ public class MmsSmsProvider extends ContentProvider {
     }
 
     private SQLiteOpenHelper mOpenHelper;
+    // Created on first use, guarded by this.
+    private ChangeNotifier mChangeNotifier;
+
+    // Suggestions of the last search-suggest patterns, cleared when messages change.
+    private final SearchSuggestionCache mSuggestionCache = new SearchSuggestionCache();
+    private boolean mSuggestionCacheObserved = false;
+    private final ProviderStartupTrace mStartupTrace = new ProviderStartupTrace(LOG_TAG);
 
     private boolean mUseStrictPhoneNumberComparation;
     private int mMinMatch;
+    // Progress of the running delete_conversations call, in threads.
+    private volatile int mDeleteProcessedThreads;
+    private volatile int mDeleteTotalThreads;
+
+    // Query parameters of URI_CONVERSATIONS_MESSAGES returning a single page of messages,
+    // newest first, that starts after the message with the given normalized date and id.
+    private static final String PAGE_LIMIT_PARAMETER = "limit";
+    private static final String PAGE_BEFORE_DATE_PARAMETER = "before_date";
+    private static final String PAGE_BEFORE_ID_PARAMETER = "before_id";
+    private static final String PAGE_OFFSET_PARAMETER = "offset";
+    // Set to true to order search results by SEARCH_RANK_AGE_UNIT_MS weighted relevance.
+    private static final String SEARCH_RANKED_PARAMETER = "ranked";
+    private static final long SEARCH_RANK_AGE_UNIT_MS = 30L * 24 * 60 * 60 * 1000;
+    // Cursor extra of paged search results: estimated number of matching messages.
+    private static final String ESTIMATED_COUNT_KEY = "estimated_count";
 
     private static final String METHOD_IS_RESTORING = "is_restoring";
     private static final String IS_RESTORING_KEY = "restoring";
+    private static final String METHOD_VERIFY_THREAD_COUNTERS = "verify_thread_counters";
+    private static final String METHOD_GET_MESSAGE_COUNTERS = "get_message_counters";
+    private static final String METHOD_VERIFY_MESSAGE_COUNTERS = "verify_message_counters";
+    private static final String CONSISTENT_KEY = "consistent";
+    // Keys of the get_message_counters result. Per box and per subscription keys are suffixed
+    // with the box (Sms.TYPE or Mms.MESSAGE_BOX) or the subscription id.
+    private static final String COUNTERS_TOTAL_KEY = "total";
+    private static final String COUNTERS_UNREAD_KEY = "unread";
+    private static final String COUNTERS_SMS_PREFIX = "sms_";
+    private static final String COUNTERS_MMS_PREFIX = "mms_";
+    private static final String COUNTERS_BOX_PREFIX = "box_";
+    private static final String COUNTERS_SUB_PREFIX = "sub_";
+    private static final String REPAIR_KEY = "repair";
+    // Delete the messages of the threads given by THREAD_IDS_KEY, or of all threads with messages
+    // older than BEFORE_DATE_KEY (ms), optionally only older than that date and not locked.
+    // The result holds DELETED_MESSAGES_KEY and TOTAL_THREADS_KEY.
+    private static final String METHOD_DELETE_CONVERSATIONS = "delete_conversations";
+    // Return PROCESSED_THREADS_KEY and TOTAL_THREADS_KEY of the running delete_conversations.
+    private static final String METHOD_GET_DELETE_CONVERSATIONS_PROGRESS =
+            "get_delete_conversations_progress";
+    private static final String THREAD_IDS_KEY = "thread_ids";
+    private static final String BEFORE_DATE_KEY = "before_date";
+    private static final String KEEP_LOCKED_KEY = "keep_locked";
+    private static final String DELETED_MESSAGES_KEY = "deleted_messages";
+    private static final String PROCESSED_THREADS_KEY = "processed_threads";
+    private static final String TOTAL_THREADS_KEY = "total_threads";
+    private static final String STALE_THREADS_KEY = "stale_threads";
 
     @Override
     public boolean onCreate() {
-        setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
-        mOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
-        mUseStrictPhoneNumberComparation =
-            getContext().getResources().getBoolean(
-                    com.android.internal.R.bool.config_use_strict_phone_number_comparation);
-        mMinMatch =
-            getContext().getResources().getInteger(
-                    com.android.internal.R.integer.config_phonenumber_compare_min_match);
-        TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExist(getContext());
+        mStartupTrace.beginCreate();
+        try {
+            setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
+            mOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
+            mUseStrictPhoneNumberComparation =
+                getContext().getResources().getBoolean(
+                        com.android.internal.R.bool.config_use_strict_phone_number_comparation);
+            mMinMatch =
+                getContext().getResources().getInteger(
+                        com.android.internal.R.integer.config_phonenumber_compare_min_match);
+            TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExistInBackground(
+                    getContext());
+        } finally {
+            mStartupTrace.endCreate();
+        }
         return true;
     }
 
+    /**
+     * Return the suggestion cache, watching for message changes from its first use on. Nothing
+     * is cached before, so there is nothing to clear.
+     */
+    private SearchSuggestionCache getSuggestionCache() {
+        synchronized (mSuggestionCache) {
+            if (!mSuggestionCacheObserved) {
+                getContext().getContentResolver().registerContentObserver(MmsSms.CONTENT_URI,
+                        true, new ContentObserver(null) {
+                            @Override
+                            public void onChange(boolean selfChange) {
+                                mSuggestionCache.clear();
+                            }
+                        });
+                mSuggestionCacheObserved = true;
+            }
+        }
+        return mSuggestionCache;
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection,
             String selection, String[] selectionArgs, String sortOrder) {
+        long traceStart = mStartupTrace.beginFirstQuery();
+        try {
+            return queryInner(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            mStartupTrace.endFirstQuery(traceStart);
+        }
+    }
+
+    private Cursor queryInner(Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
         // First check if restricted views of the "sms" and "pdu" tables should be used based on the
         // caller's identity. Only system, phone or the default sms app can have full access
         // of sms/mms data. For other apps, we present a restricted view which only contains sent
@@ -388,8 +541,17 @@ public class MmsSmsProvider extends ContentProvider {
                 }
                 break;
             case URI_CONVERSATIONS_MESSAGES:
-                cursor = getConversationMessages(uri.getPathSegments().get(1), projection,
-                        selection, sortOrder, smsTable, pduTable);
+                String limit = uri.getQueryParameter(PAGE_LIMIT_PARAMETER);
+                if (limit != null) {
+                    cursor = getConversationMessagesPage(uri.getPathSegments().get(1),
+                            projection, selection, limit,
+                            uri.getQueryParameter(PAGE_BEFORE_DATE_PARAMETER),
+                            uri.getQueryParameter(PAGE_BEFORE_ID_PARAMETER),
+                            smsTable, pduTable);
+                } else {
+                    cursor = getConversationMessages(uri.getPathSegments().get(1), projection,
+                            selection, sortOrder, smsTable, pduTable);
+                }
                 break;
             case URI_MESSAGES_COUNT:
                 return getAllMessagesCount();
@@ -434,7 +596,7 @@ public class MmsSmsProvider extends ContentProvider {
                         sortOrder);
                 break;
             case URI_SEARCH_SUGGEST: {
-                SEARCH_STRING[0] = uri.getQueryParameter("pattern") + '*' ;
+                String searchPattern = uri.getQueryParameter("pattern") + '*' ;
 
                 // find the words which match the pattern using the snippet function.  The
                 // snippet function parameters mainly describe how to format the result.
@@ -448,7 +610,18 @@ public class MmsSmsProvider extends ContentProvider {
                             "with this query");
                 }
 
-                cursor = db.rawQuery(SEARCH_QUERY, SEARCH_STRING);
+                // While the words index is rebuilt its content changes without notifications,
+                // don't cache suggestions until it is complete.
+                if (MmsSmsDatabaseHelper.isWordsIndexRebuilding(db)) {
+                    cursor = setWordsIndexPartial(db.rawQuery(SEARCH_QUERY,
+                            new String[] { searchPattern, searchPattern }));
+                    break;
+                }
+                cursor = getSuggestionCache().query(db, uri.getQueryParameter("pattern"));
+                if (cursor == null) {
+                    cursor = db.rawQuery(SEARCH_QUERY,
+                            new String[] { searchPattern, searchPattern });
+                }
                 break;
             }
             case URI_MESSAGE_ID_TO_THREAD: {
@@ -491,10 +664,35 @@ public class MmsSmsProvider extends ContentProvider {
                 }
 
                 String searchString = uri.getQueryParameter("pattern") + "*";
+                boolean ranked = uri.getBooleanQueryParameter(SEARCH_RANKED_PARAMETER, false);
+                String limit = uri.getQueryParameter(PAGE_LIMIT_PARAMETER);
+                String offset = uri.getQueryParameter(PAGE_OFFSET_PARAMETER);
+                String query = getTextSearchQuery(smsTable, pduTable, ranked);
+                if (limit != null) {
+                    try {
+                        query += " LIMIT " + Long.parseLong(limit)
+                                + (offset != null ? " OFFSET " + Long.parseLong(offset) : "");
+                    } catch (NumberFormatException exception) {
+                        Log.e(LOG_TAG, "limit and offset must be Longs.");
+                        break;
+                    }
+                }
+                String now = String.valueOf(System.currentTimeMillis());
+                String[] args = ranked
+                        ? new String[] { now, searchString, now, searchString }
+                        : new String[] { searchString, searchString };
 
                 try {
-                    cursor = db.rawQuery(getTextSearchQuery(smsTable, pduTable),
-                            new String[] { searchString, searchString });
+                    cursor = setWordsIndexStatus(db, db.rawQuery(query, args));
+                    if (cursor != null && limit != null) {
+                        // Let clients size a paged result without counting every match.
+                        Bundle extras = new Bundle(cursor.getExtras());
+                        extras.putLong(ESTIMATED_COUNT_KEY,
+                                estimateMatchCount(db, SmsProvider.TABLE_SMS_WORDS, searchString)
+                                + estimateMatchCount(db, MmsProvider.TABLE_PART_WORDS,
+                                        searchString));
+                        cursor.setExtras(extras);
+                    }
                 } catch (Exception ex) {
                     Log.e(LOG_TAG, "got exception: " + ex.toString());
                 }
@@ -628,202 +826,26 @@ public class MmsSmsProvider extends ContentProvider {
         }
     }
 
-    /**
-     * Return the canonical address ID for this address.
-     */
-    private long getSingleAddressId(String address) {
-        boolean isEmail = Mms.isEmailAddress(address);
-        boolean isPhoneNumber = Mms.isPhoneNumber(address);
-
-        // We lowercase all email addresses, but not addresses that aren't numbers, because
-        // that would incorrectly turn an address such as "My Vodafone" into "my vodafone"
-        // and the thread title would be incorrect when displayed in the UI.
-        String refinedAddress = isEmail ? address.toLowerCase() : address;
-
-        String selection = "address=?";
-        String[] selectionArgs;
-        long retVal = -1L;
-
-        if (!isPhoneNumber) {
-            selectionArgs = new String[] { refinedAddress };
-        } else {
-            selection += " OR PHONE_NUMBERS_EQUAL(address, ?, " +
-                        (mUseStrictPhoneNumberComparation ? "1)" : "0, " + mMinMatch + ")");
-            selectionArgs = new String[] { refinedAddress, refinedAddress };
-        }
-
-        Cursor cursor = null;
-
-        try {
-            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-            cursor = db.query(
-                    "canonical_addresses", ID_PROJECTION,
-                    selection, selectionArgs, null, null, null);
-
-            if (cursor.getCount() == 0) {
-                ContentValues contentValues = new ContentValues(1);
-                contentValues.put(CanonicalAddressesColumns.ADDRESS, refinedAddress);
-
-                db = mOpenHelper.getWritableDatabase();
-                retVal = db.insert("canonical_addresses",
-                        CanonicalAddressesColumns.ADDRESS, contentValues);
-
-                Log.d(LOG_TAG, "getSingleAddressId: insert new canonical_address for " +
-                        /*address*/ "xxxxxx" + ", _id=" + retVal);
-
-                return retVal;
-            }
-
-            if (cursor.moveToFirst()) {
-                retVal = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        return retVal;
-    }
-
-    /**
-     * Return the canonical address IDs for these addresses.
-     */
-    private Set<Long> getAddressIds(List<String> addresses) {
-        Set<Long> result = new HashSet<Long>(addresses.size());
-
-        for (String address : addresses) {
-            if (!address.equals(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR)) {
-                long id = getSingleAddressId(address);
-                if (id != RESULT_FOR_ID_NOT_FOUND) {
-                    result.add(id);
-                } else {
-                    Log.e(LOG_TAG, "getAddressIds: address ID not found for " + address);
-                }
-            }
-        }
-        return result;
-    }
-
-    /**
-     * Return a sorted array of the given Set of Longs.
-     */
-    private long[] getSortedSet(Set<Long> numbers) {
-        int size = numbers.size();
-        long[] result = new long[size];
-        int i = 0;
-
-        for (Long number : numbers) {
-            result[i++] = number;
-        }
-
-        if (size > 1) {
-            Arrays.sort(result);
-        }
-
-        return result;
-    }
-
-    /**
-     * Return a String of the numbers in the given array, in order,
-     * separated by spaces.
-     */
-    private String getSpaceSeparatedNumbers(long[] numbers) {
-        int size = numbers.length;
-        StringBuilder buffer = new StringBuilder();
-
-        for (int i = 0; i < size; i++) {
-            if (i != 0) {
-                buffer.append(' ');
-            }
-            buffer.append(numbers[i]);
-        }
-        return buffer.toString();
-    }
-
-    /**
-     * Insert a record for a new thread.
-     */
-    private void insertThread(String recipientIds, int numberOfRecipients) {
-        ContentValues values = new ContentValues(4);
-
-        long date = System.currentTimeMillis();
-        values.put(ThreadsColumns.DATE, date - date % 1000);
-        values.put(ThreadsColumns.RECIPIENT_IDS, recipientIds);
-        if (numberOfRecipients > 1) {
-            values.put(Threads.TYPE, Threads.BROADCAST_THREAD);
-        }
-        values.put(ThreadsColumns.MESSAGE_COUNT, 0);
-
-        long result = mOpenHelper.getWritableDatabase().insert(TABLE_THREADS, null, values);
-        Log.d(LOG_TAG, "insertThread: created new thread_id " + result +
-                " for recipientIds " + /*recipientIds*/ "xxxxxxx");
-
-        getContext().getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                UserHandle.USER_ALL);
-    }
-
-    private static final String THREAD_QUERY =
-            "SELECT _id FROM threads " + "WHERE recipient_ids=?";
-
     /**
      * Return the thread ID for this list of
      * recipients IDs.  If no thread exists with this ID, create
      * one and return it.  Callers should always use
      * Threads.getThreadId to access this information.
      */
-    private synchronized Cursor getThreadId(List<String> recipients) {
-        Set<Long> addressIds = getAddressIds(recipients);
-        String recipientIds = "";
-
-        if (addressIds.size() == 0) {
-            Log.e(LOG_TAG, "getThreadId: NO receipients specified -- NOT creating thread",
-                    new Exception());
-            return null;
-        } else if (addressIds.size() == 1) {
-            // optimize for size==1, which should be most of the cases
-            for (Long addressId : addressIds) {
-                recipientIds = Long.toString(addressId);
-            }
-        } else {
-            recipientIds = getSpaceSeparatedNumbers(getSortedSet(addressIds));
-        }
-
-        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-            Log.d(LOG_TAG, "getThreadId: recipientIds (selectionArgs) =" +
-                    /*recipientIds*/ "xxxxxxx");
-        }
-
-        String[] selectionArgs = new String[] { recipientIds };
-
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        db.beginTransaction();
-        Cursor cursor = null;
+    private Cursor getThreadId(List<String> recipients) {
+        long threadId;
         try {
-            // Find the thread with the given recipients
-            cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
-
-            if (cursor.getCount() == 0) {
-                // No thread with those recipients exists, so create the thread.
-                cursor.close();
-
-                Log.d(LOG_TAG, "getThreadId: create new thread_id for recipients " +
-                        /*recipients*/ "xxxxxxxx");
-                insertThread(recipientIds, recipients.size());
-
-                // The thread was just created, now find it and return it.
-                cursor = db.rawQuery(THREAD_QUERY, selectionArgs);
-            }
-            db.setTransactionSuccessful();
-        } catch (Throwable ex) {
+            threadId = ((MmsSmsDatabaseHelper) mOpenHelper).getOrCreateThreadId(
+                    mOpenHelper.getWritableDatabase(), recipients);
+        } catch (SQLiteException ex) {
             Log.e(LOG_TAG, ex.getMessage(), ex);
-        } finally {
-            db.endTransaction();
+            return null;
         }
-
-        if (cursor != null && cursor.getCount() > 1) {
-            Log.w(LOG_TAG, "getThreadId: why is cursorCount=" + cursor.getCount());
+        if (threadId < 0) {
+            return null;
         }
+        MatrixCursor cursor = new MatrixCursor(ID_PROJECTION, 1);
+        cursor.addRow(new Object[] { threadId });
         return cursor;
     }
 
@@ -948,9 +970,17 @@ public class MmsSmsProvider extends ContentProvider {
      *
      * The msg_box != 3 comparisons ensure that we don't include draft
      * messages.
+     *
+     * Without a selection and with full access to the messages, the most
+     * recent message of each thread is read through the thread_latest
+     * table instead, see {@link #getConversationsFromThreadLatest}.
      */
     private Cursor getConversations(String[] projection, String selection,
             String sortOrder, String smsTable, String pduTable) {
+        if (selection == null && SmsProvider.TABLE_SMS.equals(smsTable)
+                && MmsProvider.TABLE_PDU.equals(pduTable)) {
+            return getConversationsFromThreadLatest(projection, sortOrder);
+        }
         SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
         SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
@@ -990,14 +1020,72 @@ public class MmsSmsProvider extends ContentProvider {
         return mOpenHelper.getReadableDatabase().rawQuery(outerQuery, EMPTY_STRING_ARRAY);
     }
 
+    /**
+     * Return the most recent message in each conversation in both MMS
+     * and SMS, as maintained in the thread_latest table. The result has
+     * the same columns as {@link #getConversations}, but only costs a
+     * primary key lookup per thread.
+     *
+     * Use this query:
+     *
+     *   SELECT ...
+     *     FROM (SELECT thread_id AS tid, date * 1000 AS normalized_date, ...
+     *             FROM pdu
+     *             WHERE _id IN (SELECT msg_id FROM thread_latest WHERE is_mms = 1)
+     *           UNION ALL
+     *           SELECT thread_id AS tid, date AS normalized_date, ...
+     *             FROM sms
+     *             WHERE _id IN (SELECT msg_id FROM thread_latest WHERE is_mms = 0));
+     */
+    private Cursor getConversationsFromThreadLatest(String[] projection, String sortOrder) {
+        SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
+        SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
+
+        mmsQueryBuilder.setTables(MmsProvider.TABLE_PDU);
+        smsQueryBuilder.setTables(SmsProvider.TABLE_SMS);
+
+        String[] columns = handleNullMessageProjection(projection);
+        String[] innerMmsProjection = makeProjectionWithDateAndThreadId(
+                UNION_COLUMNS, 1000);
+        String[] innerSmsProjection = makeProjectionWithDateAndThreadId(
+                UNION_COLUMNS, 1);
+        String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(
+                MmsSms.TYPE_DISCRIMINATOR_COLUMN, innerMmsProjection,
+                MMS_COLUMNS, 1, "mms",
+                BaseColumns._ID + " IN (SELECT msg_id FROM " + TABLE_THREAD_LATEST +
+                        " WHERE is_mms = 1)",
+                null, null);
+        String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(
+                MmsSms.TYPE_DISCRIMINATOR_COLUMN, innerSmsProjection,
+                SMS_COLUMNS, 1, "sms",
+                BaseColumns._ID + " IN (SELECT msg_id FROM " + TABLE_THREAD_LATEST +
+                        " WHERE is_mms = 0)",
+                null, null);
+        SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
+
+        String unionQuery = unionQueryBuilder.buildUnionQuery(
+                new String[] { mmsSubQuery, smsSubQuery }, null, null);
+
+        SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
+
+        outerQueryBuilder.setTables("(" + unionQuery + ")");
+
+        String outerQuery = outerQueryBuilder.buildQuery(
+                columns, null, null, null, sortOrder, null);
+
+        return mOpenHelper.getReadableDatabase().rawQuery(outerQuery, EMPTY_STRING_ARRAY);
+    }
+
     /**
      * Return the first locked message found in the union of MMS
      * and SMS messages.
      *
      * Use this query:
      *
-     *  SELECT _id FROM pdu GROUP BY _id HAVING locked=1 UNION SELECT _id FROM sms GROUP
-     *      BY _id HAVING locked=1 LIMIT 1
+     *  SELECT _id FROM pdu WHERE locked = 1 UNION SELECT _id FROM sms WHERE locked = 1
+     *      LIMIT 1
+     *
+     * The locked condition is a WHERE clause so that the partial locked indices are used.
      *
      * We limit by 1 because we're only interested in knowing if
      * there is *any* locked message, not the actual messages themselves.
@@ -1016,14 +1104,14 @@ public class MmsSmsProvider extends ContentProvider {
         String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(
                 MmsSms.TYPE_DISCRIMINATOR_COLUMN, idColumn,
                 null, 1, "mms",
-                selection,
-                BaseColumns._ID, "locked=1");
+                concatSelections(selection, MmsSmsDatabaseHelper.PDU_LOCKED_CONDITION),
+                null, null);
 
         String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(
                 MmsSms.TYPE_DISCRIMINATOR_COLUMN, idColumn,
                 null, 1, "sms",
-                selection,
-                BaseColumns._ID, "locked=1");
+                concatSelections(selection, MmsSmsDatabaseHelper.SMS_LOCKED_CONDITION),
+                null, null);
 
         SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
 
@@ -1093,13 +1181,71 @@ public class MmsSmsProvider extends ContentProvider {
         return mOpenHelper.getReadableDatabase().rawQuery(unionQuery, EMPTY_STRING_ARRAY);
     }
 
+    /**
+     * Return one page of the union of MMS and SMS messages for this thread ID, ordered by
+     * normalized_date DESC, _id DESC. When 'beforeDateString' is given the page starts right
+     * after the message with that normalized date and, if 'beforeIdString' is given too, id.
+     * The bound and the limit are pushed into both sub-queries so that only 'limitString'
+     * rows are read from each of the (thread_id, date) indexes.
+     */
+    private Cursor getConversationMessagesPage(String threadIdString, String[] projection,
+            String selection, String limitString, String beforeDateString,
+            String beforeIdString, String smsTable, String pduTable) {
+        long threadId;
+        long limit;
+        Long beforeDate = null;
+        Long beforeId = null;
+        try {
+            threadId = Long.parseLong(threadIdString);
+            limit = Long.parseLong(limitString);
+            if (beforeDateString != null) {
+                beforeDate = Long.parseLong(beforeDateString);
+            }
+            if (beforeIdString != null) {
+                beforeId = Long.parseLong(beforeIdString);
+            }
+        } catch (NumberFormatException exception) {
+            Log.e(LOG_TAG, "Thread ID, limit, before_date and before_id must be Longs.");
+            return null;
+        }
+        if (limit <= 0) {
+            Log.e(LOG_TAG, "limit must be positive.");
+            return null;
+        }
+
+        // The page is keyed on _id, make sure it is returned.
+        if (projection != null && !Arrays.asList(projection).contains(BaseColumns._ID)) {
+            String[] pageProjection = Arrays.copyOf(projection, projection.length + 1);
+            pageProjection[projection.length] = BaseColumns._ID;
+            projection = pageProjection;
+        }
+
+        String smsBound = null;
+        String mmsBound = null;
+        if (beforeDate != null) {
+            // The "date <=" terms are redundant but, unlike normalized_date, can be
+            // answered by the (thread_id, date) indexes. MMS dates are in seconds.
+            smsBound = "date <= " + beforeDate + " AND (date < " + beforeDate
+                    + (beforeId != null ? " OR " + smsTable + "._id < " + beforeId : "") + ")";
+            mmsBound = "date <= " + (beforeDate / 1000) + " AND (date * 1000 < " + beforeDate
+                    + (beforeId != null ? " OR " + pduTable + "._id < " + beforeId : "") + ")";
+        }
+
+        String finalSelection = concatSelections(selection, "thread_id = " + threadId);
+        String unionQuery = buildConversationQuery(projection, finalSelection,
+                "normalized_date DESC, _id DESC", smsTable, pduTable, smsBound, mmsBound,
+                Long.toString(limit));
+
+        return mOpenHelper.getReadableDatabase().rawQuery(unionQuery, EMPTY_STRING_ARRAY);
+    }
+
     /**
      * Return the SMS messages count on phone
      */
     private Cursor getAllMessagesCount() {
-        String unionQuery = "select sum(a) AS count, 1 AS _id "
-                + "from (" + "select count(sms._id) as a, 2 AS b from sms, threads"
-                + " where thread_id NOTNULL AND thread_id = threads._id)";
+        String unionQuery = "select ifnull(sum(total), 0) AS count, 1 AS _id "
+                + "from " + TABLE_MESSAGE_COUNTERS
+                + " where transport = " + MmsSmsDatabaseHelper.MESSAGE_COUNTERS_SMS;
 
         return mOpenHelper.getReadableDatabase().rawQuery(unionQuery, EMPTY_STRING_ARRAY);
     }
@@ -1122,21 +1268,35 @@ public class MmsSmsProvider extends ContentProvider {
      *   FROM sms
      *   WHERE (address='<phoneNumber>' OR
      *          PHONE_NUMBERS_EQUAL(sms.address, '<phoneNumber>', 1/0, none/mMinMatch));
+     *
+     * When the minimum match allows it, both address conditions are additionally restricted to
+     * rows whose address key equals the key of the phone number, so that the candidates come
+     * from the address key indices instead of full scans of sms and addr.
      */
     private Cursor getMessagesByPhoneNumber(
             String phoneNumber, String[] projection, String selection,
             String sortOrder, String smsTable, String pduTable) {
         String escapedPhoneNumber = DatabaseUtils.sqlEscapeString(phoneNumber);
+        String smsAddressMatch = "(address=" + escapedPhoneNumber +
+                " OR PHONE_NUMBERS_EQUAL(address, " + escapedPhoneNumber +
+                (mUseStrictPhoneNumberComparation ? ", 1))" : ", 0, " + mMinMatch + "))");
+        String addrAddressMatch = "(address=" + escapedPhoneNumber +
+                " OR PHONE_NUMBERS_EQUAL(addr.address, " + escapedPhoneNumber +
+                (mUseStrictPhoneNumberComparation ? ", 1))" : ", 0, " + mMinMatch + "))");
+        if (mUseStrictPhoneNumberComparation
+                || mMinMatch >= MmsSmsDatabaseHelper.ADDRESS_KEY_LENGTH) {
+            String escapedKey = DatabaseUtils.sqlEscapeString(
+                    MmsSmsDatabaseHelper.getAddressKey(phoneNumber));
+            smsAddressMatch = MmsSmsDatabaseHelper.addressKeyExpression("address") + "="
+                    + escapedKey + " AND " + smsAddressMatch;
+            addrAddressMatch = MmsSmsDatabaseHelper.addressKeyExpression("addr.address") + "="
+                    + escapedKey + " AND " + addrAddressMatch;
+        }
         String finalMmsSelection =
                 concatSelections(
                         selection,
                         pduTable + "._id = matching_addresses.address_msg_id");
-        String finalSmsSelection =
-                concatSelections(
-                        selection,
-                        "(address=" + escapedPhoneNumber + " OR PHONE_NUMBERS_EQUAL(address, " +
-                        escapedPhoneNumber +
-                        (mUseStrictPhoneNumberComparation ? ", 1))" : ", 0, " + mMinMatch + "))"));
+        String finalSmsSelection = concatSelections(selection, smsAddressMatch);
         SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
         SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
@@ -1145,10 +1305,7 @@ public class MmsSmsProvider extends ContentProvider {
         mmsQueryBuilder.setTables(
                 pduTable +
                 ", (SELECT msg_id AS address_msg_id " +
-                "FROM addr WHERE (address=" + escapedPhoneNumber +
-                " OR PHONE_NUMBERS_EQUAL(addr.address, " +
-                escapedPhoneNumber +
-                (mUseStrictPhoneNumberComparation ? ", 1))) " : ", 0, " + mMinMatch + "))) ") +
+                "FROM addr WHERE " + addrAddressMatch + ") " +
                 "AS matching_addresses");
         smsQueryBuilder.setTables(smsTable);
 
@@ -1222,12 +1379,11 @@ public class MmsSmsProvider extends ContentProvider {
         mmsQueryBuilder.setTables(joinPduAndPendingMsgTables(pduTable));
         smsQueryBuilder.setTables(smsTable);
 
+        // Conditions served by the message state indices.
         String finalMmsSelection = concatSelections(
-                selection, Mms.MESSAGE_BOX + " = " + Mms.MESSAGE_BOX_OUTBOX);
+                selection, MmsSmsDatabaseHelper.PDU_OUTBOX_CONDITION);
         String finalSmsSelection = concatSelections(
-                selection, "(" + Sms.TYPE + " = " + Sms.MESSAGE_TYPE_OUTBOX
-                + " OR " + Sms.TYPE + " = " + Sms.MESSAGE_TYPE_FAILED
-                + " OR " + Sms.TYPE + " = " + Sms.MESSAGE_TYPE_QUEUED + ")");
+                selection, MmsSmsDatabaseHelper.SMS_UNDELIVERED_CONDITION);
 
         String[] smsColumns = handleNullMessageProjection(projection);
         String[] mmsColumns = handleNullMessageProjection(mmsProjection);
@@ -1280,6 +1436,18 @@ public class MmsSmsProvider extends ContentProvider {
 
     private static String buildConversationQuery(String[] projection,
             String selection, String sortOrder, String smsTable, String pduTable) {
+        return buildConversationQuery(projection, selection, sortOrder, smsTable, pduTable,
+                null, null, null);
+    }
+
+    /**
+     * Build the conversation query. If 'limit' is not null, each sub-query only returns its
+     * 'limit' newest rows matching its own additional bound ('smsBound' or 'mmsBound'), and
+     * so does the whole query.
+     */
+    private static String buildConversationQuery(String[] projection,
+            String selection, String sortOrder, String smsTable, String pduTable,
+            String smsBound, String mmsBound, String limit) {
         String[] mmsProjection = createMmsProjection(projection, pduTable);
 
         SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
@@ -1304,19 +1472,28 @@ public class MmsSmsProvider extends ContentProvider {
         String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(
                 MmsSms.TYPE_DISCRIMINATOR_COLUMN, innerMmsProjection,
                 columnsPresentInTable, 0, "mms",
-                concatSelections(mmsSelection, MMS_CONVERSATION_CONSTRAINT),
+                concatSelections(concatSelections(mmsSelection, MMS_CONVERSATION_CONSTRAINT),
+                        mmsBound),
                 null, null);
         String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(
                 MmsSms.TYPE_DISCRIMINATOR_COLUMN, innerSmsProjection, SMS_COLUMNS,
-                0, "sms", concatSelections(selection, SMS_CONVERSATION_CONSTRAINT),
+                0, "sms", concatSelections(concatSelections(selection,
+                        SMS_CONVERSATION_CONSTRAINT), smsBound),
                 null, null);
+        if (limit != null) {
+            // Order on the date column itself so the index provides the order.
+            mmsSubQuery = "SELECT * FROM (" + mmsSubQuery + " ORDER BY " + pduTable
+                    + ".date DESC, " + pduTable + "._id DESC LIMIT " + limit + ")";
+            smsSubQuery = "SELECT * FROM (" + smsSubQuery + " ORDER BY " + smsTable
+                    + ".date DESC, " + smsTable + "._id DESC LIMIT " + limit + ")";
+        }
         SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
 
         unionQueryBuilder.setDistinct(true);
 
         String unionQuery = unionQueryBuilder.buildUnionQuery(
                 new String[] { smsSubQuery, mmsSubQuery },
-                handleNullSortOrder(sortOrder), null);
+                handleNullSortOrder(sortOrder), limit);
 
         SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
 
@@ -1369,8 +1546,7 @@ public class MmsSmsProvider extends ContentProvider {
         }
 
         if (affectedRows > 0) {
-            context.getContentResolver().notifyChange(MmsSms.CONTENT_URI, null, true,
-                    UserHandle.USER_ALL);
+            getChangeNotifier().notifyChange(MmsSms.CONTENT_URI);
         }
         return affectedRows;
     }
@@ -1388,6 +1564,84 @@ public class MmsSmsProvider extends ContentProvider {
                 + db.delete("sms", finalSelection, selectionArgs);
     }
 
+    /**
+     * Delete the messages of many conversations in a single transaction, with a single update of
+     * the threads and a single notification, see {@link #METHOD_DELETE_CONVERSATIONS}.
+     */
+    private Bundle deleteConversations(Bundle extras) {
+        long[] requestedThreadIds = extras != null ? extras.getLongArray(THREAD_IDS_KEY) : null;
+        long beforeDate = extras != null ? extras.getLong(BEFORE_DATE_KEY, -1) : -1;
+        boolean keepLocked = extras != null && extras.getBoolean(KEEP_LOCKED_KEY, false);
+        if (requestedThreadIds == null && beforeDate < 0) {
+            throw new IllegalArgumentException("delete_conversations needs " + THREAD_IDS_KEY
+                    + " or " + BEFORE_DATE_KEY);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Context context = getContext();
+        String smsCondition = keepLocked ? Sms.LOCKED + " = 0" : null;
+        String mmsCondition = keepLocked ? Mms.LOCKED + " = 0" : null;
+        if (beforeDate >= 0) {
+            smsCondition = concatSelections(smsCondition, Sms.DATE + " < " + beforeDate);
+            mmsCondition = concatSelections(mmsCondition, Mms.DATE + " < " + beforeDate / 1000);
+        }
+
+        int deletedSms = 0;
+        int deletedMms = 0;
+        HashSet<Long> threadIds = new HashSet<Long>();
+        db.beginTransaction();
+        try {
+            ArrayList<Long> ids = new ArrayList<Long>();
+            if (requestedThreadIds != null) {
+                for (long threadId : requestedThreadIds) {
+                    ids.add(threadId);
+                }
+            } else {
+                Cursor c = db.rawQuery("SELECT thread_id FROM sms WHERE " + smsCondition
+                        + " UNION SELECT thread_id FROM pdu WHERE " + mmsCondition, null);
+                try {
+                    while (c.moveToNext()) {
+                        ids.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            mDeleteTotalThreads = ids.size();
+            mDeleteProcessedThreads = 0;
+
+            for (int start = 0; start < ids.size();
+                    start += MmsSmsDatabaseHelper.MAX_THREAD_IDS_PER_STATEMENT) {
+                List<Long> chunk = ids.subList(start, Math.min(ids.size(),
+                        start + MmsSmsDatabaseHelper.MAX_THREAD_IDS_PER_STATEMENT));
+                String inThreads = "thread_id IN (" + TextUtils.join(",", chunk) + ")";
+                deletedSms += db.delete(SmsProvider.TABLE_SMS,
+                        concatSelections(inThreads, smsCondition), null);
+                deletedMms += MmsProvider.deleteMessagesOnly(db,
+                        concatSelections(inThreads, mmsCondition), null, threadIds);
+                threadIds.addAll(chunk);
+                mDeleteProcessedThreads = start + chunk.size();
+            }
+            MmsSmsDatabaseHelper.updateThreads(db, threadIds);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mDeleteTotalThreads = 0;
+            mDeleteProcessedThreads = 0;
+        }
+
+        if (deletedMms > 0) {
+            MmsProvider.broadcastDeletedContents(context, Mms.CONTENT_URI);
+        }
+        if (deletedSms + deletedMms > 0) {
+            getChangeNotifier().notifyChange(MmsSms.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(DELETED_MESSAGES_KEY, deletedSms + deletedMms);
+        result.putInt(TOTAL_THREADS_KEY, threadIds.size());
+        return result;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -1455,8 +1709,7 @@ public class MmsSmsProvider extends ContentProvider {
         }
 
         if (affectedRows > 0) {
-            getContext().getContentResolver().notifyChange(
-                    MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
+            getChangeNotifier().notifyChange(MmsSms.CONTENT_URI);
         }
         return affectedRows;
     }
@@ -1516,6 +1769,13 @@ public class MmsSmsProvider extends ContentProvider {
         }
     }
 
+    private synchronized ChangeNotifier getChangeNotifier() {
+        if (mChangeNotifier == null) {
+            mChangeNotifier = new ChangeNotifier(getContext());
+        }
+        return mChangeNotifier;
+    }
+
     @Override
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         // Dump default SMS app
@@ -1524,24 +1784,188 @@ public class MmsSmsProvider extends ContentProvider {
             defaultSmsApp = "None";
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        ChangeNotifier.dump(writer);
     }
 
     private Cursor getSearchMessages(Uri uri, SQLiteDatabase db,
                                      String smsTable, String pduTable) {
-        String searchString = "%" + uri.getQueryParameter("key_str") + "%";
+        String keyString = uri.getQueryParameter("key_str");
+        String searchString = "%" + keyString + "%";
         String threadIdString = uri.getQueryParameter("thread_ids");
         int searchMode = SEARCH_MODE_NAME;
         if (threadIdString == null || threadIdString.equals(DEFAULT_STRING_ZERO))
             searchMode = SEARCH_MODE_CONTENT;
+        // The words table misses rows while it is rebuilt, match with LIKE until then.
+        boolean wordsIndexRebuilding = MmsSmsDatabaseHelper.isWordsIndexRebuilding(db);
+        String matchString = uri.getBooleanQueryParameter(SEARCH_FULL_TEXT_PARAMETER, true)
+                && !wordsIndexRebuilding ? getFullTextMatchString(keyString) : null;
         if (DEBUG) {
-            Log.d(LOG_TAG, "keystr=" + searchString +
+            Log.d(LOG_TAG, "keystr=" + searchString + "|matchString=" + matchString +
                     "|searchMode=" + searchMode + "|threadIdString=" + threadIdString);
         }
+        if (matchString != null) {
+            String rawQuery = getFullTextConversationQueryString(searchMode, smsTable,
+                    pduTable, threadIdString);
+            return db.rawQuery(rawQuery,
+                    new String[]{matchString, matchString, searchString, searchString});
+        }
         String rawQuery = getConversationQueryString(searchMode, smsTable,
                 pduTable, threadIdString);
         String[] strArray = new String[]{searchString, searchString, searchString,
                 searchString, searchString};
-        return db.rawQuery(rawQuery, strArray);
+        Cursor cursor = db.rawQuery(rawQuery, strArray);
+        return wordsIndexRebuilding ? setWordsIndexPartial(cursor) : cursor;
+    }
+
+    /**
+     * Flag the extras of a cursor read from the words table with {@link #WORDS_INDEX_PARTIAL_KEY}
+     * while the words table is being rebuilt and may miss matches.
+     */
+    private static Cursor setWordsIndexStatus(SQLiteDatabase db, Cursor cursor) {
+        return MmsSmsDatabaseHelper.isWordsIndexRebuilding(db)
+                ? setWordsIndexPartial(cursor) : cursor;
+    }
+
+    private static Cursor setWordsIndexPartial(Cursor cursor) {
+        if (cursor != null) {
+            Bundle extras = new Bundle(cursor.getExtras());
+            extras.putBoolean(WORDS_INDEX_PARTIAL_KEY, true);
+            cursor.setExtras(extras);
+        }
+        return cursor;
+    }
+
+    /**
+     * Estimate the number of rows of {@code wordsTable} matching {@code match} from the FTS
+     * statistics of a single matching row: matchinfo 'x' reports, for each phrase of the query,
+     * the number of rows containing it, and the smallest one bounds the number of matches.
+     */
+    private static long estimateMatchCount(SQLiteDatabase db, String wordsTable, String match) {
+        Cursor c = db.rawQuery("SELECT matchinfo(" + wordsTable + ", 'x') FROM " + wordsTable
+                + " WHERE " + wordsTable + " MATCH ? LIMIT 1", new String[] { match });
+        if (c == null) {
+            return 0;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            IntBuffer info = ByteBuffer.wrap(c.getBlob(0)).order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+            long count = Long.MAX_VALUE;
+            // Three integers per phrase for the single column, the last one is the row count.
+            for (int i = 2; i < info.limit(); i += 3) {
+                count = Math.min(count, info.get(i));
+            }
+            return count == Long.MAX_VALUE ? 0 : count;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the words table MATCH argument for a search key: a phrase of the words of the key
+     * where the last word is matched as a prefix, or null if the key has no word to match.
+     */
+    private static String getFullTextMatchString(String keyString) {
+        if (keyString == null) {
+            return null;
+        }
+        StringBuilder phrase = new StringBuilder();
+        for (String word : keyString.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                if (phrase.length() > 0) {
+                    phrase.append(' ');
+                }
+                phrase.append(word);
+            }
+        }
+        return phrase.length() == 0 ? null : "\"" + phrase + "*\"";
+    }
+
+    /**
+     * Same as {@link #getConversationQueryString} but message bodies and text parts are matched
+     * through the words full-text index. The MMS subject, which is not indexed, and recipient
+     * addresses, which are matched as substrings against canonical_addresses, still use LIKE.
+     * The query arguments are the MATCH phrase twice followed by the LIKE pattern twice.
+     */
+    private String getFullTextConversationQueryString(int searchMode,
+                String smsTable, String pduTable, final String threadIds) {
+        final String NAME_PROJECTION = "threads._id AS _id,"
+                + "threads.date AS date,"
+                + "threads.message_count AS message_count,"
+                + "threads.recipient_ids AS recipient_ids,"
+                + "threads.snippet AS snippet,"
+                + "threads.snippet_cs AS snippet_cs,"
+                + "threads.read AS read,"
+                + "NULL AS error,"
+                + "threads.has_attachment AS has_attachment,"
+                + "threads.attachment_info AS attachment_info";
+        final String SMS_PROJECTION = "threads._id AS _id,"
+                + smsTable + ".date AS date,"
+                + "threads.message_count AS message_count,"
+                + "threads.recipient_ids AS recipient_ids,"
+                + smsTable + ".body AS snippet,"
+                + "threads.snippet_cs AS snippet_cs,"
+                + "threads.read AS read,"
+                + "NULL AS error,"
+                + "threads.has_attachment AS has_attachment,"
+                + "'SMS' AS attachment_info";
+        final String PDU_PROJECTION = "threads._id AS _id,"
+                + pduTable + ".date * 1000 AS date,"
+                + "threads.message_count AS message_count,"
+                + "threads.recipient_ids AS recipient_ids,"
+                + pduTable + ".sub AS snippet,"
+                + pduTable + ".sub_cs AS snippet_cs,"
+                + "threads.read AS read,"
+                + "NULL AS error,"
+                + "threads.has_attachment AS has_attachment,"
+                + "part.text AS attachment_info";
+
+        String threadCondition = searchMode == SEARCH_MODE_NAME
+                ? "(threads._id NOT in (" + threadIds + ")) AND " : "";
+        String smsContentQuery = "SELECT " + SMS_PROJECTION + " FROM "
+                + SmsProvider.TABLE_SMS_WORDS + ", " + smsTable + ", threads"
+                + " WHERE (" + threadCondition
+                + "(" + SmsProvider.TABLE_SMS_WORDS + " MATCH ?)"
+                + " AND (" + smsTable + "._id=" + SmsProvider.TABLE_SMS_WORDS + ".docid)"
+                + " AND (" + smsTable + ".thread_id=threads._id))"
+                + " GROUP BY threads._id";
+        String partContentQuery = "SELECT " + PDU_PROJECTION + " FROM "
+                + MmsProvider.TABLE_PART_WORDS + ", part, " + pduTable + ", threads"
+                + " WHERE (" + threadCondition
+                + "(" + MmsProvider.TABLE_PART_WORDS + " MATCH ?)"
+                + " AND (part._id=" + MmsProvider.TABLE_PART_WORDS + ".docid)"
+                + " AND (part.ct='text/plain')"
+                + " AND (" + pduTable + "._id=part.mid)"
+                + " AND (threads._id=" + pduTable + ".thread_id))"
+                + " GROUP BY threads._id";
+        String subjectQuery = "SELECT " + PDU_PROJECTION + " FROM threads, " + pduTable
+                + " LEFT JOIN part ON (part.mid=" + pduTable + "._id"
+                + " AND part.ct='text/plain')"
+                + " WHERE (" + threadCondition
+                + "(threads._id=" + pduTable + ".thread_id)"
+                + " AND (" + pduTable + ".sub LIKE ? ESCAPE '" + SEARCH_ESCAPE_CHARACTER + "'))"
+                + " GROUP BY threads._id";
+        String addressQuery = "SELECT " + NAME_PROJECTION + " FROM threads"
+                + " WHERE (" + threadCondition
+                + "EXISTS (SELECT 1 FROM canonical_addresses"
+                + " WHERE (canonical_addresses.address LIKE ? ESCAPE '"
+                + SEARCH_ESCAPE_CHARACTER + "')"
+                + " AND (' ' || threads.recipient_ids || ' ')"
+                + " LIKE ('% ' || canonical_addresses._id || ' %')))";
+
+        String rawQuery = smsContentQuery + " UNION " + partContentQuery
+                + " UNION " + subjectQuery + " UNION " + addressQuery;
+        if (searchMode == SEARCH_MODE_NAME) {
+            rawQuery = "SELECT " + NAME_PROJECTION + " FROM threads WHERE threads._id in ("
+                    + threadIds + ") UNION " + rawQuery;
+        }
+        rawQuery += " ORDER BY date DESC";
+        if (DEBUG) {
+            Log.d(LOG_TAG, "getFullTextConversationQueryString = " + rawQuery);
+        }
+        return rawQuery;
     }
 
     private String getConversationQueryString(int searchMode,
@@ -1652,6 +2076,50 @@ public class MmsSmsProvider extends ContentProvider {
         return rawQuery;
     }
 
+    /**
+     * Return the message counters: the total and unread number of messages overall, per
+     * transport ("sms_"/"mms_" prefixed), per box of each transport ("sms_box_<type>_" and
+     * "mms_box_<msg_box>_" prefixed) and per subscription ("sub_<id>_" prefixed). This only
+     * reads the few rows of the message_counters table.
+     */
+    private Bundle getMessageCounters() {
+        Bundle result = new Bundle();
+        int total = 0;
+        int unread = 0;
+        Cursor c = mOpenHelper.getReadableDatabase().query(TABLE_MESSAGE_COUNTERS,
+                new String[] { "transport", "box", "sub_id", "total", "unread" },
+                null, null, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    String transport = c.getInt(0) == MmsSmsDatabaseHelper.MESSAGE_COUNTERS_SMS
+                            ? COUNTERS_SMS_PREFIX : COUNTERS_MMS_PREFIX;
+                    int rowTotal = c.getInt(3);
+                    int rowUnread = c.getInt(4);
+                    total += rowTotal;
+                    unread += rowUnread;
+                    addToCounter(result, transport, rowTotal, rowUnread);
+                    addToCounter(result, transport + COUNTERS_BOX_PREFIX + c.getInt(1) + "_",
+                            rowTotal, rowUnread);
+                    addToCounter(result, COUNTERS_SUB_PREFIX + c.getInt(2) + "_",
+                            rowTotal, rowUnread);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        result.putInt(COUNTERS_TOTAL_KEY, total);
+        result.putInt(COUNTERS_UNREAD_KEY, unread);
+        return result;
+    }
+
+    private static void addToCounter(Bundle counters, String prefix, int total, int unread) {
+        counters.putInt(prefix + COUNTERS_TOTAL_KEY,
+                counters.getInt(prefix + COUNTERS_TOTAL_KEY) + total);
+        counters.putInt(prefix + COUNTERS_UNREAD_KEY,
+                counters.getInt(prefix + COUNTERS_UNREAD_KEY) + unread);
+    }
+
     @Override
     public Bundle call(String method, String arg, Bundle extras) {
         if (METHOD_IS_RESTORING.equals(method)) {
@@ -1659,6 +2127,51 @@ public class MmsSmsProvider extends ContentProvider {
             result.putBoolean(IS_RESTORING_KEY, TelephonyBackupAgent.getIsRestoring());
             return result;
         }
+        if (METHOD_GET_MESSAGE_COUNTERS.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(
+                    android.Manifest.permission.READ_SMS, "get_message_counters");
+            return getMessageCounters();
+        }
+        if (METHOD_VERIFY_MESSAGE_COUNTERS.equals(method)) {
+            if (ProviderUtil.isAccessRestricted(
+                    getContext(), getCallingPackage(), Binder.getCallingUid())) {
+                throw new SecurityException("verify_message_counters called from a caller that "
+                        + "is not system, phone or the default SMS app");
+            }
+            boolean repair = extras != null && extras.getBoolean(REPAIR_KEY, false);
+            Bundle result = new Bundle();
+            result.putBoolean(CONSISTENT_KEY, MmsSmsDatabaseHelper.verifyMessageCounters(
+                    mOpenHelper.getWritableDatabase(), repair));
+            return result;
+        }
+        if (METHOD_DELETE_CONVERSATIONS.equals(method)) {
+            if (ProviderUtil.isAccessRestricted(
+                    getContext(), getCallingPackage(), Binder.getCallingUid())) {
+                throw new SecurityException("delete_conversations called from a caller that "
+                        + "is not system, phone or the default SMS app");
+            }
+            return deleteConversations(extras);
+        }
+        if (METHOD_GET_DELETE_CONVERSATIONS_PROGRESS.equals(method)) {
+            getContext().enforceCallingOrSelfPermission(
+                    android.Manifest.permission.READ_SMS, "get_delete_conversations_progress");
+            Bundle result = new Bundle();
+            result.putInt(PROCESSED_THREADS_KEY, mDeleteProcessedThreads);
+            result.putInt(TOTAL_THREADS_KEY, mDeleteTotalThreads);
+            return result;
+        }
+        if (METHOD_VERIFY_THREAD_COUNTERS.equals(method)) {
+            if (ProviderUtil.isAccessRestricted(
+                    getContext(), getCallingPackage(), Binder.getCallingUid())) {
+                throw new SecurityException("verify_thread_counters called from a caller that "
+                        + "is not system, phone or the default SMS app");
+            }
+            boolean repair = extras != null && extras.getBoolean(REPAIR_KEY, false);
+            Bundle result = new Bundle();
+            result.putInt(STALE_THREADS_KEY, MmsSmsDatabaseHelper.verifyThreadCounters(
+                    mOpenHelper.getWritableDatabase(), repair));
+            return result;
+        }
         Log.w(LOG_TAG, "Ignored unsupported " + method + " call");
         return null;
     }
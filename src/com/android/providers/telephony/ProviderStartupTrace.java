@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cold start timing of a provider: the time spent in its onCreate() and in its first query,
+ * which opens the database. Both appear as sections in system traces, and are logged when
+ * debug logging is enabled for the tag of the provider.
+ *
+ * Usage: call {@link #beginCreate} and {@link #endCreate} around the body of onCreate(), and
+ * {@link #beginFirstQuery} and {@link #endFirstQuery} around the body of query().
+ */
+public class ProviderStartupTrace {
+    private final String mTag;
+    private final AtomicBoolean mQueried = new AtomicBoolean(false);
+    private long mCreateStart;
+
+    ProviderStartupTrace(String tag) {
+        mTag = tag;
+    }
+
+    void beginCreate() {
+        Trace.beginSection(mTag + ".onCreate");
+        mCreateStart = SystemClock.elapsedRealtime();
+    }
+
+    void endCreate() {
+        Trace.endSection();
+        if (Log.isLoggable(mTag, Log.DEBUG)) {
+            Log.d(mTag, "onCreate took " + (SystemClock.elapsedRealtime() - mCreateStart) + " ms");
+        }
+    }
+
+    /**
+     * Start timing the query about to run if it is the first one of the provider.
+     *
+     * @return the value to pass to {@link #endFirstQuery}, -1 if this is not the first query
+     */
+    long beginFirstQuery() {
+        if (mQueried.getAndSet(true)) {
+            return -1;
+        }
+        Trace.beginSection(mTag + ".firstQuery");
+        return SystemClock.elapsedRealtime();
+    }
+
+    void endFirstQuery(long start) {
+        if (start < 0) {
+            return;
+        }
+        Trace.endSection();
+        if (Log.isLoggable(mTag, Log.DEBUG)) {
+            Log.d(mTag, "first query took " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+}
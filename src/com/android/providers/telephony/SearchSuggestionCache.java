@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prefix cache of the search suggestions of {@link MmsSmsProvider}.
+ *
+ * For a pattern, the words index is queried once for every matching document and the tokens
+ * matching the pattern are kept. As long as all the matches could be kept, a longer pattern
+ * typed after it is answered by filtering those tokens in memory instead of probing the index
+ * again. The cache must be cleared whenever messages change.
+ */
+public class SearchSuggestionCache {
+    // Number of patterns kept.
+    private static final int MAX_ENTRIES = 8;
+    // Above this many matching documents a pattern is not cached.
+    @VisibleForTesting
+    static final int MAX_DOCUMENTS = 500;
+    // Number of suggestions returned, as in MmsSmsProvider.SEARCH_QUERY.
+    private static final int MAX_SUGGESTIONS = 50;
+
+    // The first column tells which words table the document comes from.
+    private static final String OFFSETS_QUERY = "SELECT * FROM (SELECT 1, offsets(" +
+            SmsProvider.TABLE_SMS_WORDS + "), " + SmsProvider.TABLE_SMS_WORDS + ".body FROM " +
+            SmsProvider.TABLE_SMS_WORDS + " WHERE " + SmsProvider.TABLE_SMS_WORDS +
+            " MATCH ? LIMIT " + (MAX_DOCUMENTS + 1) + ") UNION ALL SELECT * FROM (SELECT 2, " +
+            "offsets(" + MmsProvider.TABLE_PART_WORDS + "), " + MmsProvider.TABLE_PART_WORDS +
+            ".text FROM " + MmsProvider.TABLE_PART_WORDS + " WHERE " +
+            MmsProvider.TABLE_PART_WORDS + " MATCH ? LIMIT " + (MAX_DOCUMENTS + 1) + ")";
+
+    // Matches of each matching document, in document order, by lower case pattern.
+    private final LinkedHashMap<String, List<List<Match>>> mEntries =
+            new LinkedHashMap<String, List<List<Match>>>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, List<List<Match>>> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Incremented by clear(), so that results read before a change are not cached after it.
+    private int mGeneration;
+
+    /**
+     * Return the suggestions for {@code pattern}, or null if the pattern cannot be answered from
+     * the cache and is too broad to be cached; the caller then runs the full query.
+     */
+    public Cursor query(SQLiteDatabase db, String pattern) {
+        if (pattern == null || !isSingleToken(pattern)) {
+            return null;
+        }
+        String key = asciiLowerCase(pattern);
+        int generation;
+        synchronized (mEntries) {
+            generation = mGeneration;
+        }
+        List<List<Match>> documents = find(key);
+        if (documents == null) {
+            documents = load(db, pattern);
+            if (documents == null) {
+                return null;
+            }
+        }
+        synchronized (mEntries) {
+            if (generation == mGeneration) {
+                mEntries.put(key, documents);
+            }
+        }
+        return toCursor(documents);
+    }
+
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Return the documents of the longest cached pattern that {@code key} extends, refined to
+     * the tokens matching {@code key}.
+     */
+    private List<List<Match>> find(String key) {
+        List<List<Match>> cached = null;
+        int cachedLength = -1;
+        synchronized (mEntries) {
+            for (Map.Entry<String, List<List<Match>>> entry : mEntries.entrySet()) {
+                String prefix = entry.getKey();
+                if (key.startsWith(prefix) && prefix.length() > cachedLength) {
+                    cached = entry.getValue();
+                    cachedLength = prefix.length();
+                }
+            }
+        }
+        if (cached == null) {
+            return null;
+        }
+        if (cachedLength == key.length()) {
+            return cached;
+        }
+        List<List<Match>> refined = new ArrayList<List<Match>>();
+        for (List<Match> matches : cached) {
+            List<Match> matching = new ArrayList<Match>();
+            for (Match match : matches) {
+                if (asciiLowerCase(match.token).startsWith(key)) {
+                    matching.add(match);
+                }
+            }
+            if (!matching.isEmpty()) {
+                refined.add(matching);
+            }
+        }
+        return refined;
+    }
+
+    /**
+     * Read the matches of {@code pattern} in every matching document, or return null if
+     * there are more than {@link #MAX_DOCUMENTS} of them in a words table.
+     */
+    private static List<List<Match>> load(SQLiteDatabase db, String pattern) {
+        String match = pattern + '*';
+        Cursor c = db.rawQuery(OFFSETS_QUERY, new String[] { match, match });
+        if (c == null) {
+            return null;
+        }
+        try {
+            List<List<Match>> documents = new ArrayList<List<Match>>(c.getCount());
+            int smsDocuments = 0;
+            while (c.moveToNext()) {
+                if (c.getInt(0) == 1) {
+                    smsDocuments++;
+                }
+                List<Match> matches = getMatches(c.getString(1), c.getString(2));
+                if (!matches.isEmpty()) {
+                    documents.add(matches);
+                }
+            }
+            // Only complete results can be refined.
+            if (smsDocuments > MAX_DOCUMENTS
+                    || documents.size() - smsDocuments > MAX_DOCUMENTS) {
+                return null;
+            }
+            return documents;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Extract the matches of a document from the result of the FTS offsets() function, a list
+     * of "column term byte-offset byte-size" integer quadruples.
+     */
+    private static List<Match> getMatches(String offsets, String text) {
+        List<Match> matches = new ArrayList<Match>();
+        if (offsets == null || text == null) {
+            return matches;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        // Matches by byte offset, so that they are in document order.
+        TreeMap<Integer, Integer> sizes = new TreeMap<Integer, Integer>();
+        String[] values = offsets.split(" ");
+        for (int i = 0; i + 3 < values.length; i += 4) {
+            int start = Integer.parseInt(values[i + 2]);
+            int size = Integer.parseInt(values[i + 3]);
+            if (start >= 0 && start + size <= bytes.length) {
+                sizes.put(start, size);
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : sizes.entrySet()) {
+            int start = entry.getKey();
+            int end = start + entry.getValue();
+            String before = new String(bytes, 0, start, StandardCharsets.UTF_8);
+            String token = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            String after = new String(bytes, end, bytes.length - end, StandardCharsets.UTF_8);
+            // Same text as snippet(..., '', ' ', '', -1, 1): the token followed by a space,
+            // extended with the text before or after it when it is the first or last token.
+            matches.add(new Match(token, (hasTokenCharacter(before) ? "" : before) + token + " "
+                    + (hasTokenCharacter(after) ? "" : after)));
+        }
+        return matches;
+    }
+
+    /**
+     * Build the same result as MmsSmsProvider.SEARCH_QUERY: the snippet of the first match of
+     * each document, sorted, at most {@link #MAX_SUGGESTIONS} of them.
+     */
+    private static Cursor toCursor(List<List<Match>> documents) {
+        List<String> snippets = new ArrayList<String>(documents.size());
+        for (List<Match> matches : documents) {
+            snippets.add(matches.get(0).snippet);
+        }
+        Collections.sort(snippets);
+        MatrixCursor cursor = new MatrixCursor(new String[] { "snippet" },
+                Math.min(snippets.size(), MAX_SUGGESTIONS));
+        Iterator<String> iterator = snippets.iterator();
+        for (int i = 0; i < MAX_SUGGESTIONS && iterator.hasNext(); i++) {
+            cursor.addRow(new Object[] { iterator.next() });
+        }
+        return cursor;
+    }
+
+    // The FTS simple tokenizer splits on ASCII non alphanumeric characters.
+    private static boolean isTokenCharacter(char ch) {
+        return ch >= 0x80 || (ch >= '0' && ch <= '9') || (ch >= 'a' && ch <= 'z')
+                || (ch >= 'A' && ch <= 'Z');
+    }
+
+    private static boolean isSingleToken(String pattern) {
+        if (pattern.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            if (!isTokenCharacter(pattern.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasTokenCharacter(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (isTokenCharacter(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The FTS simple tokenizer only folds the case of ASCII characters.
+    private static String asciiLowerCase(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            sb.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+        }
+        return sb.toString();
+    }
+
+    private static final class Match {
+        final String token;
+        final String snippet;
+
+        Match(String token, String snippet) {
+            this.token = token;
+            this.snippet = snippet;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.telephony;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Compiled INSERT statements of the sms table, one per list of columns, and of its words index,
+ * reused by the inserts of {@link SmsProvider}. Statements are only valid for the database they
+ * were compiled for, so the provider keeps one instance per database: the CE and DE databases
+ * never evict each other's statements.
+ *
+ * The columns that the provider sets on top of the values of the caller are given as a
+ * {@link Row} and bound as they are, instead of being boxed into a copy of the caller's
+ * ContentValues. A statement is taken out of the cache while it is in use, so that concurrent
+ * inserts compile their own rather than wait for it, and no lock is held while waiting for the
+ * database.
+ */
+public class SmsInsertStatements {
+    private static final String TAG = "SmsInsertStatements";
+
+    // Number of statements kept. Callers use few distinct column lists, and the words statement
+    // is always kept.
+    @VisibleForTesting
+    static final int MAX_STATEMENTS = 8;
+    // Cache key of the words statement. The keys of the sms statements end with a comma.
+    private static final String WORDS_KEY = SmsProvider.TABLE_SMS_WORDS;
+
+    private final SQLiteOpenHelper mHelper;
+    // Statements by column list, compiled for mDatabase. Guarded by this.
+    private final HashMap<String, SQLiteStatement> mStatements =
+            new HashMap<String, SQLiteStatement>();
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * @param helper the helper of the database the statements are used with
+     */
+    SmsInsertStatements(SQLiteOpenHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * The columns of an sms row set by the provider. A column that is set replaces the value
+     * given by the caller, if any.
+     */
+    static final class Row {
+        private boolean mHasDate;
+        private long mDate;
+        private boolean mHasType;
+        private int mType;
+        private boolean mHasThreadId;
+        private long mThreadId;
+        private boolean mHasPerson;
+        private long mPerson;
+        private boolean mHasRead;
+        private int mRead;
+        private boolean mHasCreator;
+        private String mCreator;
+
+        void setDate(long date) {
+            mHasDate = true;
+            mDate = date;
+        }
+
+        void setType(int type) {
+            mHasType = true;
+            mType = type;
+        }
+
+        boolean hasType() {
+            return mHasType;
+        }
+
+        int getType() {
+            return mType;
+        }
+
+        void setThreadId(long threadId) {
+            mHasThreadId = true;
+            mThreadId = threadId;
+        }
+
+        void setPerson(long person) {
+            mHasPerson = true;
+            mPerson = person;
+        }
+
+        void setRead(int read) {
+            mHasRead = true;
+            mRead = read;
+        }
+
+        void setCreator(String creator) {
+            mHasCreator = true;
+            mCreator = creator;
+        }
+
+        private boolean isSet(String column) {
+            return (mHasDate && Sms.DATE.equals(column))
+                    || (mHasType && Sms.TYPE.equals(column))
+                    || (mHasThreadId && Sms.THREAD_ID.equals(column))
+                    || (mHasPerson && Sms.PERSON.equals(column))
+                    || (mHasRead && Sms.READ.equals(column))
+                    || (mHasCreator && Sms.CREATOR.equals(column));
+        }
+
+        private void addColumns(ArrayList<String> columns) {
+            if (mHasDate) {
+                columns.add(Sms.DATE);
+            }
+            if (mHasType) {
+                columns.add(Sms.TYPE);
+            }
+            if (mHasThreadId) {
+                columns.add(Sms.THREAD_ID);
+            }
+            if (mHasPerson) {
+                columns.add(Sms.PERSON);
+            }
+            if (mHasRead) {
+                columns.add(Sms.READ);
+            }
+            if (mHasCreator) {
+                columns.add(Sms.CREATOR);
+            }
+        }
+
+        /**
+         * Bind the columns added by {@link #addColumns}, starting at {@code index}.
+         */
+        private void bind(SQLiteStatement statement, int index) {
+            if (mHasDate) {
+                statement.bindLong(index++, mDate);
+            }
+            if (mHasType) {
+                statement.bindLong(index++, mType);
+            }
+            if (mHasThreadId) {
+                statement.bindLong(index++, mThreadId);
+            }
+            if (mHasPerson) {
+                statement.bindLong(index++, mPerson);
+            }
+            if (mHasRead) {
+                statement.bindLong(index++, mRead);
+            }
+            if (mHasCreator) {
+                if (mCreator == null) {
+                    statement.bindNull(index++);
+                } else {
+                    statement.bindString(index++, mCreator);
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert an sms row made of {@code values} and {@code row}.
+     *
+     * @return the id of the new row, or -1 on error, like {@link SQLiteDatabase#insert}
+     */
+    long insert(ContentValues values, Row row) {
+        ArrayList<String> columns = new ArrayList<String>(values.size() + 6);
+        for (String column : values.keySet()) {
+            if (!row.isSet(column)) {
+                columns.add(column);
+            }
+        }
+        // The same columns give the same statement whatever the order of the keys.
+        Collections.sort(columns);
+        int callerColumns = columns.size();
+        row.addColumns(columns);
+
+        StringBuilder key = new StringBuilder();
+        for (String column : columns) {
+            key.append(column).append(',');
+        }
+        String statementKey = key.toString();
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        SQLiteStatement statement = null;
+        try {
+            statement = acquire(db, statementKey);
+            if (statement == null) {
+                statement = db.compileStatement(getInsertSql(columns));
+            }
+            for (int i = 0; i < callerColumns; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+            }
+            row.bind(statement, callerColumns + 1);
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "insert: failed ", e);
+            return -1;
+        } finally {
+            if (statement != null) {
+                release(db, statementKey, statement);
+            }
+        }
+    }
+
+    /**
+     * Index the body of the sms row {@code rowId}, as
+     * {@link MmsSmsDatabaseHelper#insertWords} does.
+     *
+     * @throws SQLException if the row could not be indexed
+     */
+    void insertWords(long rowId, String body) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        SQLiteStatement statement = acquire(db, WORDS_KEY);
+        if (statement == null) {
+            statement = db.compileStatement(MmsSmsDatabaseHelper.getInsertWordsSql(1));
+        }
+        try {
+            MmsSmsDatabaseHelper.bindInsertWords(statement, 1, rowId, body);
+            statement.execute();
+        } finally {
+            release(db, WORDS_KEY, statement);
+        }
+    }
+
+    private static String getInsertSql(ArrayList<String> columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + SmsProvider.TABLE_SMS + " (");
+        StringBuilder args = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+                args.append(", ");
+            }
+            sql.append(columns.get(i));
+            args.append('?');
+        }
+        return sql.append(") VALUES (").append(args).append(')').toString();
+    }
+
+    /**
+     * Take the statement of {@code key} out of the cache, or return null if there is none.
+     */
+    private SQLiteStatement acquire(SQLiteDatabase db, String key) {
+        synchronized (this) {
+            if (db != mDatabase) {
+                // First use, or the helper was closed and opened again since they were compiled.
+                for (SQLiteStatement statement : mStatements.values()) {
+                    statement.close();
+                }
+                mStatements.clear();
+                mDatabase = db;
+            }
+            return mStatements.remove(key);
+        }
+    }
+
+    /**
+     * Put back a statement taken by {@link #acquire}, or close it if it cannot be reused.
+     */
+    private void release(SQLiteDatabase db, String key, SQLiteStatement statement) {
+        synchronized (this) {
+            if (db == mDatabase && (mStatements.size() < MAX_STATEMENTS || WORDS_KEY.equals(key))
+                    && !mStatements.containsKey(key)) {
+                statement.clearBindings();
+                mStatements.put(key, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+}
@@ -25,24 +25,22 @@ import static android.telephony.SmsMessage.MAX_USER_DATA_SEPTETS;
 import android.annotation.NonNull;
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
-import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
-import android.os.UserHandle;
-import android.provider.Contacts;
-import android.provider.Telephony;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
-import android.provider.Telephony.Threads;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
@@ -58,9 +56,13 @@ import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import com.android.internal.telephony.EncodeException;
 import com.android.internal.telephony.GsmAlphabet;
@@ -80,7 +82,8 @@ public class SmsProvider extends ContentProvider {
     static final String TABLE_SMS = "sms";
     static final String TABLE_RAW = "raw";
     private static final String TABLE_SR_PENDING = "sr_pending";
-    private static final String TABLE_WORDS = "words";
+    // Full-text index of the sms bodies, see MmsSmsDatabaseHelper.createWordsTables().
+    static final String TABLE_SMS_WORDS = "sms_words";
     static final String VIEW_SMS_RESTRICTED = "sms_restricted";
 
     private static final int DELETE_SUCCESS = 1;
@@ -88,16 +91,11 @@ public class SmsProvider extends ContentProvider {
     private static final int MESSAGE_ID = 1;
     private static final int SLOT1 = 0;
     private static final int SLOT2 = 1;
-    private static final Integer ONE = Integer.valueOf(1);
     private static final int OFFSET_ADDRESS_LENGTH = 0;
     private static final int OFFSET_TOA = 1;
     private static final int OFFSET_ADDRESS_VALUE = 2;
     private static final int TIMESTAMP_LENGTH = 7;  // See TS 23.040 9.2.3.11
 
-    private static final String[] CONTACT_QUERY_PROJECTION =
-            new String[] { Contacts.Phones.PERSON_ID };
-    private static final int PERSON_ID_COLUMN = 0;
-
     /** Delete any raw messages or message segments marked deleted that are older than an hour. */
     static final long RAW_MESSAGE_EXPIRE_AGE_MS = (long) (60 * 60 * 1000);
 
@@ -131,12 +129,18 @@ public class SmsProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
-        setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
-        // So we have two database files. One in de, one in ce. Here only "raw" table is in
-        // mDeOpenHelper, other tables are all in mCeOpenHelper.
-        mDeOpenHelper = MmsSmsDatabaseHelper.getInstanceForDe(getContext());
-        mCeOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
-        TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExist(getContext());
+        mStartupTrace.beginCreate();
+        try {
+            setAppOps(AppOpsManager.OP_READ_SMS, AppOpsManager.OP_WRITE_SMS);
+            // So we have two database files. One in de, one in ce. Here only "raw" table is in
+            // mDeOpenHelper, other tables are all in mCeOpenHelper.
+            mDeOpenHelper = MmsSmsDatabaseHelper.getInstanceForDe(getContext());
+            mCeOpenHelper = MmsSmsDatabaseHelper.getInstanceForCe(getContext());
+            TelephonyBackupAgent.DeferredSmsMmsRestoreService.startIfFilesExistInBackground(
+                    getContext());
+        } finally {
+            mStartupTrace.endCreate();
+        }
         return true;
     }
 
@@ -153,6 +157,16 @@ public class SmsProvider extends ContentProvider {
     @Override
     public Cursor query(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
+        long traceStart = mStartupTrace.beginFirstQuery();
+        try {
+            return queryInner(url, projectionIn, selection, selectionArgs, sort);
+        } finally {
+            mStartupTrace.endFirstQuery(traceStart);
+        }
+    }
+
+    private Cursor queryInner(Uri url, String[] projectionIn, String selection,
+            String[] selectionArgs, String sort) {
         // First check if a restricted view of the "sms" table should be used based on the
         // caller's identity. Only system, phone or the default sms app can have full access
         // of sms data. For other apps, we present a restricted view which only contains sent
@@ -263,9 +277,12 @@ public class SmsProvider extends ContentProvider {
                 break;
 
             case SMS_RAW_MESSAGE:
-                // before querying purge old entries with deleted = 1
-                purgeDeletedMessagesInRawTable(db);
+                // Skip the old entries with deleted = 1, found through the partial index on them.
+                // RawMessagePurgeService purges them in the background, off the read path.
                 qb.setTables("raw");
+                qb.appendWhere("_id NOT IN (SELECT _id FROM " + TABLE_RAW + " WHERE "
+                        + MmsSmsDatabaseHelper.RAW_DELETED_CONDITION + " AND date < "
+                        + (System.currentTimeMillis() - RAW_MESSAGE_EXPIRE_AGE_MS) + ")");
                 break;
 
             case SMS_STATUS_PENDING:
@@ -373,15 +390,6 @@ public class SmsProvider extends ContentProvider {
         return ret;
     }
 
-    private void purgeDeletedMessagesInRawTable(SQLiteDatabase db) {
-        long oldTimestamp = System.currentTimeMillis() - RAW_MESSAGE_EXPIRE_AGE_MS;
-        int num = db.delete(TABLE_RAW, "deleted = 1 AND date < " + oldTimestamp, null);
-        if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Log.d(TAG, "purgeDeletedMessagesInRawTable: num rows older than " + oldTimestamp +
-                    " purged: " + num);
-        }
-    }
-
     private SQLiteOpenHelper getDBOpenHelper(int match) {
         // Raw table is stored on de database. Other tables are stored in ce database.
         if (match == SMS_RAW_MESSAGE || match == SMS_RAW_MESSAGE_PERMANENT_DELETE) {
@@ -537,32 +545,97 @@ public class SmsProvider extends ContentProvider {
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
-            int messagesInserted = 0;
-            for (ContentValues initialValues : values) {
-                Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg);
-                if (insertUri != null) {
-                    messagesInserted++;
+            // One transaction for the whole batch, and one thread id lookup per distinct
+            // address rather than per message. A message that fails to be inserted fails the
+            // transaction, as would a failed nested transaction anyway, so the batch is then
+            // rolled back and inserted again without the messages that failed: one bad message
+            // does not lose the others.
+            SQLiteDatabase db = getWritableDatabase(sURLMatcher.match(url));
+            boolean[] skipped = new boolean[values.length];
+            int messagesSkipped = 0;
+            AddressLookups lookups;
+            int messagesInserted;
+            while (true) {
+                lookups = new AddressLookups();
+                messagesInserted = 0;
+                int messagesFailed = 0;
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        if (skipped[i]) {
+                            continue;
+                        }
+                        Uri insertUri;
+                        try {
+                            insertUri = insertInner(url, values[i], callerUid, callerPkg,
+                                    lookups);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "bulkInsert: failed to insert into " + url, e);
+                            insertUri = null;
+                        }
+                        if (insertUri == null) {
+                            skipped[i] = true;
+                            messagesFailed++;
+                        } else {
+                            messagesInserted++;
+                        }
+                    }
+                    if (messagesFailed == 0) {
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
+                if (messagesFailed == 0) {
+                    break;
+                }
+                messagesSkipped += messagesFailed;
+            }
+            if (messagesSkipped > 0) {
+                Log.e(TAG, "bulkInsert: skipped " + messagesSkipped + " of " + values.length
+                        + " messages that failed to be inserted into " + url);
+            }
+            if (!lookups.personFills.isEmpty()) {
+                SQLiteOpenHelper helper = getDBOpenHelper(sURLMatcher.match(url));
+                for (Map.Entry<Long, String> fill : lookups.personFills.entrySet()) {
+                    getContactPersonCache().fillPersonLater(helper, fill.getKey(),
+                            fill.getValue());
                 }
             }
 
             // The raw table is used by the telephony layer for storing an sms before
             // sending out a notification that an sms has arrived. We don't want to notify
             // the default sms app of changes to this table.
-            final boolean notifyIfNotDefault = sURLMatcher.match(url) != SMS_RAW_MESSAGE;
-            notifyChange(notifyIfNotDefault, url, callerPkg);
+            if (messagesInserted > 0) {
+                final boolean notifyIfNotDefault = sURLMatcher.match(url) != SMS_RAW_MESSAGE;
+                notifyChange(notifyIfNotDefault, url, callerPkg);
+            }
             return messagesInserted;
         } finally {
             Binder.restoreCallingIdentity(token);
         }
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Notify the changes of all the operations together.
+        ChangeNotifier notifier = getChangeNotifier();
+        notifier.beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            notifier.endBatch();
+        }
+    }
+
     @Override
     public Uri insert(Uri url, ContentValues initialValues) {
         final int callerUid = Binder.getCallingUid();
         final String callerPkg = getCallingPackage();
         long token = Binder.clearCallingIdentity();
         try {
-            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg);
+            Uri insertUri = insertInner(url, initialValues, callerUid, callerPkg, null);
 
             int match = sURLMatcher.match(url);
             // Skip notifyChange() if insertUri is null for SMS_ALL_ICC or SMS_ALL_ICC_SUBID caused
@@ -580,8 +653,22 @@ public class SmsProvider extends ContentProvider {
         }
     }
 
-    private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg) {
-        ContentValues values;
+    /**
+     * Results of the thread id lookups made by a bulk insert, by address. Messages of a batch
+     * often share their addresses.
+     */
+    private static final class AddressLookups {
+        final HashMap<String, Long> threadIds = new HashMap<String, Long>();
+        // The addresses of the inserted rows whose person is filled once the batch is committed,
+        // by row id.
+        final LinkedHashMap<Long, String> personFills = new LinkedHashMap<Long, String>();
+    }
+
+    /**
+     * @param lookups lookups to reuse across the messages of a bulk insert, or null
+     */
+    private Uri insertInner(Uri url, ContentValues initialValues, int callerUid, String callerPkg,
+            AddressLookups lookups) {
         long rowID;
         int type = Sms.MESSAGE_TYPE_ALL;
 
@@ -690,41 +777,28 @@ public class SmsProvider extends ContentProvider {
         SQLiteDatabase db = getWritableDatabase(match);
 
         if (table.equals(TABLE_SMS)) {
-            boolean addDate = false;
-            boolean addType = false;
-
-            // Make sure that the date and type are set
             if (initialValues == null) {
-                values = new ContentValues(1);
-                addDate = true;
-                addType = true;
-            } else {
-                values = new ContentValues(initialValues);
-
-                if (!initialValues.containsKey(Sms.DATE)) {
-                    addDate = true;
-                }
-
-                if (!initialValues.containsKey(Sms.TYPE)) {
-                    addType = true;
-                }
+                initialValues = new ContentValues(1);
             }
+            // The columns set here are bound by the compiled insert on top of the caller's values.
+            SmsInsertStatements.Row row = new SmsInsertStatements.Row();
 
-            if (addDate) {
-                values.put(Sms.DATE, new Long(System.currentTimeMillis()));
+            // Make sure that the date and type are set
+            if (!initialValues.containsKey(Sms.DATE)) {
+                row.setDate(System.currentTimeMillis());
             }
 
-            if (addType && (type != Sms.MESSAGE_TYPE_ALL)) {
-                values.put(Sms.TYPE, Integer.valueOf(type));
+            if (!initialValues.containsKey(Sms.TYPE) && (type != Sms.MESSAGE_TYPE_ALL)) {
+                row.setType(type);
             }
 
             // thread_id
-            Long threadId = values.getAsLong(Sms.THREAD_ID);
-            String address = values.getAsString(Sms.ADDRESS);
+            Long threadId = initialValues.getAsLong(Sms.THREAD_ID);
+            String address = initialValues.getAsString(Sms.ADDRESS);
 
             if (((threadId == null) || (threadId == 0)) && (!TextUtils.isEmpty(address))) {
-                values.put(Sms.THREAD_ID, Threads.getOrCreateThreadId(
-                                   getContext(), address));
+                threadId = getOrCreateThreadId(db, address, lookups);
+                row.setThreadId(threadId);
             }
 
             // If this message is going in as a draft, it should replace any
@@ -732,70 +806,73 @@ public class SmsProvider extends ContentProvider {
             // messages with this thread ID.  We could add an OR REPLACE to
             // the insert below, but we'd have to query to find the old _id
             // to produce a conflict anyway.
-            if (values.getAsInteger(Sms.TYPE) == Sms.MESSAGE_TYPE_DRAFT) {
+            int messageType = row.hasType() ? row.getType() : initialValues.getAsInteger(Sms.TYPE);
+            if (messageType == Sms.MESSAGE_TYPE_DRAFT) {
                 db.delete(TABLE_SMS, "thread_id=? AND type=?",
-                        new String[] { values.getAsString(Sms.THREAD_ID),
+                        new String[] { threadId != null ? threadId.toString() : null,
                                        Integer.toString(Sms.MESSAGE_TYPE_DRAFT) });
             }
 
+            boolean fillPerson = false;
             if (type == Sms.MESSAGE_TYPE_INBOX) {
                 // Look up the person if not already filled in.
-                if ((values.getAsLong(Sms.PERSON) == null) && (!TextUtils.isEmpty(address))) {
-                    Cursor cursor = null;
-                    Uri uri = Uri.withAppendedPath(Contacts.Phones.CONTENT_FILTER_URL,
-                            Uri.encode(address));
-                    try {
-                        cursor = getContext().getContentResolver().query(
-                                uri,
-                                CONTACT_QUERY_PROJECTION,
-                                null, null, null);
-
-                        if (cursor.moveToFirst()) {
-                            Long id = Long.valueOf(cursor.getLong(PERSON_ID_COLUMN));
-                            values.put(Sms.PERSON, id);
-                        }
-                    } catch (Exception ex) {
-                        Log.e(TAG, "insert: query contact uri " + uri + " caught ", ex);
-                    } finally {
-                        if (cursor != null) {
-                            cursor.close();
-                        }
+                if ((initialValues.getAsLong(Sms.PERSON) == null)
+                        && (!TextUtils.isEmpty(address))) {
+                    long person = getContactPersonCache().getPersonId(address);
+                    if (person == ContactPersonCache.UNKNOWN) {
+                        // Don't wait for the contacts provider, set it after the insert.
+                        fillPerson = true;
+                    } else if (person > 0) {
+                        row.setPerson(person);
                     }
                 }
             } else {
                 // Mark all non-inbox messages read.
-                values.put(Sms.READ, ONE);
+                row.setRead(1);
             }
-            if (ProviderUtil.shouldSetCreator(values, callerUid)) {
+            if (ProviderUtil.shouldSetCreator(initialValues, callerUid)) {
                 // Only SYSTEM or PHONE can set CREATOR
                 // If caller is not SYSTEM or PHONE, or SYSTEM or PHONE does not set CREATOR
                 // set CREATOR using the truth on caller.
                 // Note: Inferring package name from UID may include unrelated package names
-                values.put(Sms.CREATOR, callerPkg);
+                row.setCreator(callerPkg);
+            }
+
+            db.beginTransaction();
+            try {
+                SmsInsertStatements statements = getInsertStatements(match);
+                rowID = statements.insert(initialValues, row);
+
+                // Don't use a trigger for updating the words table because of a bug
+                // in FTS3.  The bug is such that the call to get the last inserted
+                // row is incorrect.
+                if (rowID > 0) {
+                    // Update the words table with a corresponding row.  The words table
+                    // allows us to search for words quickly, without scanning the whole
+                    // table; it only references the sms row and reads the body back from it.
+                    statements.insertWords(rowID, initialValues.getAsString(Sms.BODY));
+                }
+                db.setTransactionSuccessful();
+            } catch (SQLException e) {
+                Log.e(TAG, "insert: failed to index the message ", e);
+                rowID = -1;
+            } finally {
+                db.endTransaction();
+            }
+            if (rowID > 0 && fillPerson) {
+                if (lookups != null) {
+                    // Still in the transaction of the bulk insert, which may roll back.
+                    lookups.personFills.put(rowID, address);
+                } else {
+                    getContactPersonCache().fillPersonLater(getDBOpenHelper(match), rowID,
+                            address);
+                }
             }
         } else {
             if (initialValues == null) {
-                values = new ContentValues(1);
-            } else {
-                values = initialValues;
+                initialValues = new ContentValues(1);
             }
-        }
-
-        rowID = db.insert(table, "body", values);
-
-        // Don't use a trigger for updating the words table because of a bug
-        // in FTS3.  The bug is such that the call to get the last inserted
-        // row is incorrect.
-        if (table == TABLE_SMS) {
-            // Update the words table with a corresponding row.  The words table
-            // allows us to search for words quickly, without scanning the whole
-            // table;
-            ContentValues cv = new ContentValues();
-            cv.put(Telephony.MmsSms.WordsTable.ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.INDEXED_TEXT, values.getAsString("body"));
-            cv.put(Telephony.MmsSms.WordsTable.SOURCE_ROW_ID, rowID);
-            cv.put(Telephony.MmsSms.WordsTable.TABLE_ID, 1);
-            db.insert(TABLE_WORDS, Telephony.MmsSms.WordsTable.INDEXED_TEXT, cv);
+            rowID = db.insert(table, "body", initialValues);
         }
         if (rowID > 0) {
             Uri uri = null;
@@ -815,6 +892,42 @@ public class SmsProvider extends ContentProvider {
         return null;
     }
 
+    private long getOrCreateThreadId(SQLiteDatabase db, String address, AddressLookups lookups) {
+        Long threadId = lookups != null ? lookups.threadIds.get(address) : null;
+        if (threadId == null) {
+            threadId = MmsSmsDatabaseHelper.getOrCreateThreadId(getContext(), mCeOpenHelper, db,
+                    address);
+            if (lookups != null) {
+                lookups.threadIds.put(address, threadId);
+            }
+        }
+        return threadId;
+    }
+
+    /**
+     * Return the compiled sms inserts of the database of {@code match}, one set per database.
+     */
+    private synchronized SmsInsertStatements getInsertStatements(int match) {
+        SQLiteOpenHelper helper = getDBOpenHelper(match);
+        if (helper == mDeOpenHelper) {
+            if (mDeInsertStatements == null) {
+                mDeInsertStatements = new SmsInsertStatements(helper);
+            }
+            return mDeInsertStatements;
+        }
+        if (mCeInsertStatements == null) {
+            mCeInsertStatements = new SmsInsertStatements(helper);
+        }
+        return mCeInsertStatements;
+    }
+
+    private synchronized ContactPersonCache getContactPersonCache() {
+        if (mContactPersonCache == null) {
+            mContactPersonCache = new ContactPersonCache(getContext(), getChangeNotifier());
+        }
+        return mContactPersonCache;
+    }
+
     private Uri insertMessageIntoIcc(Uri uri, ContentValues values) {
         if (values == null) {
             return Uri.withAppendedPath(uri, INSERT_SMS_INTO_ICC_FAIL);
@@ -1213,21 +1326,33 @@ public class SmsProvider extends ContentProvider {
         boolean notifyIfNotDefault = true;
         switch (match) {
             case SMS_ALL:
-                count = db.delete(TABLE_SMS, where, whereArgs);
-                if (count != 0) {
-                    // Don't update threads unless something changed.
-                    MmsSmsDatabaseHelper.updateThreads(db, where, whereArgs);
+                // Remember which threads the deleted messages belonged to, so that only those
+                // need to be recomputed, in the same transaction as the delete.
+                db.beginTransaction();
+                try {
+                    HashSet<Long> dirtyThreads = MmsSmsDatabaseHelper.getThreadIdsForMessages(
+                            db, TABLE_SMS, where, whereArgs);
+                    count = db.delete(TABLE_SMS, where, whereArgs);
+                    if (count != 0) {
+                        // Don't update threads unless something changed.
+                        MmsSmsDatabaseHelper.updateThreads(db, dirtyThreads);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
                 break;
 
             case SMS_ALL_ID:
+                int message_id;
                 try {
-                    int message_id = Integer.parseInt(url.getPathSegments().get(0));
-                    count = MmsSmsDatabaseHelper.deleteOneSms(db, message_id);
+                    message_id = Integer.parseInt(url.getPathSegments().get(0));
                 } catch (Exception e) {
                     throw new IllegalArgumentException(
                         "Bad message id: " + url.getPathSegments().get(0));
                 }
+                // A failure to update the thread is thrown as is, the delete is rolled back.
+                count = MmsSmsDatabaseHelper.deleteOneSms(db, message_id);
                 break;
 
             case SMS_CONVERSATIONS_ID:
@@ -1288,11 +1413,7 @@ public class SmsProvider extends ContentProvider {
                 success = deleteMessageFromIcc(subId, messageIndex);
                 // Notify changes even failure case since there might be some changes should be
                 // known.
-                getContext().getContentResolver().notifyChange(
-                        match == SMS_ICC ? ICC_URI : ICC_SUBID_URI,
-                        null,
-                        true,
-                        UserHandle.USER_ALL);
+                getChangeNotifier().notifyChange(match == SMS_ICC ? ICC_URI : ICC_SUBID_URI);
                 return success ? 1 : 0; // return deleted count
 
             case SMS_ICC1:
@@ -1422,17 +1543,22 @@ public class SmsProvider extends ContentProvider {
     }
 
     private void notifyChange(boolean notifyIfNotDefault, Uri uri, final String callingPackage) {
-        final Context context = getContext();
-        ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(MmsSms.CONTENT_URI, null, true, UserHandle.USER_ALL);
-        cr.notifyChange(Uri.parse("content://mms-sms/conversations/"), null, true,
-                UserHandle.USER_ALL);
+        ChangeNotifier notifier = getChangeNotifier();
+        notifier.notifyChange(uri);
+        notifier.notifyChange(MmsSms.CONTENT_URI);
+        notifier.notifyChange(MMS_SMS_CONVERSATIONS_URI);
         if (notifyIfNotDefault) {
-            ProviderUtil.notifyIfNotDefaultSmsApp(uri, callingPackage, context);
+            notifier.notifyIfNotDefaultSmsApp(uri, callingPackage);
         }
     }
 
+    private synchronized ChangeNotifier getChangeNotifier() {
+        if (mChangeNotifier == null) {
+            mChangeNotifier = new ChangeNotifier(getContext());
+        }
+        return mChangeNotifier;
+    }
+
     // Db open helper for tables stored in CE(Credential Encrypted) storage.
     @VisibleForTesting
     public SQLiteOpenHelper mCeOpenHelper;
@@ -1440,6 +1566,14 @@ public class SmsProvider extends ContentProvider {
     // to store raw table.
     @VisibleForTesting
     public SQLiteOpenHelper mDeOpenHelper;
+    // The compiled sms inserts of each database, created on first use, guarded by this.
+    private SmsInsertStatements mCeInsertStatements;
+    private SmsInsertStatements mDeInsertStatements;
+    // Created on first use, guarded by this.
+    private ContactPersonCache mContactPersonCache;
+    // Created on first use, guarded by this.
+    private ChangeNotifier mChangeNotifier;
+    private final ProviderStartupTrace mStartupTrace = new ProviderStartupTrace(TAG);
 
     private final static String TAG = "SmsProvider";
     private final static String VND_ANDROID_SMS = "vnd.android.cursor.item/sms";
@@ -1448,6 +1582,9 @@ public class SmsProvider extends ContentProvider {
     private final static String VND_ANDROID_DIR_SMS =
             "vnd.android.cursor.dir/sms";
 
+    private static final Uri MMS_SMS_CONVERSATIONS_URI =
+            Uri.parse("content://mms-sms/conversations/");
+
     private static final String[] sIDProjection = new String[] { "_id" };
 
     private static final int SMS_ALL = 0;
@@ -33,6 +33,7 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
@@ -71,6 +72,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -505,6 +507,8 @@ public class TelephonyBackupAgent extends BackupAgent {
 
     public static class DeferredSmsMmsRestoreService extends IntentService {
         private static final String TAG = "DeferredSmsMmsRestoreService";
+        // Set once the providers have looked for files left to restore.
+        private static final AtomicBoolean sStartChecked = new AtomicBoolean(false);
 
         private final Comparator<File> mFileComparator = new Comparator<File>() {
             @Override
@@ -582,6 +586,23 @@ public class TelephonyBackupAgent extends BackupAgent {
             super.onDestroy();
         }
 
+        /**
+         * Run {@link #startIfFilesExist} on a background thread, once per process. Called from
+         * the onCreate() of the sms and mms providers, which do not need the restore to answer
+         * their first call.
+         */
+        static void startIfFilesExistInBackground(final Context context) {
+            if (sStartChecked.getAndSet(true)) {
+                return;
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    startIfFilesExist(context);
+                }
+            });
+        }
+
         static void startIfFilesExist(Context context) {
             File[] files = getFilesToRestore(context);
             if (files == null || files.length == 0) {
@@ -627,6 +648,7 @@ public class TelephonyBackupAgent extends BackupAgent {
     void putSmsMessagesToProvider(JsonReader jsonReader) throws IOException {
         jsonReader.beginArray();
         int msgCount = 0;
+        int inserted = 0;
         final int bulkInsertSize = mMaxMsgPerFile;
         ContentValues[] values = new ContentValues[bulkInsertSize];
         while (jsonReader.hasNext()) {
@@ -637,17 +659,52 @@ public class TelephonyBackupAgent extends BackupAgent {
                 }
                 values[(msgCount++) % bulkInsertSize] = cv;
                 if (msgCount % bulkInsertSize == 0) {
-                    mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI, values);
+                    inserted += bulkInsertSmsMessages(values);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "putSmsMessagesToProvider", e);
             }
         }
         if (msgCount % bulkInsertSize > 0) {
-            mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI,
-                    Arrays.copyOf(values, msgCount % bulkInsertSize));
+            inserted += bulkInsertSmsMessages(Arrays.copyOf(values, msgCount % bulkInsertSize));
         }
         jsonReader.endArray();
+        Log.d(TAG, "putSmsMessagesToProvider inserted " + inserted + " of " + msgCount
+                + " new messages.");
+    }
+
+    /**
+     * Insert a batch of sms messages, one by one if the batch fails as a whole, so that one
+     * message the provider can't take does not lose the others.
+     *
+     * @return the number of messages inserted
+     */
+    private int bulkInsertSmsMessages(ContentValues[] values) {
+        int inserted = 0;
+        try {
+            inserted = mContentResolver.bulkInsert(Telephony.Sms.CONTENT_URI, values);
+        } catch (Exception e) {
+            Log.e(TAG, "bulkInsertSmsMessages", e);
+        }
+        if (inserted > 0) {
+            if (inserted < values.length) {
+                Log.w(TAG, "bulkInsertSmsMessages: " + (values.length - inserted) + " of "
+                        + values.length + " messages were not inserted");
+            }
+            return inserted;
+        }
+        Log.w(TAG, "bulkInsertSmsMessages: batch of " + values.length
+                + " messages failed, inserting them one by one");
+        for (ContentValues cv : values) {
+            try {
+                if (mContentResolver.insert(Telephony.Sms.CONTENT_URI, cv) != null) {
+                    inserted++;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "bulkInsertSmsMessages", e);
+            }
+        }
+        return inserted;
     }
 
     @VisibleForTesting
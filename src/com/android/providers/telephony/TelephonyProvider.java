@@ -94,6 +94,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.Environment;
 import android.os.IBinder;
 import android.os.Process;
@@ -598,6 +599,11 @@ public class TelephonyProvider extends ContentProvider
             setWriteAheadLoggingEnabled(false);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            DatabaseTuningProfile.apply(mContext, db);
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             if (DBG) log("dbh.onCreate:+ db=" + db);
@@ -2679,14 +2685,42 @@ public class TelephonyProvider extends ContentProvider
 
     @Override
     public boolean onCreate() {
-        mOpenHelper = new DatabaseHelper(getContext());
-
+        mStartupTrace.beginCreate();
         try {
-            PhoneFactory.addLocalLog(TAG, 100);
-        } catch (IllegalArgumentException e) {
-            // ignore
+            mOpenHelper = new DatabaseHelper(getContext());
+
+            try {
+                PhoneFactory.addLocalLog(TAG, 100);
+            } catch (IllegalArgumentException e) {
+                // ignore
+            }
+
+            // The build id check, which can update the APN database, waits for the first call:
+            // see checkBuildIdOnFirstCall().
+            SharedPreferences sp = getContext().getSharedPreferences(ENFORCED_FILE,
+                    Context.MODE_PRIVATE);
+            mManagedApnEnforced = sp.getBoolean(ENFORCED_KEY, false);
+        } finally {
+            mStartupTrace.endCreate();
         }
 
+        if (VDBG) log("onCreate:- ret true");
+
+        return true;
+    }
+
+    /**
+     * Update the APN database if the build id changed, once per process. This reads the build id
+     * preferences and can rebuild the carriers table from the apns-conf files, so it runs on the
+     * first call rather than in onCreate(), on the main thread of the starting phone process.
+     * Every call can read the carriers table or the preferred APNs, so each one starts with it.
+     */
+    synchronized void checkBuildIdOnFirstCall() {
+        if (mBuildIdChecked) {
+            return;
+        }
+        mBuildIdChecked = true;
+
         boolean isNewBuild = false;
         String newBuildId = SystemProperties.get("ro.build.id", null);
         if (!TextUtils.isEmpty(newBuildId)) {
@@ -2695,14 +2729,15 @@ public class TelephonyProvider extends ContentProvider
                     Context.MODE_PRIVATE);
             String oldBuildId = sp.getString(RO_BUILD_ID, "");
             if (!newBuildId.equals(oldBuildId)) {
-                localLog("onCreate: build id changed from " + oldBuildId + " to " + newBuildId);
+                localLog("checkBuildIdOnFirstCall: build id changed from " + oldBuildId
+                        + " to " + newBuildId);
                 isNewBuild = true;
             } else {
-                if (VDBG) log("onCreate: build id did not change: " + oldBuildId);
+                if (VDBG) log("checkBuildIdOnFirstCall: build id did not change: " + oldBuildId);
             }
             sp.edit().putString(RO_BUILD_ID, newBuildId).apply();
         } else {
-            if (VDBG) log("onCreate: newBuildId is empty");
+            if (VDBG) log("checkBuildIdOnFirstCall: newBuildId is empty");
         }
 
         if (isNewBuild) {
@@ -2714,14 +2749,6 @@ public class TelephonyProvider extends ContentProvider
             // Add all APN related shared prefs to local log for dumpsys
             if (DBG) addAllApnSharedPrefToLocalLog();
         }
-
-        SharedPreferences sp = getContext().getSharedPreferences(ENFORCED_FILE,
-                Context.MODE_PRIVATE);
-        mManagedApnEnforced = sp.getBoolean(ENFORCED_KEY, false);
-
-        if (VDBG) log("onCreate:- ret true");
-
-        return true;
     }
 
     private void addAllApnSharedPrefToLocalLog() {
@@ -2927,6 +2954,17 @@ public class TelephonyProvider extends ContentProvider
     @Override
     public synchronized Cursor query(Uri url, String[] projectionIn, String selection,
             String[] selectionArgs, String sort) {
+        long traceStart = mStartupTrace.beginFirstQuery();
+        try {
+            return queryInner(url, projectionIn, selection, selectionArgs, sort);
+        } finally {
+            mStartupTrace.endFirstQuery(traceStart);
+        }
+    }
+
+    private Cursor queryInner(Uri url, String[] projectionIn, String selection,
+            String[] selectionArgs, String sort) {
+        checkBuildIdOnFirstCall();
         if (VDBG) log("query: url=" + url + ", projectionIn=" + projectionIn + ", selection="
                 + selection + "selectionArgs=" + selectionArgs + ", sort=" + sort);
         int subId = SubscriptionManager.getDefaultSubscriptionId();
@@ -3306,11 +3344,18 @@ public class TelephonyProvider extends ContentProvider
         }
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        checkBuildIdOnFirstCall();
+        return super.call(method, arg, extras);
+    }
+
     /**
      * Insert an array of ContentValues and call notifyChange at the end.
      */
     @Override
     public synchronized int bulkInsert(Uri url, ContentValues[] values) {
+        checkBuildIdOnFirstCall();
         return unsynchronizedBulkInsert(url, values);
     }
 
@@ -3339,6 +3384,7 @@ public class TelephonyProvider extends ContentProvider
 
     @Override
     public synchronized Uri insert(Uri url, ContentValues initialValues) {
+        checkBuildIdOnFirstCall();
         Pair<Uri, Boolean> rowAndNotify = insertSingleRow(url, initialValues);
         if (rowAndNotify.second) {
             getContext().getContentResolver().notifyChange(CONTENT_URI, null,
@@ -3528,6 +3574,7 @@ public class TelephonyProvider extends ContentProvider
 
     @Override
     public synchronized int delete(Uri url, String where, String[] whereArgs) {
+        checkBuildIdOnFirstCall();
         int count = 0;
         int subId = SubscriptionManager.getDefaultSubscriptionId();
         String userOrCarrierEdited = ") and (" +
@@ -3698,6 +3745,7 @@ public class TelephonyProvider extends ContentProvider
     @Override
     public synchronized int update(Uri url, ContentValues values, String where, String[] whereArgs)
     {
+        checkBuildIdOnFirstCall();
         int count = 0;
         int uriType = URL_UNKNOWN;
         int subId = SubscriptionManager.getDefaultSubscriptionId();
@@ -4014,6 +4062,9 @@ public class TelephonyProvider extends ContentProvider
     }
 
     private DatabaseHelper mOpenHelper;
+    private final ProviderStartupTrace mStartupTrace = new ProviderStartupTrace(TAG);
+    // Whether checkBuildIdOnFirstCall() has run, guarded by this.
+    private boolean mBuildIdChecked = false;
 
     private void restoreDefaultAPN(int subId) {
         SQLiteDatabase db = getWritableDatabase();
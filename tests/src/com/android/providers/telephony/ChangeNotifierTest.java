@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.Sms;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:ChangeNotifierTest
+ */
+@RunWith(JUnit4.class)
+public final class ChangeNotifierTest {
+    private static final Uri SMS_1 = Uri.withAppendedPath(Sms.CONTENT_URI, "1");
+    private static final Uri SMS_2 = Uri.withAppendedPath(Sms.CONTENT_URI, "2");
+
+    private ChangeNotifier mNotifier;
+    // The uris notified, and the threads notifying them, guarded by this.
+    private final List<Uri> mNotifiedUris = new ArrayList<Uri>();
+    private final List<Thread> mNotifyingThreads = new ArrayList<Thread>();
+    // The "package:uri" of the broadcasts sent, guarded by this.
+    private final List<String> mBroadcasts = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        final MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
+                    int userHandle) {
+                synchronized (ChangeNotifierTest.this) {
+                    mNotifiedUris.add(uri);
+                    mNotifyingThreads.add(Thread.currentThread());
+                }
+            }
+        };
+        Context context = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mNotifier = new ChangeNotifier(context) {
+            @Override
+            void sendExternalChangeBroadcast(Uri uri, String callingPackage) {
+                synchronized (ChangeNotifierTest.this) {
+                    mBroadcasts.add(callingPackage + ":" + uri);
+                }
+            }
+        };
+    }
+
+    @Test
+    public void notifyChange_outsideOfABatch_notifiesRightAway() {
+        mNotifier.notifyChange(SMS_1);
+        mNotifier.notifyChange(SMS_1);
+        mNotifier.notifyIfNotDefaultSmsApp(SMS_1, "app");
+
+        synchronized (this) {
+            assertEquals(Arrays.asList(SMS_1, SMS_1), mNotifiedUris);
+            assertEquals(Arrays.asList(Thread.currentThread(), Thread.currentThread()),
+                    mNotifyingThreads);
+            assertEquals(Arrays.asList("app:" + SMS_1), mBroadcasts);
+        }
+    }
+
+    @Test
+    public void notifyChange_inABatch_coalescesUntilTheEnd() {
+        mNotifier.beginBatch();
+        mNotifier.notifyChange(SMS_1);
+        mNotifier.notifyChange(MmsSms.CONTENT_URI);
+        mNotifier.beginBatch();
+        mNotifier.notifyChange(SMS_1);
+        mNotifier.notifyIfNotDefaultSmsApp(SMS_1, "app");
+        mNotifier.notifyIfNotDefaultSmsApp(SMS_1, "app");
+        mNotifier.endBatch();
+        synchronized (this) {
+            // Held until the outermost batch ends.
+            assertTrue(mNotifiedUris.isEmpty());
+            assertTrue(mBroadcasts.isEmpty());
+        }
+        mNotifier.endBatch();
+
+        synchronized (this) {
+            assertEquals(Arrays.asList(SMS_1, MmsSms.CONTENT_URI), mNotifiedUris);
+            assertEquals(Arrays.asList("app:" + SMS_1), mBroadcasts);
+        }
+    }
+
+    @Test
+    public void notifyIfNotDefaultSmsApp_inABatch_dropsTheDataOfSeveralUris() {
+        mNotifier.beginBatch();
+        mNotifier.notifyIfNotDefaultSmsApp(SMS_1, "app");
+        mNotifier.notifyIfNotDefaultSmsApp(SMS_2, "app");
+        mNotifier.notifyIfNotDefaultSmsApp(SMS_2, "other");
+        mNotifier.endBatch();
+
+        synchronized (this) {
+            assertEquals(2, mBroadcasts.size());
+            assertTrue(mBroadcasts.contains("app:null"));
+            assertTrue(mBroadcasts.contains("other:" + SMS_2));
+        }
+    }
+
+    @Test
+    public void beginBatch_onlyHoldsTheNotificationsOfItsThread() throws Exception {
+        final CountDownLatch batchStarted = new CountDownLatch(1);
+        final CountDownLatch otherNotified = new CountDownLatch(1);
+        Thread batchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mNotifier.beginBatch();
+                try {
+                    mNotifier.notifyChange(SMS_1);
+                    batchStarted.countDown();
+                    otherNotified.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mNotifier.endBatch();
+                }
+            }
+        });
+        batchThread.start();
+        assertTrue(batchStarted.await(5, TimeUnit.SECONDS));
+
+        // Another caller, while the batch is open.
+        mNotifier.notifyChange(SMS_2);
+        synchronized (this) {
+            assertEquals(Arrays.asList(SMS_2), mNotifiedUris);
+        }
+        otherNotified.countDown();
+        batchThread.join(5000);
+
+        synchronized (this) {
+            assertEquals(Arrays.asList(SMS_2, SMS_1), mNotifiedUris);
+            assertEquals(Arrays.asList(Thread.currentThread(), batchThread), mNotifyingThreads);
+        }
+    }
+}
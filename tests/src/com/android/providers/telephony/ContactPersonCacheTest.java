@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Contacts;
+import android.provider.Telephony.Sms;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:ContactPersonCacheTest
+ */
+@RunWith(JUnit4.class)
+public final class ContactPersonCacheTest {
+    private static final String ADDRESS = "5551234";
+    private static final String OTHER_ADDRESS = "5556789";
+    private static final String UNKNOWN_ADDRESS = "5550000";
+    private static final long PERSON = 7;
+    private static final long OTHER_PERSON = 8;
+
+    private Context mContext;
+    private FakeContactsProvider mContactsProvider;
+    private SQLiteOpenHelper mInMemoryDbHelper;
+    private SQLiteDatabase mDb;
+    private ContactPersonCache mCache;
+
+    // The uris notified through the content resolver of mContext, guarded by this.
+    private final List<Uri> mNotifiedUris = new ArrayList<Uri>();
+
+    /**
+     * Answers the phone filter queries of the cache, from mPersons.
+     */
+    private static class FakeContactsProvider extends MockContentProvider {
+        final HashMap<String, Long> mPersons = new HashMap<String, Long>();
+        // The addresses queried, guarded by this.
+        final List<String> mQueries = new ArrayList<String>();
+        // Counted down by a query, which then waits for mRelease, when not null.
+        volatile CountDownLatch mQueried;
+        volatile CountDownLatch mRelease;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            String address = uri.getLastPathSegment();
+            synchronized (this) {
+                mQueries.add(address);
+            }
+            if (mRelease != null) {
+                mQueried.countDown();
+                try {
+                    mRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            MatrixCursor cursor = new MatrixCursor(projection);
+            Long person = mPersons.get(address);
+            if (person != null) {
+                cursor.addRow(new Object[] { person });
+            }
+            return cursor;
+        }
+
+        synchronized List<String> getQueries() {
+            return new ArrayList<String>(mQueries);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContactsProvider = new FakeContactsProvider();
+        mContactsProvider.mPersons.put(ADDRESS, PERSON);
+        mContactsProvider.mPersons.put(OTHER_ADDRESS, OTHER_PERSON);
+        final MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
+                    int userHandle) {
+                synchronized (ContactPersonCacheTest.this) {
+                    mNotifiedUris.add(uri);
+                    ContactPersonCacheTest.this.notifyAll();
+                }
+            }
+        };
+        resolver.addProvider(Contacts.AUTHORITY, mContactsProvider);
+        mContext = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mInMemoryDbHelper = new InMemorySmsDbHelper();
+        mDb = mInMemoryDbHelper.getWritableDatabase();
+        mCache = new ContactPersonCache(mContext, new ChangeNotifier(mContext));
+    }
+
+    @After
+    public void tearDown() {
+        if (mContactsProvider.mRelease != null) {
+            mContactsProvider.mRelease.countDown();
+        }
+        mInMemoryDbHelper.close();
+    }
+
+    @Test
+    public void fillPersonLater_fillsTheRowAndCachesThePerson() throws Exception {
+        long rowId = insertSms(ADDRESS, null);
+        assertEquals(ContactPersonCache.UNKNOWN, mCache.getPersonId(ADDRESS));
+
+        mCache.fillPersonLater(mInMemoryDbHelper, rowId, ADDRESS);
+        waitForNotifications(1);
+
+        assertEquals(PERSON, getPerson(rowId));
+        assertEquals(PERSON, mCache.getPersonId(ADDRESS));
+        assertEquals(Sms.CONTENT_URI, getNotifiedUris().get(0));
+        assertEquals(1, mContactsProvider.getQueries().size());
+    }
+
+    @Test
+    public void fillPersonLater_cachesAddressesWithoutContact() throws Exception {
+        long unknownRowId = insertSms(UNKNOWN_ADDRESS, null);
+        long rowId = insertSms(ADDRESS, null);
+
+        mCache.fillPersonLater(mInMemoryDbHelper, unknownRowId, UNKNOWN_ADDRESS);
+        // Lookups run in order: once this one is notified, the first one is done.
+        mCache.fillPersonLater(mInMemoryDbHelper, rowId, ADDRESS);
+        waitForNotifications(1);
+
+        assertEquals(0, mCache.getPersonId(UNKNOWN_ADDRESS));
+        assertTrue(isPersonNull(unknownRowId));
+        assertEquals(1, getNotifiedUris().size());
+    }
+
+    @Test
+    public void fillPersonLater_onlyUpdatesRowsOfTheAddressWithoutPerson() throws Exception {
+        // The id of a rolled back row, given to the message of another sender.
+        long reusedRowId = insertSms(OTHER_ADDRESS, null);
+        long filledRowId = insertSms(ADDRESS, 42L);
+        long otherRowId = insertSms(OTHER_ADDRESS, null);
+
+        mCache.fillPersonLater(mInMemoryDbHelper, reusedRowId, ADDRESS);
+        mCache.fillPersonLater(mInMemoryDbHelper, filledRowId, ADDRESS);
+        mCache.fillPersonLater(mInMemoryDbHelper, otherRowId, OTHER_ADDRESS);
+        waitForNotifications(1);
+
+        assertTrue(isPersonNull(reusedRowId));
+        assertEquals(42, getPerson(filledRowId));
+        assertEquals(OTHER_PERSON, getPerson(otherRowId));
+        // The first lookup found nothing to update, and was not notified.
+        assertEquals(1, getNotifiedUris().size());
+    }
+
+    @Test
+    public void fillPersonLater_looksUpAnAddressOnceForAllWaitingRows() throws Exception {
+        long firstRowId = insertSms(ADDRESS, null);
+        long secondRowId = insertSms(ADDRESS, null);
+        blockQueries();
+
+        mCache.fillPersonLater(mInMemoryDbHelper, firstRowId, ADDRESS);
+        assertTrue(mContactsProvider.mQueried.await(5, TimeUnit.SECONDS));
+        mCache.fillPersonLater(mInMemoryDbHelper, secondRowId, ADDRESS);
+        mContactsProvider.mRelease.countDown();
+        waitForNotifications(1);
+
+        assertEquals(PERSON, getPerson(firstRowId));
+        assertEquals(PERSON, getPerson(secondRowId));
+        assertEquals(1, mContactsProvider.getQueries().size());
+    }
+
+    @Test
+    public void clear_forgetsCachedPersons() throws Exception {
+        mCache.fillPersonLater(mInMemoryDbHelper, insertSms(ADDRESS, null), ADDRESS);
+        waitForNotifications(1);
+        assertEquals(PERSON, mCache.getPersonId(ADDRESS));
+
+        mCache.clear();
+
+        assertEquals(ContactPersonCache.UNKNOWN, mCache.getPersonId(ADDRESS));
+    }
+
+    @Test
+    public void clear_dropsTheLookupsRunningMeanwhile() throws Exception {
+        long rowId = insertSms(ADDRESS, null);
+        blockQueries();
+
+        mCache.fillPersonLater(mInMemoryDbHelper, rowId, ADDRESS);
+        assertTrue(mContactsProvider.mQueried.await(5, TimeUnit.SECONDS));
+        // The contacts change while the lookup runs.
+        mCache.clear();
+        mContactsProvider.mRelease.countDown();
+        waitForNotifications(1);
+
+        // The row is filled, but the answer may be stale and is not cached.
+        assertEquals(PERSON, getPerson(rowId));
+        assertEquals(ContactPersonCache.UNKNOWN, mCache.getPersonId(ADDRESS));
+    }
+
+    private void blockQueries() {
+        mContactsProvider.mQueried = new CountDownLatch(1);
+        mContactsProvider.mRelease = new CountDownLatch(1);
+    }
+
+    private long insertSms(String address, Long person) {
+        ContentValues values = new ContentValues();
+        values.put(Sms.ADDRESS, address);
+        values.put(Sms.PERSON, person);
+        return mDb.insert("sms", null, values);
+    }
+
+    private long getPerson(long rowId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT person FROM sms WHERE _id = ?",
+                new String[] { String.valueOf(rowId) });
+    }
+
+    private boolean isPersonNull(long rowId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT person IS NULL FROM sms WHERE _id = ?",
+                new String[] { String.valueOf(rowId) }) == 1;
+    }
+
+    private synchronized List<Uri> getNotifiedUris() {
+        return new ArrayList<Uri>(mNotifiedUris);
+    }
+
+    private synchronized void waitForNotifications(int count) throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (mNotifiedUris.size() < count && SystemClock.elapsedRealtime() < deadline) {
+            wait(100);
+        }
+        assertTrue(mNotifiedUris.size() >= count);
+    }
+
+    private static class InMemorySmsDbHelper extends SQLiteOpenHelper {
+        InMemorySmsDbHelper() {
+            super(null,      // no context is needed for in-memory db
+                  null,      // db file name is null for in-memory db
+                  null,      // CursorFactory is null by default
+                  1);        // db version is no-op for tests
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, address TEXT,"
+                    + " person INTEGER)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
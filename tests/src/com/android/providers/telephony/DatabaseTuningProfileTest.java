@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:DatabaseTuningProfileTest
+ */
+@RunWith(JUnit4.class)
+public final class DatabaseTuningProfileTest {
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mDb = SQLiteDatabase.create(null);
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+    }
+
+    @Test
+    public void performanceProfile_setsPragmas() {
+        long synchronous = getPragma("synchronous");
+
+        DatabaseTuningProfile.PERFORMANCE.apply(mDb);
+
+        assertEquals(-2048, getPragma("cache_size"));
+        assertEquals(2, getPragma("temp_store"));
+        // Not in WAL mode, the commits keep their fsyncs.
+        assertEquals(synchronous, getPragma("synchronous"));
+    }
+
+    @Test
+    public void performanceProfile_lowersSynchronousInWalMode() throws Exception {
+        File file = File.createTempFile("tuning", ".db",
+                InstrumentationRegistry.getTargetContext().getCacheDir());
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        try {
+            db.execSQL("PRAGMA synchronous = FULL");
+
+            DatabaseTuningProfile.PERFORMANCE.apply(db);
+
+            // NORMAL
+            assertEquals(1, DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null));
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    @Test
+    public void defaultProfile_keepsPragmas() {
+        long cacheSize = getPragma("cache_size");
+        long tempStore = getPragma("temp_store");
+        long synchronous = getPragma("synchronous");
+
+        DatabaseTuningProfile.DEFAULT.apply(mDb);
+
+        assertEquals(cacheSize, getPragma("cache_size"));
+        assertEquals(tempStore, getPragma("temp_store"));
+        assertEquals(synchronous, getPragma("synchronous"));
+    }
+
+    private long getPragma(String name) {
+        return DatabaseUtils.longForQuery(mDb, "PRAGMA " + name, null);
+    }
+}
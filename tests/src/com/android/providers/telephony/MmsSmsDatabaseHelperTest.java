@@ -0,0 +1,811 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Part;
+import android.provider.Telephony.MmsSms;
+import android.provider.Telephony.MmsSms.PendingMessages;
+import android.provider.Telephony.Sms;
+import android.provider.Telephony.Threads;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:MmsSmsDatabaseHelperTest
+ * Or
+ *    runtest --path tests/src/com/android/providers/telephony/MmsSmsDatabaseHelperTest.java
+ */
+@RunWith(JUnit4.class)
+public final class MmsSmsDatabaseHelperTest {
+
+    private final static String TAG = MmsSmsDatabaseHelperTest.class.getSimpleName();
+
+    private Context mContext;
+    // The uris notified through the content resolver of mContext.
+    private final List<Uri> mNotifiedUris = new ArrayList<Uri>();
+    private MmsSmsDatabaseHelper mHelper; // the actual class being tested
+    private SQLiteOpenHelper mInMemoryDbHelper; // used to give us an in-memory db
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        Log.d(TAG, "setUp() +");
+        final MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
+                    int userHandle) {
+                mNotifiedUris.add(uri);
+            }
+        };
+        mContext = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mHelper = new MmsSmsDatabaseHelperTestable(mContext, null);
+        mInMemoryDbHelper = new InMemoryMmsSmsDbHelper();
+        mDb = mInMemoryDbHelper.getWritableDatabase();
+        Log.d(TAG, "setUp() -");
+    }
+
+    @After
+    public void tearDown() {
+        mInMemoryDbHelper.close();
+    }
+
+    @Test
+    public void updateThreads_onlyUpdatesGivenThreads() {
+        insertThread(1);
+        insertThread(2);
+        insertThread(3);
+        // An empty thread that is not touched by the delete is not looked at either.
+        insertThread(4);
+        long sms1 = insertSms(1, 1, Sms.MESSAGE_TYPE_INBOX);
+        long sms2 = insertSms(2, 1, Sms.MESSAGE_TYPE_INBOX);
+        insertSms(2, 1, Sms.MESSAGE_TYPE_INBOX);
+        insertSms(3, 1, Sms.MESSAGE_TYPE_INBOX);
+        // A stale counter of a thread that is not touched by the delete.
+        mDb.execSQL("UPDATE threads SET message_count = 42 WHERE _id = 3");
+
+        mDb.delete("sms", "_id IN (" + sms1 + "," + sms2 + ")", null);
+        MmsSmsDatabaseHelper.updateThreads(mDb, Arrays.asList(1L, 2L));
+
+        // The thread without messages is deleted, the other one is recomputed.
+        assertEquals(-1, getThreadColumn(1, Threads.MESSAGE_COUNT));
+        assertEquals(1, getThreadColumn(2, Threads.MESSAGE_COUNT));
+        assertEquals(42, getThreadColumn(3, Threads.MESSAGE_COUNT));
+        assertEquals(0, getThreadColumn(4, Threads.MESSAGE_COUNT));
+    }
+
+    @Test
+    public void updateThreads_probesTheThreadIdIndices() {
+        assertUsesIndex("SELECT _id FROM threads WHERE _id IN (1, 2)"
+                + " AND NOT EXISTS (SELECT 1 FROM sms WHERE thread_id = threads._id)"
+                + " AND NOT EXISTS (SELECT 1 FROM pdu WHERE thread_id = threads._id)",
+                "threadIdDateIndex");
+        assertUsesIndex("SELECT _id FROM threads WHERE _id IN (1, 2)"
+                + " AND NOT EXISTS (SELECT 1 FROM pdu WHERE thread_id = threads._id)",
+                "pduThreadIdDateIndex");
+    }
+
+    @Test
+    public void updateThreads_throwsAndRollsBackTheCallerOnFailure() {
+        insertThread(1);
+        insertSms(1, 1, Sms.MESSAGE_TYPE_INBOX);
+        mDb.beginTransaction();
+        try {
+            mDb.delete("sms", null, null);
+            mDb.execSQL("DROP TABLE " + MmsSmsProvider.TABLE_THREAD_LATEST);
+            MmsSmsDatabaseHelper.updateThreads(mDb, Arrays.asList(1L));
+            mDb.setTransactionSuccessful();
+        } catch (SQLException expected) {
+            // The caller learns that its delete did not happen.
+        } finally {
+            mDb.endTransaction();
+        }
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, "sms"));
+        assertEquals(1, getThreadColumn(1, Threads.MESSAGE_COUNT));
+    }
+
+    @Test
+    public void threadCounters_followInsertReadMoveAndDelete() {
+        insertThread(1);
+        insertThread(2);
+        long sms1 = insertSms(1, 0, Sms.MESSAGE_TYPE_INBOX);
+        long sms2 = insertSms(1, 0, Sms.MESSAGE_TYPE_FAILED);
+        long pdu1 = insertPdu(1, 0, Mms.MESSAGE_BOX_INBOX);
+        assertThreadCounters(1, 3, 3, 1);
+        assertThreadCounters(2, 0, 0, 0);
+
+        // Read.
+        updateMessage("sms", sms1, Sms.READ, 1);
+        updateMessage("pdu", pdu1, Mms.READ, 1);
+        assertThreadCounters(1, 3, 1, 1);
+
+        // Move to another thread.
+        updateMessage("sms", sms2, Sms.THREAD_ID, 2);
+        updateMessage("pdu", pdu1, Mms.THREAD_ID, 2);
+        assertThreadCounters(1, 1, 0, 0);
+        assertThreadCounters(2, 2, 1, 1);
+
+        // Change of type and box.
+        updateMessage("sms", sms2, Sms.TYPE, Sms.MESSAGE_TYPE_DRAFT);
+        updateMessage("pdu", pdu1, Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_DRAFTS);
+        assertThreadCounters(2, 0, 1, 0);
+        updateMessage("pdu", pdu1, Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+        updateMessage("pdu", pdu1, Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_DELIVERY_IND);
+        assertThreadCounters(2, 0, 1, 0);
+
+        // Delete.
+        mDb.delete("sms", "_id = " + sms1, null);
+        MmsSmsDatabaseHelper.updateThreads(mDb, Arrays.asList(1L));
+        assertEquals(-1, getThreadColumn(1, Threads.MESSAGE_COUNT));
+        assertEquals(0, MmsSmsDatabaseHelper.verifyThreadCounters(mDb, false));
+    }
+
+    @Test
+    public void threadLatest_matchesGroupedQuery() {
+        for (long threadId = 1; threadId <= 4; threadId++) {
+            insertThread(threadId);
+        }
+        insertSms(1, 1, Sms.MESSAGE_TYPE_INBOX, 1000L);
+        long sms1 = insertSms(1, 1, Sms.MESSAGE_TYPE_INBOX, 3000L);
+        insertPdu(1, 1, Mms.MESSAGE_BOX_INBOX, 2);
+        long pdu2 = insertPdu(2, 1, Mms.MESSAGE_BOX_INBOX, 5);
+        insertSms(2, 1, Sms.MESSAGE_TYPE_DRAFT, 9000L);
+        insertSms(2, 1, Sms.MESSAGE_TYPE_INBOX, 4000L);
+        // Messages without a date are never the latest one.
+        insertSms(3, 1, Sms.MESSAGE_TYPE_INBOX, null);
+        insertSms(4, 1, Sms.MESSAGE_TYPE_INBOX, 1000L);
+        insertSms(4, 1, Sms.MESSAGE_TYPE_INBOX, null);
+        assertEquals(3, getThreadLatest().size());
+        assertEquals(getThreadLatestFromGroupedQuery(), getThreadLatest());
+
+        updateMessage("sms", sms1, Sms.THREAD_ID, 2);
+        assertEquals(getThreadLatestFromGroupedQuery(), getThreadLatest());
+
+        mDb.delete("pdu", "_id = " + pdu2, null);
+        assertEquals(getThreadLatestFromGroupedQuery(), getThreadLatest());
+
+        // A full recomputation gives the same result as the triggers.
+        MmsSmsDatabaseHelper.updateThreads(mDb, null, null);
+        assertEquals(getThreadLatestFromGroupedQuery(), getThreadLatest());
+    }
+
+    @Test
+    public void insertWords_skipsRowsWaitingForRebuild() {
+        long sms1 = insertSmsBody("pending");
+        long sms2 = insertSmsBody("indexed");
+        mDb.execSQL("INSERT INTO " + MmsSmsDatabaseHelper.TABLE_WORDS_REBUILD
+                + " VALUES (1, 0, " + sms1 + ")");
+
+        MmsSmsDatabaseHelper.insertWords(mDb, 1, sms1, "pending");
+        MmsSmsDatabaseHelper.insertWords(mDb, 1, sms2, "indexed");
+        assertEquals(0, countSmsMatches("pending"));
+        assertEquals(1, countSmsMatches("indexed"));
+
+        // The rebuild indexes the skipped row.
+        MmsSmsDatabaseHelper.rebuildWordsIndex(mDb);
+        assertEquals(1, countSmsMatches("pending"));
+        assertFalse(MmsSmsDatabaseHelper.isWordsIndexRebuilding(mDb));
+    }
+
+    @Test
+    public void rebuildWordsIndex_replacesIndexedRows() {
+        long sms = insertSmsBody("alpha");
+        MmsSmsDatabaseHelper.insertWords(mDb, 1, sms, "alpha");
+        // A row indexed on insert although it is in the range of the rebuild.
+        mDb.execSQL("INSERT INTO " + MmsSmsDatabaseHelper.TABLE_WORDS_REBUILD
+                + " VALUES (1, 0, " + sms + ")");
+
+        MmsSmsDatabaseHelper.rebuildWordsIndex(mDb);
+        assertEquals(1, countSmsMatches("alpha"));
+        assertFalse(MmsSmsDatabaseHelper.isWordsIndexRebuilding(mDb));
+    }
+
+    @Test
+    public void rawQueries_useRawIndices() {
+        // The lookup of the parts of a multipart message by the inbound sms handler.
+        assertUsesIndex("SELECT * FROM raw WHERE address = '5551234' AND reference_number = 1"
+                + " AND count = 2 AND deleted = 0", "rawReassemblyIndex");
+        // The purge, see purgeDeletedRawMessages().
+        assertUsesIndex("DELETE FROM raw WHERE " + MmsSmsDatabaseHelper.RAW_DELETED_CONDITION
+                + " AND date < 1000", "rawDeletedDateIndex");
+        // The expired rows skipped by the queries of SmsProvider until they are purged.
+        assertUsesIndex("SELECT * FROM raw WHERE _id NOT IN (SELECT _id FROM raw WHERE "
+                + MmsSmsDatabaseHelper.RAW_DELETED_CONDITION + " AND date < 1000)",
+                "rawDeletedDateIndex");
+    }
+
+    @Test
+    public void purgeDeletedRawMessages_onlyDeletesExpiredDeletedRows() {
+        long now = System.currentTimeMillis();
+        long expired = now - SmsProvider.RAW_MESSAGE_EXPIRE_AGE_MS - 1000;
+        insertRaw(expired, 1);
+        long recentDeleted = insertRaw(now, 1);
+        long expiredKept = insertRaw(expired, 0);
+
+        assertEquals(1, MmsSmsDatabaseHelper.purgeDeletedRawMessages(mDb));
+        assertEquals(Arrays.asList(String.valueOf(recentDeleted), String.valueOf(expiredKept)),
+                queryStrings("SELECT _id FROM raw ORDER BY _id"));
+    }
+
+    @Test
+    public void rawMessagePurgeService_runsWithinHalfTheExpiryAge() {
+        JobInfo job = MmsSmsDatabaseHelper.RawMessagePurgeService.getJobInfo(mContext);
+        assertTrue(job.isPeriodic());
+        assertTrue(job.getIntervalMillis() <= SmsProvider.RAW_MESSAGE_EXPIRE_AGE_MS / 2);
+        assertEquals(MmsSmsDatabaseHelper.RawMessagePurgeService.class.getName(),
+                job.getService().getClassName());
+    }
+
+    @Test
+    public void rawMessagePurgeService_isOnlyScheduledAgainWhenMissingOrChanged() {
+        assertFalse(MmsSmsDatabaseHelper.RawMessagePurgeService.isScheduled(null));
+        assertTrue(MmsSmsDatabaseHelper.RawMessagePurgeService.isScheduled(
+                MmsSmsDatabaseHelper.RawMessagePurgeService.getJobInfo(mContext)));
+        // A job pending with the period of an older version.
+        JobInfo oldJob = new JobInfo.Builder(1, new ComponentName(mContext,
+                MmsSmsDatabaseHelper.RawMessagePurgeService.class))
+                .setPeriodic(SmsProvider.RAW_MESSAGE_EXPIRE_AGE_MS)
+                .build();
+        assertFalse(MmsSmsDatabaseHelper.RawMessagePurgeService.isScheduled(oldJob));
+    }
+
+    @Test(expected = SQLException.class)
+    public void insertWords_throwsOnFailure() {
+        mDb.execSQL("DROP TABLE " + SmsProvider.TABLE_SMS_WORDS);
+        MmsSmsDatabaseHelper.insertWords(mDb, 1, 1, "body");
+    }
+
+    @Test
+    public void messageStateQueries_useMessageStateIndices() {
+        assertUsesIndex("SELECT _id FROM sms WHERE "
+                + MmsSmsDatabaseHelper.SMS_LOCKED_CONDITION, "smsLockedIndex");
+        assertUsesIndex("SELECT _id FROM pdu WHERE "
+                + MmsSmsDatabaseHelper.PDU_LOCKED_CONDITION, "pduLockedIndex");
+        // The undelivered messages query, see MmsSmsProvider.getUndeliveredMessages().
+        assertUsesIndex("SELECT * FROM pdu LEFT JOIN pending_msgs"
+                + " ON pdu._id = pending_msgs.msg_id WHERE "
+                + MmsSmsDatabaseHelper.PDU_OUTBOX_CONDITION, "pduOutboxIndex");
+        assertUsesIndex("SELECT * FROM pdu LEFT JOIN pending_msgs"
+                + " ON pdu._id = pending_msgs.msg_id WHERE "
+                + MmsSmsDatabaseHelper.PDU_OUTBOX_CONDITION, "pendingMsgsMsgIdIndex");
+        assertUsesIndex("SELECT * FROM sms WHERE "
+                + MmsSmsDatabaseHelper.SMS_UNDELIVERED_CONDITION, "typeThreadIdIndex");
+        // The pending messages queries, see MmsSmsProvider.query(URI_PENDING_MSG).
+        assertUsesIndex("SELECT * FROM pending_msgs WHERE "
+                + PendingMessages.MSG_ID + "=1", "pendingMsgsMsgIdIndex");
+        assertUsesIndex("SELECT * FROM pending_msgs WHERE "
+                + PendingMessages.PROTO_TYPE + "=" + MmsSms.MMS_PROTO + " AND "
+                + PendingMessages.DUE_TIME + " < 1000 ORDER BY " + PendingMessages.DUE_TIME,
+                "pendingMsgsDueTimeIndex");
+    }
+
+    @Test
+    public void attachmentCount_survivesReopen() {
+        insertThread(1);
+        long pdu = insertPdu(1, 1, Mms.MESSAGE_BOX_INBOX);
+        insertPart(pdu, "text/plain");
+        long image = insertPart(pdu, "image/jpeg");
+        assertEquals(1, getThreadColumn(1, MmsSmsDatabaseHelper.THREAD_ATTACHMENT_COUNT_COLUMN));
+
+        // onOpen() drops the former delete triggers of the part and pdu tables, the attachment
+        // triggers must still be there afterwards.
+        mHelper.onOpen(mDb);
+        insertPart(pdu, "image/png");
+        assertEquals(2, getThreadColumn(1, MmsSmsDatabaseHelper.THREAD_ATTACHMENT_COUNT_COLUMN));
+        mDb.delete("part", "_id = " + image, null);
+        assertEquals(1, getThreadColumn(1, MmsSmsDatabaseHelper.THREAD_ATTACHMENT_COUNT_COLUMN));
+        assertEquals(1, getThreadColumn(1, Threads.HAS_ATTACHMENT));
+        mDb.delete("part", "ct != 'text/plain'", null);
+        assertEquals(0, getThreadColumn(1, MmsSmsDatabaseHelper.THREAD_ATTACHMENT_COUNT_COLUMN));
+        assertEquals(0, getThreadColumn(1, Threads.HAS_ATTACHMENT));
+    }
+
+    @Test
+    public void readsRacingFirstOpen_seeCreatedDatabase() throws Exception {
+        final String name = "mmssms_race_test.db";
+        mContext.deleteDatabase(name);
+        final MmsSmsDatabaseHelper helper = new MmsSmsDatabaseHelperTestable(mContext, name);
+        final CountDownLatch start = new CountDownLatch(1);
+        final int readers = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        try {
+            ArrayList<Future<Long>> reads = new ArrayList<Future<Long>>();
+            for (int i = 0; i < readers; i++) {
+                reads.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        start.await();
+                        // Throws if the database is handed out before it is created.
+                        return DatabaseUtils.queryNumEntries(helper.getReadableDatabase(),
+                                "threads");
+                    }
+                }));
+            }
+            Future<Long> write = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    start.await();
+                    ContentValues values = new ContentValues();
+                    values.put(Threads.RECIPIENT_IDS, "1");
+                    return helper.getWritableDatabase().insert("threads", null, values);
+                }
+            });
+            start.countDown();
+
+            assertTrue(write.get(10, TimeUnit.SECONDS) > 0);
+            for (Future<Long> read : reads) {
+                long threads = read.get(10, TimeUnit.SECONDS);
+                assertTrue(threads == 0 || threads == 1);
+            }
+            // Readers and writers share the same open database.
+            assertSame(helper.getWritableDatabase(), helper.getReadableDatabase());
+            assertEquals(1, DatabaseUtils.queryNumEntries(helper.getReadableDatabase(),
+                    "threads"));
+        } finally {
+            executor.shutdownNow();
+            helper.close();
+            mContext.deleteDatabase(name);
+        }
+    }
+
+    @Test
+    public void autoIncrementMigration_mirrorsWritesAndResumes() {
+        recreateTableWithoutAutoIncrement("part", Part.CONTENT_TYPE);
+        long pdu = insertPdu(1, 1, Mms.MESSAGE_BOX_INBOX);
+        int parts = 2 * MmsSmsDatabaseHelper.AUTOINCREMENT_MIGRATION_BATCH_SIZE + 100;
+        for (int i = 1; i <= parts; i++) {
+            assertEquals(i, insertTextPart(pdu, "word" + i));
+        }
+
+        MmsSmsDatabaseHelper.startAutoIncrementMigration(mDb, MmsProvider.TABLE_PART);
+        assertFalse(MmsSmsDatabaseHelper.copyAutoIncrementBatch(mDb, MmsProvider.TABLE_PART));
+        // Changes to copied rows, rows not copied yet and new rows are all mirrored.
+        updatePartText(10, "copied");
+        updatePartText(parts - 10, "pending");
+        mDb.delete("part", "_id IN (20, " + (parts - 20) + ")", null);
+        long added = insertTextPart(pdu, "added");
+        // The migration stops here, and resumes from the saved progress.
+        assertTrue(MmsSmsDatabaseHelper.migrateToAutoIncrement(mDb, new AtomicBoolean(false)));
+
+        assertTrue(getTableSql("part").contains("AUTOINCREMENT"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb,
+                MmsSmsDatabaseHelper.TABLE_AUTOINCREMENT_MIGRATION));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "sqlite_master",
+                "name LIKE 'part_autoincrement%' OR name = 'part_temp'", null));
+        assertEquals(parts - 1, DatabaseUtils.queryNumEntries(mDb, "part"));
+        assertEquals("copied", getPartText(10));
+        assertEquals("pending", getPartText(parts - 10));
+        assertNull(getPartText(20));
+        assertEquals("added", getPartText(added));
+        // The words index reads the new table, and its triggers are back.
+        assertEquals(Arrays.asList("pending"), queryStrings("SELECT text FROM "
+                + MmsProvider.TABLE_PART_WORDS + " WHERE " + MmsProvider.TABLE_PART_WORDS
+                + " MATCH 'pending'"));
+        updatePartText(parts - 10, "again");
+        assertEquals(0, countPartMatches("pending"));
+        assertEquals(1, countPartMatches("again"));
+        // Deleted ids are no longer reused.
+        mDb.delete("part", "_id = " + added, null);
+        assertTrue(insertTextPart(pdu, "next") > added);
+        // So do the triggers of other tables referring to the part table.
+        mDb.delete("pdu", "_id = " + pdu, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "part"));
+    }
+
+    @Test
+    public void autoIncrementMigration_restartsAfterAnUpgradeAddingAColumn() {
+        // The part table of a version without the cl column, with a migration started.
+        recreateTableWithoutAutoIncrement("part", Part.CONTENT_LOCATION, false);
+        long pdu = insertPdu(1, 1, Mms.MESSAGE_BOX_INBOX);
+        long copied = insertTextPart(pdu, "copied");
+        MmsSmsDatabaseHelper.startAutoIncrementMigration(mDb, MmsProvider.TABLE_PART);
+        assertFalse(MmsSmsDatabaseHelper.copyAutoIncrementBatch(mDb, MmsProvider.TABLE_PART));
+
+        // The upgrade adding the column, as run by onUpgrade().
+        MmsSmsDatabaseHelper.resetAutoIncrementMigrations(mDb);
+        mDb.execSQL("ALTER TABLE part ADD COLUMN " + Part.CONTENT_LOCATION + " TEXT");
+        setPartLocation(copied, "first");
+        setPartLocation(insertTextPart(pdu, "added"), "second");
+        assertTrue(MmsSmsDatabaseHelper.migrateToAutoIncrement(mDb, new AtomicBoolean(false)));
+
+        assertTrue(getTableSql("part").contains("AUTOINCREMENT"));
+        assertEquals(Arrays.asList("first", "second"), queryStrings("SELECT "
+                + Part.CONTENT_LOCATION + " FROM part ORDER BY _id"));
+    }
+
+    @Test
+    public void autoIncrementMigration_keepsConcurrentWrites() throws Exception {
+        recreateTableWithoutAutoIncrement("threads", null);
+        final int threads = 4 * MmsSmsDatabaseHelper.AUTOINCREMENT_MIGRATION_BATCH_SIZE;
+        for (int i = 1; i <= threads; i++) {
+            insertThread(i);
+        }
+        // The same writes, made to a table that is not migrated.
+        mDb.execSQL("CREATE TABLE threads_expected AS SELECT _id, snippet FROM threads");
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> migration = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return MmsSmsDatabaseHelper.migrateToAutoIncrement(mDb, stopped);
+                }
+            });
+            for (int i = 0; i < 200; i++) {
+                if (i == 100) {
+                    stopped.set(true);
+                    migration.get(10, TimeUnit.SECONDS);
+                    stopped.set(false);
+                    migration = executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return MmsSmsDatabaseHelper.migrateToAutoIncrement(mDb, stopped);
+                        }
+                    });
+                }
+                writeThreads("UPDATE %s SET snippet = 'w" + i + "' WHERE _id = "
+                        + (i * 37 % threads + 1));
+                writeThreads("DELETE FROM %s WHERE _id = " + (i * 53 % threads + 1));
+                writeThreads("INSERT INTO %s (_id, snippet) VALUES (" + (threads + i + 1)
+                        + ", 'n" + i + "')");
+            }
+            assertTrue(migration.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(getTableSql("threads").contains("AUTOINCREMENT"));
+        long expected = DatabaseUtils.queryNumEntries(mDb, "threads_expected");
+        assertEquals(expected, DatabaseUtils.queryNumEntries(mDb, "threads"));
+        assertEquals(expected, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM ("
+                + "SELECT _id, snippet FROM threads INTERSECT SELECT * FROM threads_expected)",
+                null));
+    }
+
+    @Test
+    public void getOrCreateThreadId_sameThreadForEveryProvider() {
+        // SmsProvider, within the transaction of a bulk insert.
+        long smsThreadId;
+        mDb.beginTransaction();
+        try {
+            smsThreadId = MmsSmsDatabaseHelper.getOrCreateThreadId(mContext, mHelper, mDb,
+                    "5551234");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        // The caller notifies the new thread after its own commit.
+        assertTrue(mNotifiedUris.isEmpty());
+        // MmsProvider, without a transaction.
+        assertEquals(smsThreadId, MmsSmsDatabaseHelper.getOrCreateThreadId(mContext, mHelper,
+                mDb, "5551234"));
+        // content://mms-sms/threadID
+        assertEquals(smsThreadId, mHelper.getOrCreateThreadId(mDb, Arrays.asList("5551234")));
+        assertTrue(mNotifiedUris.isEmpty());
+
+        // An email address with a display name is the same recipient as its addr-spec.
+        long mmsThreadId = MmsSmsDatabaseHelper.getOrCreateThreadId(mContext, mHelper, mDb,
+                "Foo Bar <Foo@Example.com>");
+        assertTrue(mmsThreadId != smsThreadId);
+        assertEquals(Arrays.asList(MmsSms.CONTENT_URI), mNotifiedUris);
+        assertEquals(mmsThreadId, mHelper.getOrCreateThreadId(mDb,
+                Arrays.asList("foo@example.com")));
+        assertEquals(mmsThreadId, MmsSmsDatabaseHelper.getOrCreateThreadId(mContext, mHelper,
+                mDb, "foo@example.com"));
+
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, "threads"));
+        assertEquals(Arrays.asList("5551234", "foo@example.com"),
+                queryStrings("SELECT address FROM canonical_addresses ORDER BY _id"));
+        assertEquals(1, mNotifiedUris.size());
+    }
+
+    private void insertThread(long threadId) {
+        ContentValues values = new ContentValues();
+        values.put(Threads._ID, threadId);
+        values.put(Threads.RECIPIENT_IDS, String.valueOf(threadId));
+        mDb.insert("threads", null, values);
+    }
+
+    private long insertSms(long threadId, int read, int type) {
+        return insertSms(threadId, read, type, System.currentTimeMillis());
+    }
+
+    private long insertSms(long threadId, int read, int type, Long date) {
+        ContentValues values = new ContentValues();
+        values.put(Sms.THREAD_ID, threadId);
+        values.put(Sms.ADDRESS, "555" + threadId);
+        values.put(Sms.BODY, "body");
+        values.put(Sms.DATE, date);
+        values.put(Sms.READ, read);
+        values.put(Sms.TYPE, type);
+        return mDb.insert("sms", null, values);
+    }
+
+    // Inserts an sms row that is not indexed yet.
+    private long insertSmsBody(String body) {
+        ContentValues values = new ContentValues();
+        values.put(Sms.BODY, body);
+        return mDb.insert("sms", null, values);
+    }
+
+    private long insertRaw(long date, int deleted) {
+        ContentValues values = new ContentValues();
+        values.put("date", date);
+        values.put("deleted", deleted);
+        return mDb.insert(SmsProvider.TABLE_RAW, null, values);
+    }
+
+    private long insertPdu(long threadId, int read, int msgBox) {
+        return insertPdu(threadId, read, msgBox, System.currentTimeMillis() / 1000);
+    }
+
+    // 'date' is in seconds.
+    private long insertPdu(long threadId, int read, int msgBox, long date) {
+        ContentValues values = new ContentValues();
+        values.put(Mms.THREAD_ID, threadId);
+        values.put(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+        values.put(Mms.MESSAGE_BOX, msgBox);
+        values.put(Mms.DATE, date);
+        values.put(Mms.READ, read);
+        return mDb.insert("pdu", null, values);
+    }
+
+    // The "thread_id:is_mms:msg_id" of the latest message of each thread, from thread_latest.
+    private List<String> getThreadLatest() {
+        return queryStrings("SELECT thread_id || ':' || is_mms || ':' || msg_id"
+                + " FROM thread_latest ORDER BY thread_id");
+    }
+
+    // The same, from the grouped union query MmsSmsProvider.getConversations() runs when it
+    // has a selection.
+    private List<String> getThreadLatestFromGroupedQuery() {
+        return queryStrings("SELECT tid || ':' || is_mms || ':' || _id FROM ("
+                + " SELECT thread_id AS tid, _id, 1 AS is_mms, date * 1000 AS normalized_date"
+                + " FROM pdu"
+                + " WHERE msg_box != 3 AND (m_type = 128 OR m_type = 132 OR m_type = 130)"
+                + " GROUP BY thread_id HAVING date = MAX(date)"
+                + " UNION"
+                + " SELECT thread_id AS tid, _id, 0 AS is_mms, date AS normalized_date"
+                + " FROM sms"
+                + " WHERE type != 3"
+                + " GROUP BY thread_id HAVING date = MAX(date))"
+                + " GROUP BY tid HAVING normalized_date = MAX(normalized_date)"
+                + " ORDER BY tid");
+    }
+
+    private List<String> queryStrings(String sql) {
+        ArrayList<String> result = new ArrayList<String>();
+        Cursor c = mDb.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                result.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private long insertPart(long pduId, String contentType) {
+        ContentValues values = new ContentValues();
+        values.put(Part.MSG_ID, pduId);
+        values.put(Part.CONTENT_TYPE, contentType);
+        return mDb.insert("part", null, values);
+    }
+
+    // Makes the same change to the threads table and to threads_expected, in one transaction.
+    private void writeThreads(String sql) {
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL(String.format(sql, "threads"));
+            mDb.execSQL(String.format(sql, "threads_expected"));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Inserts an indexed text part, like MmsProvider does.
+    private long insertTextPart(long pduId, String text) {
+        mDb.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(Part.MSG_ID, pduId);
+            values.put(Part.CONTENT_TYPE, "text/plain");
+            values.put(Part.TEXT, text);
+            long id = mDb.insert("part", null, values);
+            MmsSmsDatabaseHelper.insertWords(mDb, 2, id, text);
+            mDb.setTransactionSuccessful();
+            return id;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    private void updatePartText(long id, String text) {
+        ContentValues values = new ContentValues();
+        values.put(Part.TEXT, text);
+        assertEquals(1, mDb.update("part", values, "_id = " + id, null));
+    }
+
+    // Returns null when the part does not exist.
+    private void setPartLocation(long id, String location) {
+        ContentValues values = new ContentValues();
+        values.put(Part.CONTENT_LOCATION, location);
+        mDb.update("part", values, "_id = " + id, null);
+    }
+
+    private String getPartText(long id) {
+        List<String> text = queryStrings("SELECT text FROM part WHERE _id = " + id);
+        return text.isEmpty() ? null : text.get(0);
+    }
+
+    private long countPartMatches(String word) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + MmsProvider.TABLE_PART_WORDS + " WHERE " + MmsProvider.TABLE_PART_WORDS
+                + " MATCH ?", new String[] { word });
+    }
+
+    private String getTableSql(String table) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT sql FROM sqlite_master"
+                + " WHERE type = 'table' AND name = ?", new String[] { table });
+    }
+
+    // Recreates the table the way older versions left it: without AUTOINCREMENT, and with
+    // addedColumn, if not null, added last by an upgrade.
+    private void recreateTableWithoutAutoIncrement(String table, String addedColumn) {
+        recreateTableWithoutAutoIncrement(table, addedColumn, true);
+    }
+
+    // Recreates 'table' without AUTOINCREMENT and without 'addedColumn', which is added back
+    // last by ALTER TABLE when 'addBack' is true.
+    private void recreateTableWithoutAutoIncrement(String table, String addedColumn,
+            boolean addBack) {
+        List<String> statements = queryStrings("SELECT sql FROM sqlite_master"
+                + " WHERE tbl_name = '" + table + "' AND type IN ('index', 'trigger')"
+                + " AND sql IS NOT NULL");
+        String schema = getTableSql(table).replace(" AUTOINCREMENT", "");
+        mDb.execSQL("DROP TABLE " + table);
+        if (addedColumn != null) {
+            mDb.execSQL(schema.replace("," + addedColumn + " TEXT", ""));
+            if (addBack) {
+                mDb.execSQL("ALTER TABLE " + table + " ADD COLUMN " + addedColumn + " TEXT");
+            }
+        } else {
+            mDb.execSQL(schema);
+        }
+        for (String statement : statements) {
+            mDb.execSQL(statement);
+        }
+        assertFalse(getTableSql(table).contains("AUTOINCREMENT"));
+    }
+
+    private void updateMessage(String table, long id, String column, long value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        assertEquals(1, mDb.update(table, values, "_id = " + id, null));
+    }
+
+    private void assertThreadCounters(long threadId, long messageCount, long unreadCount,
+            long error) {
+        assertEquals(messageCount, getThreadColumn(threadId, Threads.MESSAGE_COUNT));
+        assertEquals(unreadCount, getThreadColumn(threadId,
+                MmsSmsDatabaseHelper.THREAD_UNREAD_COUNT_COLUMN));
+        assertEquals(unreadCount == 0 ? 1 : 0, getThreadColumn(threadId, Threads.READ));
+        assertEquals(error, getThreadColumn(threadId, Threads.ERROR));
+        assertEquals(0, MmsSmsDatabaseHelper.verifyThreadCounters(mDb, false));
+    }
+
+    private long countSmsMatches(String word) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + SmsProvider.TABLE_SMS_WORDS + " WHERE " + SmsProvider.TABLE_SMS_WORDS
+                + " MATCH ?", new String[] { word });
+    }
+
+    private void assertUsesIndex(String query, String index) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        try {
+            while (c.moveToNext()) {
+                plan.append(c.getString(c.getColumnIndexOrThrow("detail"))).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        assertTrue(query + " does not use " + index + ":\n" + plan,
+                plan.toString().contains(index));
+    }
+
+    // Returns -1 when the thread does not exist.
+    private long getThreadColumn(long threadId, String column) {
+        Cursor c = mDb.query("threads", new String[] { column }, "_id = " + threadId, null,
+                null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * An in memory DB with the tables, triggers and indices of the current version.
+     */
+    private class InMemoryMmsSmsDbHelper extends SQLiteOpenHelper {
+
+        public InMemoryMmsSmsDbHelper() {
+            super(null,      // no context is needed for in-memory db
+                  null,      // db file name is null for in-memory db
+                  null,      // CursorFactory is null by default
+                  1);        // db version is no-op for tests
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            mHelper.createTables(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
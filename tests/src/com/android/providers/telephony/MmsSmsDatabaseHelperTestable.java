@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.providers.telephony;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * A subclass of MmsSmsDatabaseHelper used for testing, which creates the tables without
+ * broadcasting the creation of the database.
+ */
+public class MmsSmsDatabaseHelperTestable extends MmsSmsDatabaseHelper {
+    private static final String TAG = "MmsSmsDatabaseHelperTestable";
+
+    /**
+     * @param name the database file name, or null for an in-memory database
+     */
+    public MmsSmsDatabaseHelperTestable(Context context, String name) {
+        super(context, name, null);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        Log.d(TAG, "onCreate: creating the tables");
+        createTables(db);
+    }
+}
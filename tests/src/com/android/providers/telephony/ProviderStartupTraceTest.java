@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:ProviderStartupTraceTest
+ */
+@RunWith(JUnit4.class)
+public final class ProviderStartupTraceTest {
+
+    @Test
+    public void firstQuery_isTimedOnce() {
+        ProviderStartupTrace trace = new ProviderStartupTrace("ProviderStartupTraceTest");
+        trace.beginCreate();
+        trace.endCreate();
+
+        long start = trace.beginFirstQuery();
+        assertTrue(start >= 0);
+        // Later queries, including ones nested in the first query, are not timed.
+        assertEquals(-1, trace.beginFirstQuery());
+        trace.endFirstQuery(-1);
+        trace.endFirstQuery(start);
+        assertEquals(-1, trace.beginFirstQuery());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.Telephony.Sms;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * To run this test, run the following from the dir: packages/providers/TelephonyProvider
+ *    atest TelephonyProviderTests:SmsInsertStatementsTest
+ */
+@RunWith(JUnit4.class)
+public final class SmsInsertStatementsTest {
+    private SQLiteOpenHelper mCeHelper;
+    private SQLiteOpenHelper mDeHelper;
+    private SmsInsertStatements mCeStatements;
+    private SmsInsertStatements mDeStatements;
+
+    @Before
+    public void setUp() {
+        mCeHelper = new SmsProviderTestable.InMemorySmsProviderDbHelper();
+        mDeHelper = new SmsProviderTestable.InMemorySmsProviderDbHelper();
+        mCeStatements = new SmsInsertStatements(mCeHelper);
+        mDeStatements = new SmsInsertStatements(mDeHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mCeHelper.close();
+        mDeHelper.close();
+    }
+
+    @Test
+    public void insert_bindsTheRowOnTopOfTheCallerValues() {
+        ContentValues values = new ContentValues();
+        values.put(Sms.ADDRESS, "12345");
+        values.put(Sms.BODY, "hello");
+        values.put(Sms.READ, 0);
+        SmsInsertStatements.Row row = new SmsInsertStatements.Row();
+        row.setDate(42);
+        row.setType(Sms.MESSAGE_TYPE_SENT);
+        row.setRead(1);
+        row.setCreator(null);
+
+        long rowId = mCeStatements.insert(values, row);
+
+        assertTrue(rowId > 0);
+        Cursor cursor = mCeHelper.getReadableDatabase().query("sms", null, "_id = " + rowId,
+                null, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("12345", cursor.getString(cursor.getColumnIndex(Sms.ADDRESS)));
+            assertEquals(42, cursor.getLong(cursor.getColumnIndex(Sms.DATE)));
+            assertEquals(Sms.MESSAGE_TYPE_SENT, cursor.getInt(cursor.getColumnIndex(Sms.TYPE)));
+            assertEquals(1, cursor.getInt(cursor.getColumnIndex(Sms.READ)));
+            assertTrue(cursor.isNull(cursor.getColumnIndex(Sms.CREATOR)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void insert_reusesStatementsPerDatabase() {
+        // Inserts alternate between the databases, in both key orders.
+        for (int i = 0; i < 3; i++) {
+            insertSms(mCeStatements, "ce " + i, i % 2 == 0);
+            insertSms(mDeStatements, "de " + i, i % 2 != 0);
+        }
+
+        assertEquals(3, countRows(mCeHelper, "sms"));
+        assertEquals(3, countRows(mCeHelper, "sms WHERE body LIKE 'ce %'"));
+        assertEquals(3, countRows(mCeHelper, SmsProvider.TABLE_SMS_WORDS));
+        assertEquals(3, countRows(mDeHelper, "sms WHERE body LIKE 'de %'"));
+        assertEquals(3, countRows(mDeHelper, SmsProvider.TABLE_SMS_WORDS));
+    }
+
+    @Test
+    public void insert_returnsMinusOneOnFailure() {
+        ContentValues values = new ContentValues();
+        values.put("no_such_column", 1);
+
+        assertEquals(-1, mCeStatements.insert(values, new SmsInsertStatements.Row()));
+        assertEquals(0, countRows(mCeHelper, "sms"));
+    }
+
+    @Test
+    public void insert_compilesAgainOnceTheDatabaseIsReopened() {
+        insertSms(mCeStatements, "before", true);
+        mCeHelper.close();
+
+        // The in-memory database starts over, and the old statements are dropped.
+        insertSms(mCeStatements, "after", true);
+
+        assertEquals(1, countRows(mCeHelper, "sms WHERE body = 'after'"));
+    }
+
+    private static void insertSms(SmsInsertStatements statements, String body,
+            boolean bodyFirst) {
+        ContentValues values = new ContentValues();
+        if (bodyFirst) {
+            values.put(Sms.BODY, body);
+            values.put(Sms.ADDRESS, "12345");
+        } else {
+            values.put(Sms.ADDRESS, "12345");
+            values.put(Sms.BODY, body);
+        }
+        SmsInsertStatements.Row row = new SmsInsertStatements.Row();
+        row.setThreadId(1);
+        long rowId = statements.insert(values, row);
+        assertTrue(rowId > 0);
+        statements.insertWords(rowId, body);
+    }
+
+    private static long countRows(SQLiteOpenHelper helper, String tableAndWhere) {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + tableAndWhere, null);
+    }
+}
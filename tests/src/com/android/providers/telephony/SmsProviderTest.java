@@ -25,9 +25,15 @@ import android.content.pm.ProviderInfo;
 import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Contacts;
 import android.provider.Telephony;
 import android.telephony.TelephonyManager;
+import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
 import android.test.mock.MockContext;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -38,6 +44,10 @@ import junit.framework.TestCase;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 
 /**
  * Tests for testing CRUD operations of SmsProvider.
@@ -59,6 +69,10 @@ public class SmsProviderTest extends TestCase {
     private SmsProviderTestable mSmsProviderTestable;
 
     private int notifyChangeCount;
+    // The addresses looked up in the contacts provider, guarded by this.
+    private final List<String> mContactQueries = new ArrayList<String>();
+    // Whether a change was notified while a transaction of the provider was open, guarded by this.
+    private boolean mNotifiedInTransaction;
 
     private final String mFakePdu = "123abc";
     private final String mFakeAddress = "FakeAddress";
@@ -88,10 +102,33 @@ public class SmsProviderTest extends TestCase {
                 @Override
                 public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork,
                         int userHandle) {
-                    notifyChangeCount++;
+                    synchronized (SmsProviderTest.this) {
+                        notifyChangeCount++;
+                        mNotifiedInTransaction |= isProviderInTransaction();
+                        SmsProviderTest.this.notifyAll();
+                    }
                 }
             };
 
+            // Answer the contact lookups of inbox inserts: 12345 is person 7, 67890 person 8.
+            mResolver.addProvider(Contacts.AUTHORITY, new MockContentProvider() {
+                @Override
+                public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+                    String address = uri.getLastPathSegment();
+                    synchronized (SmsProviderTest.this) {
+                        mContactQueries.add(address);
+                    }
+                    MatrixCursor cursor = new MatrixCursor(projection);
+                    if ("12345".equals(address)) {
+                        cursor.addRow(new Object[] { 7 });
+                    } else if ("67890".equals(address)) {
+                        cursor.addRow(new Object[] { 8 });
+                    }
+                    return cursor;
+                }
+            });
+
             // Add authority="sms" to given smsProvider
             ProviderInfo providerInfo = new ProviderInfo();
             providerInfo.authority = "sms";
@@ -149,6 +186,7 @@ public class SmsProviderTest extends TestCase {
         mContext = new MockContextWithProvider(mSmsProviderTestable);
         mContentResolver = mContext.getContentResolver();
         notifyChangeCount = 0;
+        mNotifiedInTransaction = false;
     }
 
     @Override
@@ -187,6 +225,130 @@ public class SmsProviderTest extends TestCase {
                 mContentResolver.insert(Uri.parse("content://sms/attachments"), values));
     }
 
+    @Test
+    @SmallTest
+    public void testInsertSetsDefaultColumns() {
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.BODY, "defaults");
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        assertEquals(Uri.parse("content://sms/1"),
+                mContentResolver.insert(Uri.parse("content://sms/sent"), values));
+        // The caller's values are left alone.
+        assertEquals(3, values.size());
+
+        Cursor cursor = mSmsProviderTestable.mCeOpenHelper.getReadableDatabase().query(
+                "sms", null, null, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToNext();
+        assertTrue(cursor.getLong(cursor.getColumnIndex(Telephony.Sms.DATE)) > 0);
+        assertEquals(Telephony.Sms.MESSAGE_TYPE_SENT,
+                cursor.getInt(cursor.getColumnIndex(Telephony.Sms.TYPE)));
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(Telephony.Sms.READ)));
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(Telephony.Sms.THREAD_ID)));
+        cursor.close();
+
+        // The message is indexed in the same insert.
+        cursor = mSmsProviderTestable.mCeOpenHelper.getReadableDatabase().rawQuery(
+                "SELECT docid FROM " + SmsProvider.TABLE_SMS_WORDS + " WHERE "
+                + SmsProvider.TABLE_SMS_WORDS + " MATCH 'defaults'", null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals(1, cursor.getLong(0));
+        cursor.close();
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsert() throws Exception {
+        ContentValues[] values = new ContentValues[] {
+                getFakeSmsValue("first"), getFakeSmsValue("second"), getFakeSmsValue("third") };
+        assertEquals(3, mContentResolver.bulkInsert(Uri.parse("content://sms/sent"), values));
+
+        assertEquals(3, countRows("sms"));
+        assertEquals(3, countRows(SmsProvider.TABLE_SMS_WORDS));
+        // The changes are notified once the messages are committed.
+        waitForNotifications();
+        synchronized (this) {
+            assertFalse(mNotifiedInTransaction);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsertSkipsFailedMessages() throws Exception {
+        ContentValues invalid = getFakeSmsValue("second");
+        invalid.put("no_such_column", 1);
+        ContentValues[] values = new ContentValues[] {
+                getFakeSmsValue("first"), invalid, getFakeSmsValue("third") };
+        assertEquals(2, mContentResolver.bulkInsert(Uri.parse("content://sms/sent"), values));
+
+        // The other messages are inserted once each, with their words.
+        assertEquals(2, countRows("sms"));
+        assertEquals(2, countRows(SmsProvider.TABLE_SMS_WORDS));
+        Cursor cursor = mSmsProviderTestable.mCeOpenHelper.getReadableDatabase().query(
+                "sms", new String[] { Telephony.Sms.BODY }, null, null, null, null, "_id");
+        assertEquals(2, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals("first", cursor.getString(0));
+        cursor.moveToNext();
+        assertEquals("third", cursor.getString(0));
+        cursor.close();
+        // Notified once for the batch: its uri, and the mms-sms and conversations uris.
+        waitForNotifications();
+        synchronized (this) {
+            assertEquals(3, notifyChangeCount);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsertWithOnlyFailedMessages() {
+        ContentValues invalid = getFakeSmsValue("first");
+        invalid.put("no_such_column", 1);
+        assertEquals(0, mContentResolver.bulkInsert(Uri.parse("content://sms/sent"),
+                new ContentValues[] { invalid }));
+
+        assertEquals(0, countRows("sms"));
+        assertEquals(0, countRows(SmsProvider.TABLE_SMS_WORDS));
+        synchronized (this) {
+            assertEquals(0, notifyChangeCount);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsertFillsPersonAfterCommit() throws Exception {
+        ContentValues[] values = new ContentValues[] {
+                getFakeSmsValue("first"), getFakeSmsValue("second") };
+        assertEquals(2, mContentResolver.bulkInsert(Uri.parse("content://sms/inbox"), values));
+
+        // The messages are inserted without waiting for the contacts provider.
+        assertEquals(7, waitForPerson(1));
+        assertEquals(7, waitForPerson(2));
+    }
+
+    @Test
+    @SmallTest
+    public void testBulkInsertRollbackFillsNoPerson() throws Exception {
+        ContentValues invalid = getFakeSmsValue("second");
+        invalid.put("no_such_column", 1);
+        ContentValues[] values = new ContentValues[] { getFakeSmsValue("first"), invalid };
+        assertEquals(0, mContentResolver.bulkInsert(Uri.parse("content://sms/inbox"), values));
+
+        // The next message gets the id of the rolled back one.
+        ContentValues other = getFakeSmsValue("other");
+        other.put(Telephony.Sms.ADDRESS, "67890");
+        assertEquals(Uri.parse("content://sms/1"),
+                mContentResolver.insert(Uri.parse("content://sms/inbox"), other));
+
+        // Lookups run in order: the rolled back message would have been looked up first.
+        assertEquals(8, waitForPerson(1));
+        synchronized (this) {
+            assertEquals(Arrays.asList("67890"), mContactQueries);
+        }
+    }
+
     @Test
     @SmallTest
     public void testRawTableInsert() {
@@ -238,22 +400,72 @@ public class SmsProviderTest extends TestCase {
         assertEquals(1, cursor.getInt(cursor.getColumnIndex("deleted")));
         cursor.close();
 
-        // The deleted row should be purged.
+        // The deleted row has expired, and is not returned any more. It is purged in the
+        // background.
         cursor = mContentResolver.query(mRawUri, null, null, null, null);
         assertEquals(0, cursor.getCount());
+        cursor.close();
 
-        // Permanent delete all rows.
-        assertEquals(Uri.parse("content://sms/raw/1"),
-                mContentResolver.insert(mRawUri, getFakeRawValue()));
-        assertEquals(Uri.parse("content://sms/raw/2"),
-                mContentResolver.insert(mRawUri, getFakeRawValue()));
-        assertEquals(2, mContentResolver.delete(mRawUriPermanentDelete, null, null));
+        // Permanent delete the rows inserted since.
+        Uri first = mContentResolver.insert(mRawUri, getFakeRawValue());
+        Uri second = mContentResolver.insert(mRawUri, getFakeRawValue());
+        assertNotNull(first);
+        assertNotNull(second);
+        assertFalse(first.equals(second));
+        cursor = mContentResolver.query(mRawUri, null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        assertEquals(2, mContentResolver.delete(mRawUriPermanentDelete, "_id IN (?, ?)",
+                new String[] { first.getLastPathSegment(), second.getLastPathSegment() }));
+
+        // Only the row marked deleted is left.
         cursor = mSmsProviderTestable.mDeOpenHelper.getReadableDatabase().query(
                 "raw", null, null, null, null, null, null);
-        assertEquals(0, cursor.getCount());
+        assertEquals(1, cursor.getCount());
+        cursor.moveToNext();
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex("deleted")));
         cursor.close();
     }
 
+    private ContentValues getFakeSmsValue(String body) {
+        ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.ADDRESS, "12345");
+        values.put(Telephony.Sms.BODY, body);
+        values.put(Telephony.Sms.THREAD_ID, 1);
+        return values;
+    }
+
+    private long countRows(String table) {
+        return DatabaseUtils.queryNumEntries(
+                mSmsProviderTestable.mCeOpenHelper.getReadableDatabase(), table);
+    }
+
+    private boolean isProviderInTransaction() {
+        return mSmsProviderTestable.mCeOpenHelper.getWritableDatabase().inTransaction()
+                || mSmsProviderTestable.mDeOpenHelper.getWritableDatabase().inTransaction();
+    }
+
+    // Waits for the person of the sms row 'id' to be filled in the background, and returns it.
+    private long waitForPerson(long id) throws InterruptedException {
+        SQLiteDatabase db = mSmsProviderTestable.mCeOpenHelper.getReadableDatabase();
+        String sql = "SELECT IFNULL(person, 0) FROM sms WHERE _id = " + id;
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (DatabaseUtils.longForQuery(db, sql, null) == 0
+                && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(100);
+        }
+        return DatabaseUtils.longForQuery(db, sql, null);
+    }
+
+    // Waits for a change to be notified.
+    private synchronized void waitForNotifications() throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (notifyChangeCount == 0 && SystemClock.elapsedRealtime() < deadline) {
+            wait(100);
+        }
+        assertTrue(notifyChangeCount > 0);
+    }
+
     private ContentValues getFakeRawValue() {
         ContentValues values = new ContentValues();
         values.put("pdu", mFakePdu);
@@ -60,6 +60,8 @@ public class SmsProviderTestable extends SmsProvider {
             db.execSQL(MmsSmsDatabaseHelper.CREATE_SMS_TABLE_STRING);
             db.execSQL(MmsSmsDatabaseHelper.CREATE_RAW_TABLE_STRING);
             db.execSQL(MmsSmsDatabaseHelper.CREATE_ATTACHMENTS_TABLE_STRING);
+            // Inserts of sms rows fail if they cannot be indexed.
+            MmsSmsDatabaseHelper.createWordsTables(db);
         }
 
         @Override
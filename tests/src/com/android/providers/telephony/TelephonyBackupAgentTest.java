@@ -644,6 +644,20 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         assertEquals(mThreadProvider.mIsThreadArchived, mThreadProvider.mUpdateThreadsArchived);
     }
 
+    /**
+     * Test that a batch the provider fails to insert is inserted one message at a time.
+     * @throws Exception
+     */
+    public void testRestoreSms_BulkInsertFails() throws Exception {
+        mTelephonyBackupAgent.initUnknownSender();
+        JsonReader jsonReader = new JsonReader(new StringReader(addRandomDataToJson(mAllSmsJson)));
+        FakeSmsProvider smsProvider = new FakeSmsProvider(mSmsRows);
+        smsProvider.mFailBulkInsert = true;
+        mMockContentResolver.addProvider("sms", smsProvider);
+        mTelephonyBackupAgent.putSmsMessagesToProvider(jsonReader);
+        assertEquals(mSmsRows.length, smsProvider.getRowsAdded());
+    }
+
     /**
      * Test restore mms with the empty json array "[]".
      * @throws Exception
@@ -781,6 +795,8 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
         private int nextRow = 0;
         private ContentValues[] mSms;
         private boolean mCheckInsertedValues = true;
+        // Whether bulkInsert() fails as a whole, inserting nothing.
+        boolean mFailBulkInsert = false;
 
         public FakeSmsProvider(ContentValues[] sms) {
             this.mSms = sms;
@@ -812,6 +828,9 @@ public class TelephonyBackupAgentTest extends AndroidTestCase {
 
         @Override
         public int bulkInsert(Uri uri, ContentValues[] values) {
+            if (mFailBulkInsert) {
+                return 0;
+            }
             for (ContentValues cv : values) {
                 insert(uri, cv);
             }
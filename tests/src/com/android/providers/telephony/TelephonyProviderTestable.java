@@ -80,6 +80,11 @@ public class TelephonyProviderTestable extends TelephonyProvider {
         Log.d(TAG, "initDatabaseWithDatabaseHelper called; doing nothing");
     }
 
+    @Override
+    void checkBuildIdOnFirstCall() {
+        Log.d(TAG, "checkBuildIdOnFirstCall called; doing nothing");
+    }
+
     @Override
     boolean needApnDbUpdate() {
         Log.d(TAG, "needApnDbUpdate called; returning false");